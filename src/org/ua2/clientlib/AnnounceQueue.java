@@ -2,57 +2,723 @@ package org.ua2.clientlib;
 
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
+import org.apache.log4j.Logger;
 import org.ua2.edf.EDFData;
 
-public class AnnounceQueue implements Runnable
+/**
+ * Hands announcements from the server to their subscribers
+ * <p>
+ * Any number of handlers can subscribe to a topic, which is an announcement
+ * name or a pattern such as "user_*", optionally with a filter on the
+ * announcement, eg. childEquals("folderid", 3).
+ * <p>
+ * Announcements are queued in serial lanes, each drained in batches by one
+ * task at a time on a bounded executor, so announcements with the same key
+ * are handled in the order they arrived. By default the key is the user
+ * the announcement is about, so a user_login and the user_logout after it
+ * can't be handled the other way round.
+ * <p>
+ * The queue holds a limited number of announcements. What happens when it
+ * is full is set by the Overflow policy.
+ * <p>
+ * Announcements which only carry the latest state of something, eg. a
+ * user's status, can be conflated by a field such as userid. A newer one
+ * takes the place of the one waiting before it, so only the latest is
+ * handled however many arrive while the handlers are busy.
+ *
+ * @author brian
+ *
+ */
+public class AnnounceQueue
 {
-	private ConcurrentHashMap<String, EDFAnnouncement> subscribers = new ConcurrentHashMap<String, EDFAnnouncement>();
+	/**
+	 * What announcements are kept in order with
+	 */
+	public enum Ordering
+	{
+		TYPE,	// Announcements of the same type, eg. every user_login
+		USER	// Announcements with the same userid, otherwise of the same type
+	};
+
+	/**
+	 * What to do with an announcement when the queue is full
+	 */
+	public enum Overflow
+	{
+		BLOCK,			// Wait for room, holding up the connection's input. Not for connections served by a UAEngine
+		DROP_NEWEST,	// Drop the new announcement
+		DROP_OLDEST		// Drop the oldest announcement in its lane, or the new one if its lane is empty
+	};
+
+	public static final int DEFAULT_CAPACITY = 10000;
+	public static final int DEFAULT_BATCH_SIZE = 32;
+
+	// Number of lanes. Keys share lanes, which is fine for ordering
+	private static final int LANES = 64;
+
+	// Shared by every queue without an executor of its own. Threads are
+	// started as needed, up to the limit, and stop when idle
+	private static final ThreadPoolExecutor SHARED;
+
+	static
+	{
+		final AtomicInteger count = new AtomicInteger();
+		int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+		SHARED = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+		{
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "Announce-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		SHARED.allowCoreThreadTimeOut(true);
+	}
+
+	private final AnnounceRouter router = new AnnounceRouter();
+
+	// Conflation rules, and the rule found for each announcement name
+	private static final Conflation NO_CONFLATION = new Conflation(null, null, 0);
+	private volatile Conflation[] conflations = new Conflation[0];
+	private volatile ConcurrentHashMap<String, Conflation> conflationnames = new ConcurrentHashMap<String, Conflation>();
+
+	private final Lane[] lanes = new Lane[LANES];
+
+	// Runs the lanes. By default the shared pool
+	private volatile Executor executor = SHARED;
+
+	private volatile Ordering ordering = Ordering.USER;
+	private volatile Overflow overflow = Overflow.DROP_OLDEST;
+	// Announcements come from a thread which must not block
+	private boolean nonblocking = false;
+	private volatile int batchsize = DEFAULT_BATCH_SIZE;
+
+	// A permit for each announcement which can be queued
+	private volatile Semaphore space = new Semaphore(DEFAULT_CAPACITY);
+	private int capacity = DEFAULT_CAPACITY;
+
+	// Metrics
+	private final AtomicInteger depth = new AtomicInteger();
+	private final AtomicInteger maxdepth = new AtomicInteger();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong conflated = new AtomicLong();
+	private final AtomicLong totallatency = new AtomicLong();
+	private final AtomicLong maxlatency = new AtomicLong();
+	private final AtomicLong totalhandling = new AtomicLong();
+
+	private static final Logger logger = Logger.getLogger(AnnounceQueue.class);
+
+	/**
+	 * An announcement and when it was queued
+	 */
+	private static class Queued
+	{
+		// Replaced by newer ones with the same conflation key until taken
+		volatile EDFData announcement;
+		final Conflation conflation;
+		final Object key;
+		final long queued = System.nanoTime();
+
+		private boolean taken = false;
+
+		Queued(EDFData announcement, Conflation conflation, Object key)
+		{
+			this.announcement = announcement;
+			this.conflation = conflation;
+			this.key = key;
+		}
+
+		/**
+		 * @return false if it has already been taken to be handled
+		 */
+		synchronized boolean replace(EDFData announcement)
+		{
+			if(taken)
+			{
+				return false;
+			}
+
+			this.announcement = announcement;
+			return true;
+		}
+
+		synchronized void take()
+		{
+			taken = true;
+		}
+	}
+
+	/**
+	 * Announcements to conflate, the field to conflate them by, and how long
+	 * to hold them back for
+	 */
+	private static class Conflation
+	{
+		final String topic;
+		final String field;
+		final long window;
+
+		// Announcements waiting to be handled which newer ones can take the
+		// place of, by the value of the field
+		final ConcurrentHashMap<Object, Queued> waiting = new ConcurrentHashMap<Object, Queued>();
+
+		Conflation(String topic, String field, long window)
+		{
+			this.topic = topic;
+			this.field = field;
+			this.window = window;
+		}
+
+		/**
+		 * @return key for an announcement, the field's value, or null if it
+		 * has no value for the field
+		 */
+		Object key(EDFData announcement)
+		{
+			EDFData value = announcement.getChild(field);
+			if(value == null)
+			{
+				return null;
+			}
+			else if(value.type == EDFData.ValueType.INTEGER)
+			{
+				return value.getInt();
+			}
+			else if(value.type == EDFData.ValueType.STRING)
+			{
+				return value.getString();
+			}
+
+			return null;
+		}
+	}
+
+	/**
+	 * Announcements handled one after another
+	 */
+	private class Lane implements Runnable
+	{
+		final ConcurrentLinkedQueue<Queued> queue = new ConcurrentLinkedQueue<Queued>();
+
+		// Set while a task is handling the lane or waiting to
+		final AtomicBoolean scheduled = new AtomicBoolean();
+
+		void add(Queued queued)
+		{
+			queue.add(queued);
+			schedule();
+		}
+
+		void schedule()
+		{
+			if(!scheduled.compareAndSet(false, true))
+			{
+				return;
+			}
+
+			try
+			{
+				executor.execute(this);
+			}
+			catch(RejectedExecutionException e)
+			{
+				logger.error("Announcement executor rejected lane", e);
+				scheduled.set(false);
+			}
+		}
+
+		public void run()
+		{
+			// A batch at a time, so busy lanes don't keep the thread from the others
+			int limit = batchsize;
+			for(int i = 0; i < limit; i++)
+			{
+				Queued queued = queue.poll();
+				if(queued == null)
+				{
+					break;
+				}
+
+				taken(queued);
+				deliver(queued);
+			}
+
+			scheduled.set(false);
+			if(!queue.isEmpty())
+			{
+				schedule();
+			}
+		}
+	}
+
+	public AnnounceQueue()
+	{
+		for(int i = 0; i < LANES; i++)
+		{
+			lanes[i] = new Lane();
+		}
+	}
+
+	/**
+	 * Set what runs the handlers, eg. a thread pool or
+	 * UAThreads.perTask(UAThreads.virtual("Announce-")). Each task handles a
+	 * batch from one lane. By default a pool shared by every connection,
+	 * with a thread for each processor, so handlers which block for long
+	 * should be given an executor of their own
+	 * @param executor	Executor to use
+	 */
+	public void setExecutor(Executor executor)
+	{
+		this.executor = executor;
+	}
+
+	/**
+	 * Set what announcements are kept in order with. Ordering.USER by default
+	 * @param ordering	Ordering to use
+	 */
+	public void setOrdering(Ordering ordering)
+	{
+		this.ordering = ordering;
+	}
+
+	public Ordering getOrdering()
+	{
+		return ordering;
+	}
+
+	/**
+	 * Set what happens when the queue is full. Overflow.DROP_OLDEST by default
+	 * @param overflow	Overflow policy to use
+	 * @throws IllegalStateException the policy is BLOCK, and the queue is for a connection served by a UAEngine
+	 */
+	public synchronized void setOverflow(Overflow overflow)
+	{
+		if(overflow == Overflow.BLOCK && nonblocking)
+		{
+			throw new IllegalStateException("Announcements from a UAEngine can't block");
+		}
+
+		this.overflow = overflow;
+	}
+
+	public Overflow getOverflow()
+	{
+		return overflow;
+	}
+
+	/**
+	 * Announcements will come from a thread which must not block, ie. a
+	 * UAEngine I/O thread, so Overflow.BLOCK can't be used
+	 * @throws IllegalStateException the policy is already BLOCK
+	 */
+	synchronized void setNonBlocking(boolean nonblocking)
+	{
+		if(nonblocking && overflow == Overflow.BLOCK)
+		{
+			throw new IllegalStateException("Announcements from a UAEngine can't block");
+		}
+
+		this.nonblocking = nonblocking;
+	}
+
+	/**
+	 * Set how many announcements can be queued. This must be called before any arrive
+	 * @param capacity	Number of announcements
+	 */
+	public void setCapacity(int capacity)
+	{
+		this.capacity = capacity;
+		space = new Semaphore(capacity);
+	}
+
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Set how many announcements from a lane are handled in one task
+	 * @param size	Number of announcements
+	 */
+	public void setBatchSize(int size)
+	{
+		batchsize = Math.max(1, size);
+	}
 
-	// ConcurrentLinkedQueue is a thread-safe FIFO
-	private ConcurrentLinkedQueue<EDFData> announcementqueue = new ConcurrentLinkedQueue<EDFData>();
+	public int getBatchSize()
+	{
+		return batchsize;
+	}
 
-	public void subscribe(String message, EDFAnnouncement handler)
+	/**
+	 * Subscribe a handler to announcements. Other handlers subscribed to the
+	 * same announcements are given them too, in the order they subscribed
+	 * @param topic	Announcement name, or a pattern in which '*' matches anything, eg. "user_*"
+	 * @param handler	Handler to give the announcements to
+	 * @return Subscription to unsubscribe with
+	 */
+	public Subscription subscribe(String topic, EDFAnnouncement handler)
 	{
-		subscribers.put(message, handler);
+		return router.add(topic, null, handler);
 	}
 	
-	public void announce(EDFData announcement)
+	/**
+	 * Subscribe a handler to announcements it accepts with a filter
+	 * @param topic	Announcement name, or a pattern in which '*' matches anything, eg. "user_*"
+	 * @param filter	Accepts the announcements to give the handler
+	 * @param handler	Handler to give the announcements to
+	 * @return Subscription to unsubscribe with
+	 * @see #childEquals(String, int)
+	 */
+	public Subscription subscribe(String topic, Predicate<EDFData> filter, EDFAnnouncement handler)
+	{
+		return router.add(topic, filter, handler);
+	}
+	
+	/**
+	 * @return number of subscriptions
+	 */
+	public int getSubscriptionCount()
 	{
-		announcementqueue.add(announcement);
-		
-		Thread queuerun = new Thread(this);
-		queuerun.setName("Announce" + System.currentTimeMillis());
-		queuerun.start();
+		return router.size();
 	}
 	
-	public void run()
+	/**
+	 * A filter for announcements with a child element with an integer value, eg. folderid
+	 * @param name	Child name
+	 * @param value	Value to accept
+	 * @return filter
+	 */
+	public static Predicate<EDFData> childEquals(final String name, final int value)
 	{
-		// Pull one announcement off the announcement list and process it
-		EDFData message = announcementqueue.poll();
-		
-		if(message == null)
+		return new Predicate<EDFData>()
 		{
-			// FIXME - error handling
-			System.err.println("Announcement queue thread found empty queue");
-			
-			return;
+			public boolean test(EDFData announcement)
+			{
+				EDFData child = announcement.getChild(name);
+				return child != null && child.type == EDFData.ValueType.INTEGER && child.getInt() == value;
+			}
+		};
+	}
+	
+	/**
+	 * A filter for announcements with a child element with a string value, eg. username
+	 * @param name	Child name
+	 * @param value	Value to accept
+	 * @return filter
+	 */
+	public static Predicate<EDFData> childEquals(final String name, final String value)
+	{
+		return new Predicate<EDFData>()
+		{
+			public boolean test(EDFData announcement)
+			{
+				EDFData child = announcement.getChild(name);
+				return child != null && child.type == EDFData.ValueType.STRING && value.equals(child.getString());
+			}
+		};
+	}
+
+	/**
+	 * Conflate announcements while they are waiting to be handled. A newer
+	 * announcement matching the topic with the same value for the field
+	 * takes the place of the older one, even if they are of different types,
+	 * eg. with "user_*" and "userid" a user_logout replaces the user_login
+	 * waiting before it
+	 * @param topic	Announcement name, or a pattern in which '*' matches anything, eg. "user_*"
+	 * @param field	Child holding the key, eg. "userid". Announcements without it are not conflated
+	 */
+	public void conflate(String topic, String field)
+	{
+		conflate(topic, field, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Conflate announcements, holding each back for a time so that any
+	 * replacing it within the window are conflated too. Announcements
+	 * which are not held back may be handled before it
+	 * @param topic	Announcement name, or a pattern in which '*' matches anything, eg. "user_*"
+	 * @param field	Child holding the key, eg. "userid". Announcements without it are not conflated
+	 * @param window	Time to hold an announcement back for
+	 * @param unit	Unit of the window
+	 * @see #conflate(String, String)
+	 */
+	public synchronized void conflate(String topic, String field, long window, TimeUnit unit)
+	{
+		Conflation[] current = conflations;
+		Conflation[] updated = new Conflation[current.length + 1];
+		System.arraycopy(current, 0, updated, 0, current.length);
+		updated[current.length] = new Conflation(topic, field, unit.toMillis(window));
+
+		conflations = updated;
+		conflationnames = new ConcurrentHashMap<String, Conflation>();
+	}
+
+	/**
+	 * @return the first conflation rule matching an announcement name
+	 */
+	private Conflation conflation(String name)
+	{
+		ConcurrentHashMap<String, Conflation> names = conflationnames;
+
+		Conflation conflation = names.get(name);
+		if(conflation == null)
+		{
+			conflation = NO_CONFLATION;
+			for(Conflation rule : conflations)
+			{
+				if(AnnounceRouter.matches(rule.topic, name))
+				{
+					conflation = rule;
+					break;
+				}
+			}
+			names.put(name, conflation);
 		}
-		
-		if(message.type != EDFData.ValueType.STRING)
+
+		return conflation;
+	}
+
+	public void announce(EDFData announcement)
+	{
+		if(announcement.type != EDFData.ValueType.STRING)
 		{
-			// FIXME - error handling
-			System.err.println("Announcement queue thread found bogus non-string announcement");
-			
+			logger.error("Announcement queue found bogus non-string announcement");
+
 			return;
 		}
 
-		EDFAnnouncement handler = subscribers.get(message.sValue);
+		Conflation conflation = (conflations.length > 0 ? conflation(announcement.getString()) : NO_CONFLATION);
+		Object key = (conflation != NO_CONFLATION ? conflation.key(announcement) : null);
+
+		Queued queued = new Queued(announcement, conflation, key);
+		if(key != null)
+		{
+			Queued waiting;
+			while((waiting = conflation.waiting.putIfAbsent(key, queued)) != null)
+			{
+				if(waiting.replace(announcement))
+				{
+					conflated.incrementAndGet();
+					return;
+				}
+
+				// Being handled already, so this one has to wait its turn
+				conflation.waiting.remove(key, waiting);
+			}
+		}
+
+		final Lane lane = lanes[lane(announcement)];
+
+		if(!space.tryAcquire())
+		{
+			switch(overflow)
+			{
+				case BLOCK:
+					space.acquireUninterruptibly();
+					break;
+
+				case DROP_OLDEST:
+					// Take over the oldest announcement's place
+					Queued oldest = lane.queue.poll();
+					if(oldest != null)
+					{
+						unconflate(oldest);
+						dropped.incrementAndGet();
+						depth.decrementAndGet();
+						break;
+					}
+					// Nothing in the lane to drop
+					unconflate(queued);
+					dropped.incrementAndGet();
+					return;
+
+				default:
+					unconflate(queued);
+					dropped.incrementAndGet();
+					return;
+			}
+		}
+
+		int now = depth.incrementAndGet();
+		int max;
+		while(now > (max = maxdepth.get()) && !maxdepth.compareAndSet(max, now))
+		{
+			// Try again
+		}
+
+		if(key != null && conflation.window > 0)
+		{
+			// Counted as waiting, but only put in its lane once the window has passed
+			final Queued held = queued;
+			UATimerWheel.SHARED.schedule(new Runnable()
+			{
+				public void run()
+				{
+					lane.add(held);
+				}
+			}, conflation.window, TimeUnit.MILLISECONDS);
+		}
+		else
+		{
+			lane.add(queued);
+		}
+	}
+
+	/**
+	 * Pick the lane for an announcement from its key
+	 */
+	private int lane(EDFData announcement)
+	{
+		int hash;
+
+		EDFData userid = (ordering == Ordering.USER ? announcement.getChild("userid") : null);
+		if(userid != null && userid.type == EDFData.ValueType.INTEGER)
+		{
+			hash = userid.getInt();
+		}
+		else
+		{
+			hash = announcement.getString().hashCode();
+		}
+
+		hash *= 0x9e3779b9;
+		return (hash ^ (hash >>> 16)) & (LANES - 1);
+	}
+
+	/**
+	 * An announcement has been taken off its lane
+	 */
+	private void taken(Queued queued)
+	{
+		unconflate(queued);
+		depth.decrementAndGet();
+		space.release();
+	}
+
+	/**
+	 * Stop newer announcements taking an announcement's place
+	 */
+	private void unconflate(Queued queued)
+	{
+		if(queued.key != null)
+		{
+			queued.take();
+			queued.conflation.waiting.remove(queued.key, queued);
+		}
+	}
+
+	private void deliver(Queued queued)
+	{
+		EDFData message = queued.announcement;
+
+		// Call the handlers' announce methods inside this thread
+		long start = System.nanoTime();
+		for(Subscription subscription : router.route(message.getString()))
+		{
+			try
+			{
+				if(subscription.accepts(message))
+				{
+					subscription.handler.announce(message);
+				}
+			}
+			catch(RuntimeException e)
+			{
+				logger.error("Handler for " + message.getString() + " failed", e);
+			}
+		}
+		long end = System.nanoTime();
+
+		long latency = end - queued.queued;
+		delivered.incrementAndGet();
+		totallatency.addAndGet(latency);
+		totalhandling.addAndGet(end - start);
 
-		// Call the handler's announce method inside this thread
-		if(handler != null)
+		long max;
+		while(latency > (max = maxlatency.get()) && !maxlatency.compareAndSet(max, latency))
 		{
-			handler.announce(message);
+			// Try again
 		}
 	}
+
+	/**
+	 * @return number of announcements waiting to be handled
+	 */
+	public int getDepth()
+	{
+		return depth.get();
+	}
+
+	/**
+	 * @return most announcements there have been waiting at once
+	 */
+	public int getMaxDepth()
+	{
+		return maxdepth.get();
+	}
+
+	/**
+	 * @return number of announcements handled, including those nobody subscribed to
+	 */
+	public long getDelivered()
+	{
+		return delivered.get();
+	}
+
+	/**
+	 * @return number of announcements dropped because the queue was full
+	 */
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * @return number of announcements replaced by newer ones before being handled
+	 */
+	public long getConflated()
+	{
+		return conflated.get();
+	}
+
+	/**
+	 * @return average time in nanoseconds from an announcement arriving to its handler returning
+	 */
+	public long getAverageLatency()
+	{
+		long count = delivered.get();
+		return (count > 0 ? totallatency.get() / count : 0);
+	}
+
+	/**
+	 * @return longest time in nanoseconds from an announcement arriving to its handler returning
+	 */
+	public long getMaxLatency()
+	{
+		return maxlatency.get();
+	}
+
+	/**
+	 * @return average time in nanoseconds spent in a handler
+	 */
+	public long getAverageHandlerTime()
+	{
+		long count = delivered.get();
+		return (count > 0 ? totalhandling.get() / count : 0);
+	}
 }
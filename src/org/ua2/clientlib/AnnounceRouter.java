@@ -0,0 +1,157 @@
+package org.ua2.clientlib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import org.ua2.edf.EDFData;
+
+/**
+ * Finds the subscriptions for an announcement
+ * <p>
+ * A topic is an announcement name, or a pattern in which '*' matches any
+ * run of characters, eg. "user_*" or "*". The subscriptions are held in a
+ * table which is copied and swapped whenever one is added or removed, so
+ * routing takes no locks. Each announcement name is matched against the
+ * topics once per table, and the subscriptions found are kept, so routing
+ * an announcement is one lookup however many subscriptions there are.
+ *
+ * @author brian
+ *
+ */
+class AnnounceRouter
+{
+	private static final Subscription[] NONE = new Subscription[0];
+
+	// Names sent by the server are a small set. Past this many, stop keeping them
+	private static final int MAX_ROUTES = 1024;
+
+	/**
+	 * Every subscription, in the order they were made, and the ones found
+	 * for each name so far
+	 */
+	private static final class Table
+	{
+		final Subscription[] subscriptions;
+		final ConcurrentHashMap<String, Subscription[]> routes = new ConcurrentHashMap<String, Subscription[]>();
+
+		Table(Subscription[] subscriptions)
+		{
+			this.subscriptions = subscriptions;
+		}
+	}
+
+	private volatile Table table = new Table(NONE);
+
+	synchronized Subscription add(String topic, Predicate<EDFData> filter, EDFAnnouncement handler)
+	{
+		Subscription subscription = new Subscription(this, topic, filter, handler);
+
+		Subscription[] current = table.subscriptions;
+		Subscription[] subscriptions = new Subscription[current.length + 1];
+		System.arraycopy(current, 0, subscriptions, 0, current.length);
+		subscriptions[current.length] = subscription;
+
+		table = new Table(subscriptions);
+		return subscription;
+	}
+
+	synchronized void remove(Subscription subscription)
+	{
+		Subscription[] current = table.subscriptions;
+		List<Subscription> subscriptions = new ArrayList<Subscription>(current.length);
+		for(Subscription existing : current)
+		{
+			if(existing != subscription)
+			{
+				subscriptions.add(existing);
+			}
+		}
+
+		if(subscriptions.size() < current.length)
+		{
+			table = new Table(subscriptions.toArray(NONE));
+		}
+	}
+
+	/**
+	 * @return subscriptions whose topic matches an announcement name, in the
+	 *         order they were made. Filters are not applied
+	 */
+	Subscription[] route(String name)
+	{
+		Table current = table;
+
+		Subscription[] routes = current.routes.get(name);
+		if(routes == null)
+		{
+			List<Subscription> found = new ArrayList<Subscription>();
+			for(Subscription subscription : current.subscriptions)
+			{
+				if(matches(subscription.topic, name))
+				{
+					found.add(subscription);
+				}
+			}
+
+			routes = (found.isEmpty() ? NONE : found.toArray(NONE));
+			if(current.routes.size() < MAX_ROUTES)
+			{
+				current.routes.put(name, routes);
+			}
+		}
+
+		return routes;
+	}
+
+	int size()
+	{
+		return table.subscriptions.length;
+	}
+
+	/**
+	 * @return true if a name matches a topic, where '*' in the topic matches
+	 *         any run of characters
+	 */
+	static boolean matches(String topic, String name)
+	{
+		int t = 0;
+		int n = 0;
+
+		// Where to go back to if the rest doesn't match: after the last '*',
+		// and the name position it is currently standing in for
+		int star = -1;
+		int mark = 0;
+
+		while(n < name.length())
+		{
+			if(t < topic.length() && topic.charAt(t) == '*')
+			{
+				star = ++t;
+				mark = n;
+			}
+			else if(t < topic.length() && topic.charAt(t) == name.charAt(n))
+			{
+				t++;
+				n++;
+			}
+			else if(star != -1)
+			{
+				// Let the '*' take one more character
+				t = star;
+				n = ++mark;
+			}
+			else
+			{
+				return false;
+			}
+		}
+
+		while(t < topic.length() && topic.charAt(t) == '*')
+		{
+			t++;
+		}
+		return t == topic.length();
+	}
+}
@@ -0,0 +1,47 @@
+package org.ua2.clientlib;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.ua2.clientlib.exception.UAException;
+import org.ua2.clientlib.exception.WrongEDFException;
+import org.ua2.edf.EDFBindException;
+import org.ua2.edf.EDFCodec;
+import org.ua2.edf.EDFCodecs;
+import org.ua2.edf.EDFReader;
+
+/**
+ * Decodes a list reply (eg. folder_list, user_list or message_list) straight
+ * into a List of objects with the type's registered EDFCodec
+ * 
+ * @author brian
+ *
+ */
+public class EDFListReader<T> implements EDFReplyReader<List<T>>
+{
+	private final EDFCodec<T> codec;
+	
+	/**
+	 * @param type	Type to decode, which must have registered an EDFCodec
+	 */
+	public EDFListReader(Class<T> type)
+	{
+		codec = EDFCodecs.get(type);
+		if(codec == null)
+		{
+			throw new IllegalArgumentException("No EDFCodec registered for " + type.getName());
+		}
+	}
+	
+	public List<T> read(EDFReader reader) throws IOException, UAException
+	{
+		try
+		{
+			return codec.decodeList(reader);
+		}
+		catch(EDFBindException e)
+		{
+			throw new WrongEDFException(e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package org.ua2.clientlib;
+
+import java.io.IOException;
+
+import org.ua2.clientlib.exception.UAException;
+import org.ua2.edf.EDFReader;
+
+/**
+ * Turns a reply into an application object as it is read, without building
+ * an EDFData tree for it
+ * <p>
+ * read() is called on the connection's reader thread with the reader on the
+ * START_ELEMENT event of the &lt;reply&gt;. Anything it leaves unread of the
+ * reply is skipped afterwards.
+ *
+ * @see UAConnection#sendAndRead(org.ua2.edf.EDFData, EDFReplyReader)
+ */
+public interface EDFReplyReader<T> {
+	T read(EDFReader reader) throws IOException, UAException;
+}
@@ -1,5 +1,6 @@
 package org.ua2.clientlib;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
 
@@ -14,6 +15,33 @@ public class Folder {
 	private ArrayList<Integer> editors = new ArrayList<Integer>();			// User ID of editor
 	// TODO - other folder attributes
 	
+	/**
+	 * Binds &lt;folder=[number]&gt; to a Folder
+	 */
+	public static final EDFCodec<Folder> CODEC = EDFCodec.builder("folder", new EDFCodec.Factory<Folder>() {
+			public Folder create() { return new Folder(); }
+		})
+		.integerValue(new EDFCodec.IntField<Folder>() {
+			public void set(Folder folder, int value) { folder.id = value; }
+		})
+		.string("name", new EDFCodec.StringField<Folder>() {
+			public void set(Folder folder, String value) { folder.name = value; }
+		}, true)
+		.integer("unread", new EDFCodec.IntField<Folder>() {
+			public void set(Folder folder, int value) { folder.unread = value; }
+		}, false)
+		// FIXME - multiple editors possible (eg, Databases)
+		.integer("editor", new EDFCodec.IntField<Folder>() {
+			public void set(Folder folder, int value) { folder.editors.add(value); }
+		}, false)
+		// TODO - the other fields
+		.build();
+
+	static
+	{
+		EDFCodecs.register(Folder.class, CODEC);
+	}
+	
 	/**
 	 * Creates a folder object with no attributes set
 	 */
@@ -29,72 +57,52 @@ public class Folder {
 	 */
 	public Folder(EDFData edftree) throws WrongEDFException
 	{
-		// Check the root element
-		if((! edftree.name.equalsIgnoreCase("folder")) || (edftree.type != EDFData.ValueType.INTEGER))
+		try
 		{
-			throw new WrongEDFException("Expected '<folder=[number]></>");
+			CODEC.decode(edftree, this);
 		}
-		
-/*		EDFData nameelement = edftree.getChild("name");
-		if(nameelement == null)
+		catch(EDFBindException e)
 		{
-			throw new WrongEDFException("Expected <name> element");
+			throw new WrongEDFException(e.getMessage(), e);
 		}
-		
-		if((nameelement.type != EDFData.ValueType.STRING) || (nameelement.sValue.isEmpty()))
-		{
-			throw new WrongEDFException("Expected <name=[string]/>");
-		}
-		
-		name = nameelement.sValue;
-*/
-		id = edftree.iValue;
-
-		for(EDFData child : edftree.children)
+	}
+	
+	/**
+	 * Creates a folder from an EDFReader
+	 * @param reader EDFReader on the START_ELEMENT of a folder. It is left on the folder's END_ELEMENT
+	 * @throws WrongEDFException the EDF didn't contain the correct information to describe a folder
+	 * @throws IOException the EDF could not be read
+	 */
+	public Folder(EDFReader reader) throws WrongEDFException, IOException
+	{
+		try
 		{
-			if(child.name.equals("name"))
-			{
-				if((child.type != EDFData.ValueType.STRING) || (child.sValue.isEmpty()))
-				{
-					throw new WrongEDFException("Expected <name=[string]/>");
-				}
-				
-				name = child.sValue;
-				continue;
-			}
-			
-			if(child.name.equals("unread"))
-			{
-				if(child.type != EDFData.ValueType.INTEGER)
-				{
-					throw new WrongEDFException("Expected <unread=[number]/>");
-				}
-				
-				unread = child.iValue;
-				continue;
-			}
-
-			// FIXME - multiple editors possible (eg, Databases)
-			if(child.name.equals("editor"))
-			{
-				if(child.type != EDFData.ValueType.INTEGER)
-				{
-					throw new WrongEDFException("Expected <editor=[number]/>");
-				}
-				
-				editors.add(child.iValue);
-				continue;
-			}
-
-			
+			CODEC.decode(reader, this);
 		}
-		
-		if((name == null))
+		catch(EDFBindException e)
 		{
-			throw new WrongEDFException("<folder> is missing a required element");
+			throw new WrongEDFException(e.getMessage(), e);
 		}
-		
-		// TODO - the other fields
+	}
+	
+	/**
+	 * @return true if another description of this folder has the same fields
+	 */
+	boolean same(Folder other)
+	{
+		return id == other.id && name.equals(other.name) && unread == other.unread && editors.equals(other.editors);
+	}
+	
+	/**
+	 * Update this folder in place from a newer description of it
+	 * @param other	Folder decoded from the newer description
+	 */
+	void copy(Folder other)
+	{
+		id = other.id;
+		name = other.name;
+		unread = other.unread;
+		editors = other.editors;
 	}
 	
 	public List<Integer> getEditors()
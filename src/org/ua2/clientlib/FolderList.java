@@ -3,11 +3,10 @@ package org.ua2.clientlib;
 import org.ua2.clientlib.exception.*;
 import org.ua2.edf.EDFData;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 
 /**
  * A class to handle folders - it manages, and keeps up-to-date,
@@ -17,7 +16,28 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class FolderList
 {
-	private ConcurrentHashMap<String, Folder> folders = new ConcurrentHashMap<String, Folder>();
+	private final KeyedList<Folder> folders = new KeyedList<Folder>(Folder.CODEC)
+	{
+		int id(Folder folder)
+		{
+			return folder.id;
+		}
+		
+		String name(Folder folder)
+		{
+			return folder.name;
+		}
+		
+		boolean same(Folder folder, Folder fresh)
+		{
+			return folder.same(fresh);
+		}
+		
+		void copy(Folder fresh, Folder folder)
+		{
+			folder.copy(fresh);
+		}
+	};
 	private UA ua;
 	
 	/**
@@ -55,44 +75,82 @@ public class FolderList
 		}
 	}
 	
+	/**
+	 * Add a listener to be told which folders change on each refresh
+	 * @param listener	ListListener
+	 */
+	public void addListener(ListListener<Folder> listener)
+	{
+		folders.addListener(listener);
+	}
+	
+	public void removeListener(ListListener<Folder> listener)
+	{
+		folders.removeListener(listener);
+	}
+	
 	/**
 	 * Refresh the list of folders
 	 */
 	public void refresh() throws UAException
 	{
-		ConcurrentHashMap<String, Folder> newfolders = new ConcurrentHashMap<String, Folder>();
-		
 		UAConnection connection = (UAConnection) ua.get(UAConnection.class);
 		
 		EDFData request = new EDFData("request", "folder_list");
-		EDFData reply = connection.sendAndRead(request);
 
 		// TODO - handle errors (eg, <reply="rq_invalid">)
-		for(EDFData folderdata : reply.getChildren("folder"))
-		{
-			Folder folder = new Folder(folderdata);
-			
-			newfolders.put(folder.name, folder);
-		}
-		
-		folders = newfolders;
+		folders.update(connection.sendAndRead(request));
 	}
 	
-	public List<Folder> getFolderList()
+	/**
+	 * Refresh the list of folders without waiting for the reply
+	 * <p>
+	 * The list is updated on the thread reading from the server, as for
+	 * UAConnection.sendAsync()
+	 * @return future sorted list of folders, failing with WrongEDFException if the reply is not valid
+	 */
+	public CompletableFuture<List<Folder>> refreshAsync()
 	{
-		ArrayList<Folder> folderlist = new ArrayList<Folder>(folders.values());
-
-		// Ewww, ewww, ewww, ewww, ewww
-		// FIXME - this shit is just for testing
-		Collections.sort(folderlist, new Comparator<Folder>() {
-			public int compare(org.ua2.clientlib.Folder arg0,
-					org.ua2.clientlib.Folder arg1) {
+		UAConnection connection = (UAConnection) ua.get(UAConnection.class);
+		
+		EDFData request = new EDFData("request", "folder_list");
 
-				return arg0.name.compareToIgnoreCase(arg1.name);
+		return connection.sendAsync(request).thenApply(new Function<EDFData, List<Folder>>()
+		{
+			public List<Folder> apply(EDFData reply)
+			{
+				try
+				{
+					folders.update(reply);
+				}
+				catch(WrongEDFException e)
+				{
+					throw new CompletionException(e);
+				}
+				
+				return getFolderList();
 			}
 		});
-		
-		return folderlist;
+	}
+	
+	/**
+	 * Bring the list up to date with a folder_list reply
+	 * <p>
+	 * The reply is compared with the last one, and only the folders which were
+	 * added, removed or changed are decoded and touched. Changed folders are
+	 * updated in place (see ListListener). A reply with a folder which isn't
+	 * valid changes nothing.
+	 * @param reply	&lt;reply="folder_list"&gt;
+	 * @throws WrongEDFException a folder in the reply is not valid
+	 */
+	public void update(EDFData reply) throws WrongEDFException
+	{
+		folders.update(reply);
+	}
+	
+	public List<Folder> getFolderList()
+	{
+		return folders.sorted();
 	}
 	
 	/**
@@ -0,0 +1,201 @@
+package org.ua2.clientlib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.ua2.clientlib.exception.WrongEDFException;
+import org.ua2.edf.EDFBindException;
+import org.ua2.edf.EDFCodec;
+import org.ua2.edf.EDFData;
+import org.ua2.edf.EDFDiff;
+
+/**
+ * The items of a FolderList or UserList by name, kept up to date from each
+ * refresh
+ * <p>
+ * Each reply is compared with the last one by EDFDiff, which matches the
+ * entries (eg. &lt;folder=2&gt;) on their name and value, so only the
+ * entries which were added, removed or changed are decoded, and unchanged
+ * items are never rebuilt. Changed items are updated in place, so whoever
+ * holds one sees the change, and renames are followed. Every entry which
+ * changed is decoded before any item is touched, so a reply which isn't
+ * valid changes nothing and the next is compared with the same reply.
+ *
+ * @author brian
+ *
+ */
+abstract class KeyedList<T>
+{
+	private final EDFCodec<T> codec;
+
+	private final ConcurrentHashMap<String, T> items = new ConcurrentHashMap<String, T>();
+	private final CopyOnWriteArrayList<ListListener<T>> listeners = new CopyOnWriteArrayList<ListListener<T>>();
+
+	// The reply the items are up to date with, and the items by id. Guarded by this
+	private EDFData previous = new EDFData("reply");
+	private final HashMap<Integer, T> ids = new HashMap<Integer, T>();
+
+	/**
+	 * @param codec	Codec for the entries of a reply
+	 */
+	KeyedList(EDFCodec<T> codec)
+	{
+		this.codec = codec;
+	}
+
+	abstract int id(T item);
+
+	abstract String name(T item);
+
+	/**
+	 * @return true if a fresh item describes the same as an existing one
+	 */
+	abstract boolean same(T item, T fresh);
+
+	/**
+	 * Update an existing item from a fresh one
+	 */
+	abstract void copy(T fresh, T item);
+
+	void addListener(ListListener<T> listener)
+	{
+		listeners.add(listener);
+	}
+
+	void removeListener(ListListener<T> listener)
+	{
+		listeners.remove(listener);
+	}
+
+	T get(String name)
+	{
+		return items.get(name);
+	}
+
+	/**
+	 * @return the items, sorted by name
+	 */
+	List<T> sorted()
+	{
+		ArrayList<T> list = new ArrayList<T>(items.values());
+
+		// Ewww, ewww, ewww, ewww, ewww
+		// FIXME - this shit is just for testing
+		Collections.sort(list, new Comparator<T>()
+		{
+			public int compare(T arg0, T arg1)
+			{
+				return name(arg0).compareToIgnoreCase(name(arg1));
+			}
+		});
+
+		return list;
+	}
+
+	/**
+	 * Bring the items up to date with a list reply
+	 * @param reply	Reply, eg. &lt;reply="folder_list"&gt;
+	 * @throws WrongEDFException an entry in the reply which changed is not valid
+	 */
+	synchronized void update(EDFData reply) throws WrongEDFException
+	{
+		// Work out what has changed before touching anything
+		List<T> added = new ArrayList<T>();
+		List<T> removed = new ArrayList<T>();
+		List<T> changed = new ArrayList<T>();
+		List<T> changes = new ArrayList<T>();
+		try
+		{
+			for(EDFDiff.Change change : EDFDiff.diff(previous, reply))
+			{
+				if(!change.getName().equalsIgnoreCase(codec.getElement()))
+				{
+					// Not an entry, eg. <numfolders>
+					continue;
+				}
+
+				switch(change.getKind())
+				{
+					case ADDED:
+						added.add(codec.decode(change.getAfter()));
+						break;
+
+					case REMOVED:
+						T gone = ids.get(id(codec.decode(change.getBefore())));
+						if(gone != null)
+						{
+							removed.add(gone);
+						}
+						break;
+
+					case CHANGED:
+						T fresh = codec.decode(change.getAfter());
+						T item = ids.get(id(fresh));
+						if(item == null)
+						{
+							added.add(fresh);
+						}
+						else if(!same(item, fresh))
+						{
+							changed.add(item);
+							changes.add(fresh);
+						}
+						break;
+				}
+			}
+		}
+		catch(EDFBindException e)
+		{
+			throw new WrongEDFException(e.getMessage(), e);
+		}
+
+		for(T item : removed)
+		{
+			ids.remove(id(item));
+			items.remove(name(item), item);
+		}
+
+		for(int i = 0; i < changed.size(); i++)
+		{
+			T item = changed.get(i);
+			String oldname = name(item);
+
+			copy(changes.get(i), item);
+			if(!oldname.equals(name(item)))
+			{
+				// Renamed, unless another item has already taken the old name
+				items.remove(oldname, item);
+			}
+			items.put(name(item), item);
+		}
+
+		for(T item : added)
+		{
+			ids.put(id(item), item);
+			items.put(name(item), item);
+		}
+
+		previous = reply;
+
+		for(ListListener<T> listener : listeners)
+		{
+			for(T item : removed)
+			{
+				listener.removed(item);
+			}
+			for(T item : changed)
+			{
+				listener.changed(item);
+			}
+			for(T item : added)
+			{
+				listener.added(item);
+			}
+		}
+	}
+}
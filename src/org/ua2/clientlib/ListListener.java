@@ -0,0 +1,23 @@
+package org.ua2.clientlib;
+
+/**
+ * Told about the items of a FolderList or UserList which change when it is
+ * refreshed, so that only those need redisplaying
+ * <p>
+ * Methods are called on the thread doing the refresh, after the list has
+ * been updated.
+ * 
+ * @author brian
+ *
+ */
+public interface ListListener<T>
+{
+	void added(T item);
+	
+	void removed(T item);
+	
+	/**
+	 * The item's fields have been updated in place
+	 */
+	void changed(T item);
+}
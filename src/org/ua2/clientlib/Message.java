@@ -1,8 +1,14 @@
 package org.ua2.clientlib;
 
 import org.ua2.clientlib.exception.*;
+import org.ua2.edf.EDFBindException;
+import org.ua2.edf.EDFCodec;
+import org.ua2.edf.EDFCodecs;
 import org.ua2.edf.EDFData;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
 /**
  * This class represents a message on UA, and all that can be done with it
  * @author brian
@@ -50,6 +56,70 @@ public class Message
 	// FIXME - not decided how to deal with this yet
 	private UAConnection ua;
 	
+	/**
+	 * Binds &lt;message=[number]&gt;, as found in a message_list reply, to a POST
+	 */
+	public static final EDFCodec<Message> CODEC = fields(EDFCodec.builder("message", new EDFCodec.Factory<Message>() {
+			public Message create() { return new Message(MessageType.POST); }
+		})
+		.integerValue(new EDFCodec.IntField<Message>() {
+			public void set(Message message, int value) { message.id = value; }
+		})
+		.string("subject", new EDFCodec.StringField<Message>() {
+			public void set(Message message, String value) { message.subject = value; }
+		}, false)
+		.integer("folderid", new EDFCodec.IntField<Message>() {
+			public void set(Message message, int value) { message.folderid = value; }
+		}, false)
+		// Only the message's immediate parent, which comes before the rest of its ancestors
+		.integer("replyto", new EDFCodec.IntField<Message>() {
+			public void set(Message message, int value) { message.inreplyto = value; }
+		}, false)
+		.first("replyto"))
+		.build();
+	
+	/**
+	 * Binds &lt;announce="user_page"&gt; to a PAGE
+	 */
+	public static final EDFCodec<Message> PAGE_CODEC = fields(EDFCodec.builder("announce", new EDFCodec.Factory<Message>() {
+			public Message create() { return new Message(MessageType.PAGE); }
+		})
+		.stringValue(new EDFCodec.StringField<Message>() {
+			public void set(Message message, String value) { }
+		}))
+		.build();
+
+	static
+	{
+		EDFCodecs.register(Message.class, CODEC);
+	}
+	
+	/**
+	 * Bind the fields which posts and pages share
+	 */
+	private static EDFCodec.Builder<Message> fields(EDFCodec.Builder<Message> builder)
+	{
+		return builder
+			.integer("date", new EDFCodec.IntField<Message>() {
+				public void set(Message message, int value) { message.date = value; }
+			}, false)
+			.integer("fromid", new EDFCodec.IntField<Message>() {
+				public void set(Message message, int value) { message.fromid = value; }
+			}, false)
+			.string("fromname", new EDFCodec.StringField<Message>() {
+				public void set(Message message, String value) { message.from = value; }
+			}, false)
+			.integer("toid", new EDFCodec.IntField<Message>() {
+				public void set(Message message, int value) { message.toid = value; }
+			}, false)
+			.string("toname", new EDFCodec.StringField<Message>() {
+				public void set(Message message, String value) { message.to = value; }
+			}, false)
+			.string("text", new EDFCodec.StringField<Message>() {
+				public void set(Message message, String value) { message.body = value; }
+			}, false);
+	}
+	
 	/**
 	 * Create a blank Message
 	 */
@@ -57,14 +127,30 @@ public class Message
 	{
 	}
 	
+	private Message(MessageType type)
+	{
+		this.type = type;
+	}
+	
 	/**
 	 * Create a Message based on an EDFData tree
 	 * <p>
-	 * @param edftree	EDF data representing &lt;announcement="user_page"&gt;
+	 * @param edftree	EDF data representing &lt;announcement="user_page"&gt;, or a &lt;message&gt; from a message_list reply
+	 * @throws WrongEDFException the EDFData tree didn't contain the correct information to describe a message
 	 */
-	public Message(EDFData edftree)
+	public Message(EDFData edftree) throws WrongEDFException
 	{
+		EDFCodec<Message> codec = (edftree.getName().equals("message") ? CODEC : PAGE_CODEC);
 		
+		type = (codec == CODEC ? MessageType.POST : MessageType.PAGE);
+		try
+		{
+			codec.decode(edftree, this);
+		}
+		catch(EDFBindException e)
+		{
+			throw new WrongEDFException(e.getMessage(), e);
+		}
 	}
 	
 	/**
@@ -114,6 +200,32 @@ public class Message
 	 * @throws NoConnectionError not connected to UA for some reason
 	 */
 	public Reason post() throws MessageInvalidOperation, MessageInvalidData, NoConnectionError
+	{
+		return postReason(ua.sendAndRead(postRequest()));
+	}
+	
+	/**
+	 * Post the message without waiting for the reply
+	 * @return future reason code, failing with NoConnectionError if not connected to UA
+	 * @throws MessageInvalidOperation attempting to post something which can't be posted
+	 * @throws MessageInvalidData some data is missing (eg no subject line) or incorrectly specified
+	 * @see UAConnection#sendAsync(EDFData)
+	 */
+	public CompletableFuture<Reason> postAsync() throws MessageInvalidOperation, MessageInvalidData
+	{
+		return ua.sendAsync(postRequest()).thenApply(new Function<EDFData, Reason>()
+		{
+			public Reason apply(EDFData reply)
+			{
+				return postReason(reply);
+			}
+		});
+	}
+	
+	/**
+	 * Check the message can be posted, and build the request
+	 */
+	private EDFData postRequest() throws MessageInvalidOperation, MessageInvalidData
 	{
 		switch(type)
 		{
@@ -155,9 +267,12 @@ public class Message
 			post.add("toid", toid);
 		}
 		
-		EDFData reply = ua.sendAndRead(post);
-		
-		if(reply.sValue.equals("message_add"))
+		return post;
+	}
+	
+	private static Reason postReason(EDFData reply)
+	{
+		if(reply.getString().equals("message_add"))
 		{
 			// Message added successfully
 			return Reason.OK;
@@ -171,6 +286,31 @@ public class Message
 	}
 	
 	public Reason page() throws MessageInvalidOperation, NoConnectionError
+	{
+		return pageReason(ua.sendAndRead(pageRequest()));
+	}
+	
+	/**
+	 * Page the message without waiting for the reply
+	 * @return future reason code, failing with NoConnectionError if not connected to UA
+	 * @throws MessageInvalidOperation attempting to page something which can't be paged
+	 * @see UAConnection#sendAsync(EDFData)
+	 */
+	public CompletableFuture<Reason> pageAsync() throws MessageInvalidOperation
+	{
+		return ua.sendAsync(pageRequest()).thenApply(new Function<EDFData, Reason>()
+		{
+			public Reason apply(EDFData reply)
+			{
+				return pageReason(reply);
+			}
+		});
+	}
+	
+	/**
+	 * Check the message can be paged, and build the request
+	 */
+	private EDFData pageRequest() throws MessageInvalidOperation
 	{
 		switch(type)
 		{
@@ -195,24 +335,27 @@ public class Message
 		page.add("toid", toid);
 		page.add("text", body);
 		
-		EDFData reply = ua.sendAndRead(page);
-		
-		if(reply.sValue.equals("user_contact"))
+		return page;
+	}
+	
+	private static Reason pageReason(EDFData reply)
+	{
+		if(reply.getString().equals("user_contact"))
 		{
 			return Reason.OK;
 		}
 		
-		if(reply.sValue.equals("user_busy"))
+		if(reply.getString().equals("user_busy"))
 		{
 			return Reason.PAGE_BUSY;
 		}
 		
-		if(reply.sValue.equals("user_not_on"))
+		if(reply.getString().equals("user_not_on"))
 		{
 			return Reason.PAGE_UNAVAIL;
 		}
 		
-		if(reply.sValue.equals("user_not_exist"))
+		if(reply.getString().equals("user_not_exist"))
 		{
 			return Reason.NOSUCHRECIPIENT;
 		}
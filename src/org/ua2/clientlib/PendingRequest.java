@@ -0,0 +1,107 @@
+package org.ua2.clientlib;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.ua2.clientlib.exception.NoConnectionError;
+
+/**
+ * A request which has been sent and is waiting for its reply
+ * <p>
+ * The UA server answers requests in the order they were sent, so a
+ * UAConnection keeps its PendingRequests in a FIFO and completes the
+ * oldest with each reply. A request stays in the FIFO until its reply
+ * arrives even if its future has been cancelled or has timed out, so that
+ * later replies still go to the right requests; the late reply is dropped.
+ *
+ * @author brian
+ *
+ */
+class PendingRequest {
+	// Applied to the reply as it is read, if not null
+	final EDFReplyReader<?> reader;
+
+	// The EDFData reply, or the outcome of the EDFReplyReader
+	final CompletableFuture<Object> reply = new CompletableFuture<Object>();
+
+	// Where the request ends in the connection's output, and when it had
+	// all been written out, from System.nanoTime()
+	long end;
+	volatile long sent;
+
+	// Checks the connection hasn't gone silent, until the reply arrives
+	private volatile UATimerWheel.Timeout watchdog;
+	private volatile boolean answered = false;
+
+	PendingRequest(EDFReplyReader<?> reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * @return false if the request had already timed out or been cancelled
+	 */
+	boolean complete(Object value) {
+		return reply.complete(value);
+	}
+
+	boolean fail(Throwable t) {
+		return reply.completeExceptionally(t);
+	}
+
+	/**
+	 * The connection has gone, so the reply will never come
+	 */
+	void abandon() {
+		fail(new NoConnectionError(NoConnectionError.Reason.CONNECTIONLOST));
+	}
+
+	/**
+	 * Fail with NoConnectionError TIMEDOUT unless the reply arrives in time.
+	 * The deadline is kept on the shared timer wheel
+	 */
+	void expireAfter(long timeout, TimeUnit unit) {
+		final UATimerWheel.Timeout expiry = UATimerWheel.SHARED.schedule(new Runnable() {
+			public void run() {
+				fail(new NoConnectionError(NoConnectionError.Reason.TIMEDOUT));
+			}
+		}, timeout, unit);
+
+		reply.whenComplete(new BiConsumer<Object, Throwable>() {
+			public void accept(Object value, Throwable t) {
+				expiry.cancel();
+			}
+		});
+	}
+
+	/**
+	 * The request has all been written out. Run a check on the timer thread
+	 * unless the reply arrives first. Unlike the deadline, this isn't
+	 * stopped by the request timing out or being cancelled, since its reply
+	 * is still to come
+	 *
+	 * @param idle
+	 *            Run on the timer thread if answered() hasn't been called
+	 */
+	void watch(long timeout, TimeUnit unit, Runnable idle) {
+		sent = System.nanoTime();
+		watchdog = UATimerWheel.SHARED.schedule(idle, timeout, unit);
+	}
+
+	/**
+	 * The reply has arrived, or the connection has gone. If the watch was
+	 * only just being set up it may still run, so the check must call
+	 * isAnswered()
+	 */
+	void answered() {
+		answered = true;
+		UATimerWheel.Timeout current = watchdog;
+		if (current != null) {
+			current.cancel();
+		}
+	}
+
+	boolean isAnswered() {
+		return answered;
+	}
+}
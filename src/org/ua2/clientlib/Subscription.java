@@ -0,0 +1,69 @@
+package org.ua2.clientlib;
+
+import java.util.function.Predicate;
+
+import org.ua2.edf.EDFData;
+
+/**
+ * A handler's subscription to announcements, returned by
+ * AnnounceQueue.subscribe() so that it can be unsubscribed
+ *
+ * @author brian
+ *
+ */
+public class Subscription
+{
+	private final AnnounceRouter router;
+
+	final String topic;
+	final Predicate<EDFData> filter;
+	final EDFAnnouncement handler;
+
+	private volatile boolean active = true;
+
+	Subscription(AnnounceRouter router, String topic, Predicate<EDFData> filter, EDFAnnouncement handler)
+	{
+		this.router = router;
+		this.topic = topic;
+		this.filter = filter;
+		this.handler = handler;
+	}
+
+	/**
+	 * @return announcement name, or pattern, subscribed to
+	 */
+	public String getTopic()
+	{
+		return topic;
+	}
+
+	/**
+	 * @return false once unsubscribed
+	 */
+	public boolean isActive()
+	{
+		return active;
+	}
+
+	/**
+	 * Stop the handler being given announcements. An announcement already
+	 * being handled on another thread may still reach it. Does nothing if
+	 * already unsubscribed
+	 */
+	public void unsubscribe()
+	{
+		if(active)
+		{
+			active = false;
+			router.remove(this);
+		}
+	}
+
+	/**
+	 * @return true if the handler wants an announcement
+	 */
+	boolean accepts(EDFData announcement)
+	{
+		return active && (filter == null || filter.test(announcement));
+	}
+}
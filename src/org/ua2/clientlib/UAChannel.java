@@ -0,0 +1,251 @@
+package org.ua2.clientlib;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.ua2.edf.EDFData;
+import org.ua2.edf.EDFFormatException;
+import org.ua2.edf.EDFIncrementalParser;
+
+/**
+ * The non-blocking socket of a UAConnection served by a UAEngine
+ * <p>
+ * The channel starts out blocking, for the &lt;edf="on"/&gt; exchange made
+ * while connecting, and is then handed to the engine. Output is coalesced
+ * in a direct buffer and written, when flushed, as far as the socket will
+ * take it; the engine writes the rest when the socket is ready.
+ *
+ * @author brian
+ *
+ */
+class UAChannel implements EDFIncrementalParser.Handler {
+	private static final int INITIAL_SIZE = 8 * 1024;
+
+	private final UAConnection connection;
+	private final SocketChannel channel;
+	private final EDFIncrementalParser parser;
+
+	private Selector selector;
+	private SelectionKey key;
+
+	// Elements read before the engine took over, null once it has
+	private List<EDFData> early = new ArrayList<EDFData>();
+
+	// Output not yet written. Guarded by this
+	private final UAOutput output = new UAOutput(new UAOutput.Sink() {
+		public void write(ByteBuffer buffer) throws IOException {
+			do {
+				channel.write(buffer);
+			} while (buffer.hasRemaining() && channel.isBlocking());
+		}
+	}, true);
+
+	private static final Logger logger = Logger.getLogger(UAChannel.class);
+
+	/**
+	 * Connect to the server
+	 */
+	UAChannel(UAConnection connection, String host, int port, boolean lazystrings) throws IOException {
+		this.connection = connection;
+
+		channel = SocketChannel.open();
+		connection.configure(channel.socket());
+		channel.connect(new InetSocketAddress(host, port));
+		output.setThreshold(connection.getFlushThreshold());
+
+		parser = new EDFIncrementalParser(this);
+		parser.setLazyStrings(lazystrings);
+	}
+
+	/**
+	 * Send an element and wait for the first element from the server. Only
+	 * used before start()
+	 *
+	 * @return the first element from the server
+	 */
+	EDFData handshake(EDFData edf) throws IOException {
+		send(edf, true);
+
+		ByteBuffer buffer = ByteBuffer.allocate(INITIAL_SIZE);
+		while (early.isEmpty()) {
+			buffer.clear();
+			if (channel.read(buffer) == -1) {
+				throw new EOFException("Connection closed by server");
+			}
+			buffer.flip();
+			parser.feed(buffer);
+		}
+
+		return early.remove(0);
+	}
+
+	/**
+	 * Hand the channel over to an engine
+	 */
+	void start(UAEngine engine) throws IOException {
+		channel.configureBlocking(false);
+		engine.register(this);
+	}
+
+	void setSelector(Selector selector) {
+		this.selector = selector;
+	}
+
+	/**
+	 * Called on the I/O thread to start serving the channel
+	 */
+	void register(Selector selector) {
+		try {
+			synchronized (this) {
+				int ops = SelectionKey.OP_READ;
+				if (output.isStalled()) {
+					ops |= SelectionKey.OP_WRITE;
+				}
+				key = channel.register(selector, ops, this);
+			}
+		} catch (ClosedChannelException e) {
+			// Closed while waiting to be registered
+			return;
+		}
+
+		List<EDFData> elements = early;
+		early = null;
+		for (EDFData element : elements) {
+			element(element);
+		}
+	}
+
+	/**
+	 * Called by the parser with each element from the server
+	 */
+	public void element(EDFData element) {
+		if (early != null) {
+			early.add(element);
+			return;
+		}
+
+		try {
+			if (!connection.dispatch(element)) {
+				close();
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Called on the I/O thread when the channel can be read
+	 *
+	 * @param buffer
+	 *            The I/O thread's read buffer
+	 */
+	void read(ByteBuffer buffer) {
+		try {
+			buffer.clear();
+			int count = channel.read(buffer);
+			if (count == -1) {
+				throw new EOFException("Connection closed by server");
+			}
+			connection.received();
+
+			buffer.flip();
+			parser.feed(buffer);
+		} catch (EDFFormatException e) {
+			logger.error("Cannot parse EDF", e);
+			fail(e);
+		} catch (IOException e) {
+			logger.error("Exception during EDF read", e);
+			fail(e);
+		}
+	}
+
+	/**
+	 * Encode an element, and write as much of the output as the socket will
+	 * take if it is being flushed
+	 */
+	synchronized void send(EDFData edf, boolean flush) throws IOException {
+		output.write(edf, flush);
+		updateInterest();
+	}
+
+	/**
+	 * Write out everything sent so far
+	 */
+	synchronized void flush() throws IOException {
+		flushPending();
+	}
+
+	UAOutput getOutput() {
+		return output;
+	}
+
+	/**
+	 * Called on the I/O thread when the channel can be written
+	 */
+	void write() {
+		try {
+			synchronized (this) {
+				flushPending();
+			}
+			connection.written();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Write pending output, asking the engine to carry on with any the
+	 * socket won't take yet. Called holding the lock
+	 */
+	private void flushPending() throws IOException {
+		output.flush();
+		updateInterest();
+	}
+
+	/**
+	 * Only ask the engine to write when a flush has stalled, so output held
+	 * back for coalescing stays held back. Called holding the lock
+	 */
+	private void updateInterest() {
+		if (key != null && key.isValid()) {
+			int ops = (output.isStalled() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+			try {
+				if (key.interestOps() != ops) {
+					key.interestOps(ops);
+					selector.wakeup();
+				}
+			} catch (CancelledKeyException e) {
+				// Closed by another thread, which will have failed the connection
+			}
+		}
+	}
+
+	/**
+	 * The channel has failed. The connection records the error and closes it
+	 */
+	void fail(Throwable t) {
+		connection.handleError(t);
+	}
+
+	/**
+	 * Close the channel. Safe to call from any thread, and more than once
+	 */
+	void close() {
+		try {
+			// Cancels the key too
+			channel.close();
+		} catch (IOException e) {
+			// Ignore it
+		}
+	}
+}
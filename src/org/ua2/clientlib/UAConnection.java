@@ -1,17 +1,35 @@
 package org.ua2.clientlib;
 
-import java.io.DataOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.util.concurrent.SynchronousQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 import org.ua2.clientlib.exception.NoConnectionError;
+import org.ua2.clientlib.exception.UAException;
 import org.ua2.edf.EDFData;
+import org.ua2.edf.EDFFormatException;
+import org.ua2.edf.EDFReader;
+import org.ua2.edf.parser.EDFByteParser;
 import org.ua2.edf.parser.EDFParser;
+import org.ua2.edf.parser.EDFTreeParser;
 import org.ua2.edf.parser.ParseException;
 import org.ua2.edf.parser.TokenMgrError;
 
@@ -27,25 +45,115 @@ public class UAConnection implements Runnable {
 
 	private Socket connection;
 	private InputStream input;
-	private DataOutputStream output;
-	private EDFParser inputparser;
+	private UAOutput output;
+	private EDFTreeParser inputparser;
+	private EDFReader inputreader;
+
+	// Set when the connection is served by a UAEngine rather than its own thread
+	private UAEngine engine;
+	private UAChannel channel;
+
+	// Makes the reader thread
+	private ThreadFactory threadfactory = UAThreads.platform("Reader-");
+
+	// Locks rather than monitors, so virtual threads waiting for a reply or
+	// blocked writing don't pin their carrier threads
+	private final ReentrantLock requestlock = new ReentrantLock();
+	private final ReentrantLock outputlock = new ReentrantLock();
 
 	public enum ConnectionStatus {
 		NOTCONNECTED, CONNECTFAILED, CONNECTED, LOSTCONNECTION
 	};
 
+	/**
+	 * The parser used to read EDF from the server
+	 * <p>
+	 * JAVACC is the generated reference parser, BYTE is the hand-written
+	 * parser which works directly on the UTF-8 input
+	 */
+	public enum ParserType {
+		JAVACC, BYTE
+	};
+
+	private ParserType parsertype = ParserType.JAVACC;
+	private boolean lazystrings = false;
+
+	// Socket options, 0 for the system's buffer sizes
+	private boolean tcpnodelay = true;
+	private boolean keepalive = false;
+	private int sendbuffersize = 0;
+	private int receivebuffersize = 0;
+
+	// Output is written when a send asks for it or the buffer reaches the
+	// threshold
+	private volatile boolean autoflush = true;
+	private int flushthreshold = UAOutput.DEFAULT_THRESHOLD;
+
 	public ConnectionStatus status = ConnectionStatus.NOTCONNECTED;
 	public String statusmessage = "Not connected";
 
-	// SynchronousQueue is a "queue" which only allows one item on it
-	// It blocks on write until something comes along and reads it, and
-	// blocks on read until something writes to it.
-	private SynchronousQueue<EDFData> reply = new SynchronousQueue<EDFData>();
+	// Requests which have been sent and not answered, oldest first. The
+	// server answers in order, so each reply completes the head of the FIFO.
+	// Requests are added in the same order as they are written, under the
+	// output lock
+	private ConcurrentLinkedQueue<PendingRequest> pending = new ConcurrentLinkedQueue<PendingRequest>();
+
+	// A slot for each request in the FIFO. Callers waiting for their reply
+	// wait for a slot, the reader thread only ever gives them back
+	private Semaphore slots = new Semaphore(Integer.MAX_VALUE);
+	private int maxpending = Integer.MAX_VALUE;
+
+	// Requests sent without waiting which are held back until there is a
+	// slot for them, oldest first
+	private final ConcurrentLinkedQueue<HeldRequest> held = new ConcurrentLinkedQueue<HeldRequest>();
+
+	// Requests in the output which haven't all been written out yet, oldest
+	// first. Their idle timeout only starts once they have
+	private final ConcurrentLinkedQueue<PendingRequest> unwatched = new ConcurrentLinkedQueue<PendingRequest>();
+
+	// Replies nobody was waiting for any more, and replies to nothing
+	private final AtomicLong latereplies = new AtomicLong();
+	private final AtomicLong unmatchedreplies = new AtomicLong();
+
+	// Let sendAndRead callers have requests in flight at the same time
+	private volatile boolean pipelined = false;
+
+	/**
+	 * Time allowed for a reply, in milliseconds, unless set for the request
+	 */
+	public static final long DEFAULT_TIMEOUT = 60 * 1000;
+
+	/**
+	 * Time the server may send nothing at all while a request is waiting,
+	 * in milliseconds, before the connection is taken to be dead
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+
+	// Time allowed for a reply to each request, and to anything else
+	private final ConcurrentHashMap<String, Long> timeouts = defaultTimeouts();
+	private volatile long timeout = DEFAULT_TIMEOUT;
+	private volatile long idletimeout = DEFAULT_IDLE_TIMEOUT;
+
+	// When input last arrived from the server, from System.nanoTime()
+	private volatile long lastinput = System.nanoTime();
 
 	private AnnounceQueue announcequeue = new AnnounceQueue();
 
 	private static final Logger logger = Logger.getLogger(UAConnection.class);
 
+	/**
+	 * A request waiting for a slot before it can be written out
+	 */
+	private static class HeldRequest {
+		final EDFData send;
+		final PendingRequest request;
+
+		HeldRequest(EDFData send, PendingRequest request) {
+			this.send = send;
+			this.request = request;
+		}
+	}
+
 	/**
 	 * This code is run in its own thread, started when the UA server connection
 	 * is established
@@ -62,54 +170,171 @@ public class UAConnection implements Runnable {
 			// Loop round parsing the input
 			while (status == ConnectionStatus.CONNECTED) {
 				logger.trace("Status " + status);
-				inputedf = readEDF();
-				if (inputedf == null) {
-					break;
-				}
 
-				/*
-				 * EDF from the server can be one of three things edf - response
-				 * to connection message <edf="on"/>. Not used here reply -
-				 * reply to a request announce - unsolicited announcement
-				 */
-
-				if (inputedf.name.equals("announce")) {
-					// Pass to the announcement handler
-					announcequeue.announce(inputedf);
-					if (logger.isTraceEnabled()) logger.trace("Announcement:\n" + inputedf.format(true));
-				} else if (inputedf.name.equals("reply")) {
-					try {
-						if (logger.isTraceEnabled())
-							logger.trace("Reply:\n" + inputedf.format(true));
-
-						// FIXME - needs a timeout.
-						reply.put(inputedf);
-					} catch (Exception e) {
-						// Something went wrong
-						setStatus(
-								ConnectionStatus.NOTCONNECTED,
-								"Internal error in server: "
-										+ e.getLocalizedMessage());
-						closeConnection();
-
-						logger.error("Parser thread interrupted on put", e);
-
-						//
-						// Exit this thread (Thread.currentThread().stop() is
-						// deprecated)
-						return;
+				if (inputreader != null) {
+					// Look at the element name before deciding whether to
+					// build a tree for it
+					if (!readElementStart()) {
+						break;
 					}
+
+					if (inputreader.getName().equals("reply")) {
+						// Taken off the FIFO in one go, so that abandonRequests()
+						// can't take it in between
+						PendingRequest request = nextRequest();
+						if (request != null && request.reply.isDone()) {
+							// Nothing to build the reply for
+							dropLateReply(request);
+							inputreader.skipElement();
+						} else if (request != null && request.reader != null) {
+							readReply(request, inputreader);
+						} else {
+							reply(request, inputreader.readTree());
+						}
+						continue;
+					}
+
+					inputedf = inputreader.readTree();
 				} else {
-					// FIXME - what should we do with unknown EDF messages?
-					logger.error("Unknown EDF response:\n"
-							+ inputedf.format(true));
+					inputedf = readEDF();
+					if (inputedf == null) {
+						break;
+					}
+				}
+
+				if (!dispatch(inputedf)) {
+					return;
 				}
 			}
 
 			logger.info("End of run");
+
+			// Nothing will read the replies now
+			abandonRequests();
 		} catch (Exception e) {
 			logger.error("Stopped loop due to error", e);
+			handleError(e);
+		}
+	}
+
+	/**
+	 * Routes an EDF tree from the server, either making it available as a
+	 * reply or pushing it onto the announcement FIFO. Called by run(), or by
+	 * a UAEngine I/O thread
+	 * 
+	 * @param inputedf
+	 *            EDF tree read from the server
+	 * @return false if the connection has been closed
+	 */
+	boolean dispatch(EDFData inputedf) throws IOException {
+		/*
+		 * EDF from the server can be one of three things edf - response
+		 * to connection message <edf="on"/>. Not used here reply -
+		 * reply to a request announce - unsolicited announcement
+		 */
+
+		if (inputedf.name.equals("announce")) {
+			// Pass to the announcement handler
+			announcequeue.announce(inputedf);
+			if (logger.isTraceEnabled()) logger.trace("Announcement:\n" + inputedf.format(true));
+		} else if (inputedf.name.equals("reply")) {
+			reply(nextRequest(), inputedf);
+		} else {
+			// FIXME - what should we do with unknown EDF messages?
+			logger.error("Unknown EDF response:\n"
+					+ inputedf.format(true));
+		}
+
+		return true;
+	}
+
+	/**
+	 * Completes a request with its reply
+	 * 
+	 * @param request
+	 *            PendingRequest taken off the FIFO for the reply, or null if
+	 *            there wasn't one
+	 * @param inputedf
+	 *            EDF tree of the reply
+	 */
+	private void reply(PendingRequest request, EDFData inputedf) throws IOException {
+		if (logger.isTraceEnabled())
+			logger.trace("Reply:\n" + inputedf.format(true));
+
+		if (request == null) {
+			// FIXME - what should we do with replies to nothing?
+			unmatchedreplies.incrementAndGet();
+			logger.error("Reply with no request outstanding:\n" + inputedf.format(true));
+			return;
+		}
+
+		if (request.reply.isDone()) {
+			dropLateReply(request);
+		} else if (request.reader != null) {
+			EDFReader treereader = EDFReader.create(inputedf);
+			treereader.next();
+			readReply(request, treereader);
+		} else if (!request.complete(inputedf)) {
+			dropLateReply(request);
+		}
+	}
+
+	/**
+	 * Runs the EDFReplyReader for a request over its reply, completing the
+	 * request with the result or the exception thrown, and then skips
+	 * anything it left unread
+	 * 
+	 * @param request
+	 *            PendingRequest the reply is for
+	 * @param reader
+	 *            EDFReader on the START_ELEMENT of the reply
+	 */
+	private void readReply(PendingRequest request, EDFReader reader) throws IOException {
+		int depth = reader.getDepth();
+
+		try {
+			if (!request.complete(request.reader.read(reader))) {
+				dropLateReply(request);
+			}
+		} catch (IOException e) {
+			// The input itself is broken
+			request.fail(e);
+			throw e;
+		} catch (Exception e) {
+			request.fail(e);
+		}
+
+		while (reader.getEvent() != EDFReader.Event.END_ELEMENT || reader.getDepth() != depth) {
+			if (reader.next() == EDFReader.Event.END_DOCUMENT) {
+				throw new EDFFormatException("Unexpected end of input in <reply>");
+			}
+		}
+	}
+
+	/**
+	 * Takes the oldest request off the FIFO, giving back its slot
+	 * 
+	 * @return the request, or null if there are none
+	 */
+	private PendingRequest nextRequest() {
+		PendingRequest request = pending.poll();
+		if (request != null) {
+			slots.release();
+			request.answered();
+			if (!held.isEmpty()) {
+				sendHeld();
+			}
 		}
+		return request;
+	}
+
+	/**
+	 * Counts a reply which arrived after its request timed out or was
+	 * cancelled
+	 */
+	private void dropLateReply(PendingRequest request) {
+		latereplies.incrementAndGet();
+		if (logger.isDebugEnabled()) logger.debug("Dropped late reply, request " + (request.reply.isCancelled() ? "cancelled" : "timed out"));
 	}
 
 	/**
@@ -137,7 +362,11 @@ public class UAConnection implements Runnable {
 	private void closeConnection() {
 		try {
 			// Close the connection, if it's not already gone away
-			connection.close();
+			if (channel != null) {
+				channel.close();
+			} else {
+				connection.close();
+			}
 		} catch (Exception ex) {
 			// Ignore it
 		}
@@ -154,14 +383,48 @@ public class UAConnection implements Runnable {
 	public boolean connect(String host, int port) throws UnknownHostException,
 			IOException {
 		try {
-			connection = new Socket(host, port);
+			if (engine != null) {
+				return connectChannel(host, port);
+			}
 
-			input = connection.getInputStream();
-			output = new java.io.DataOutputStream(connection.getOutputStream());
+			connection = new Socket();
+			configure(connection);
+			connection.connect(new InetSocketAddress(host, port));
 
-			inputparser = new org.ua2.edf.parser.EDFParser(input);
+			input = new FilterInputStream(connection.getInputStream()) {
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					received();
+					return b;
+				}
 
-			sendEDF(new EDFData("edf", "on"));
+				@Override
+				public int read(byte[] bytes, int offset, int length) throws IOException {
+					int count = super.read(bytes, offset, length);
+					received();
+					return count;
+				}
+			};
+			final OutputStream stream = connection.getOutputStream();
+			output = new UAOutput(new UAOutput.Sink() {
+				public void write(ByteBuffer buffer) throws IOException {
+					stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+					buffer.position(buffer.limit());
+				}
+			}, false);
+			output.setThreshold(flushthreshold);
+
+			if (parsertype == ParserType.BYTE) {
+				EDFByteParser byteparser = new EDFByteParser(input);
+				inputparser = byteparser;
+				inputreader = byteparser.getReader();
+			} else {
+				inputparser = new EDFParser(input);
+			}
+			inputparser.setLazyStrings(lazystrings);
+
+			sendEDF(new EDFData("edf", "on"), true);
 
 			logger.debug("EDF on response:\n" + readEDF().format(true)); // FIXME
 																			// -
@@ -170,38 +433,310 @@ public class UAConnection implements Runnable {
 																			// properly
 			logger.debug("Status: " + statusmessage);
 
+			// The reader thread only runs while the status is CONNECTED, so
+			// this has to be set before it starts
+			setStatus(ConnectionStatus.CONNECTED, "Connected to UA server");
+
 			// Fire up the reader thread
-			Thread thread = new Thread(this);
-			thread.setName("Reader-" + System.currentTimeMillis());
-			thread.start();
+			threadfactory.newThread(this).start();
 		} catch (Exception e) {
 			setStatus(ConnectionStatus.CONNECTFAILED, e.getLocalizedMessage());
 
 			return false;
 		}
 
+		return true;
+	}
+
+	/**
+	 * Connect a non-blocking channel and hand it to the engine
+	 */
+	private boolean connectChannel(String host, int port) throws IOException {
+		channel = new UAChannel(this, host, port, lazystrings);
+
+		// FIXME - handle this properly
+		logger.debug("EDF on response:\n" + channel.handshake(new EDFData("edf", "on")).format(true));
+		logger.debug("Status: " + statusmessage);
+
+		// Replies are only routed while the status is CONNECTED, so this has
+		// to be set before the engine takes over
 		setStatus(ConnectionStatus.CONNECTED, "Connected to UA server");
+		channel.start(engine);
 
 		return true;
 	}
 
 	/**
-	 * Sends an EDF tree to the server
+	 * Serve this connection from a UAEngine, which reads and writes for many
+	 * connections from a few threads, rather than starting a reader thread
+	 * for it. This must be called before connect(). The parser type is
+	 * ignored, since the engine parses input as it arrives. The announcement
+	 * queue can't then use AnnounceQueue.Overflow.BLOCK, which would hold up
+	 * every connection on the engine's I/O thread
+	 * 
+	 * @param engine
+	 *            UAEngine to use, or null for a reader thread
+	 * @throws IllegalStateException
+	 *             the announcement queue's overflow policy is BLOCK
+	 */
+	public void setEngine(UAEngine engine) {
+		announcequeue.setNonBlocking(engine != null);
+		this.engine = engine;
+	}
+
+	public UAEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Apply the socket options, before the socket is connected
+	 */
+	void configure(Socket socket) throws SocketException {
+		socket.setTcpNoDelay(tcpnodelay);
+		socket.setKeepAlive(keepalive);
+		if (sendbuffersize > 0) {
+			socket.setSendBufferSize(sendbuffersize);
+		}
+		if (receivebuffersize > 0) {
+			socket.setReceiveBufferSize(receivebuffersize);
+		}
+	}
+
+	/**
+	 * Send small requests as soon as they are written (TCP_NODELAY), rather
+	 * than letting the system hold them back to fill a packet. Output is
+	 * coalesced here instead, so this is on by default. This must be called
+	 * before connect()
+	 * 
+	 * @param nodelay
+	 *            false to let the system hold back small packets
+	 */
+	public void setTcpNoDelay(boolean nodelay) {
+		tcpnodelay = nodelay;
+	}
+
+	public boolean getTcpNoDelay() {
+		return tcpnodelay;
+	}
+
+	/**
+	 * Turn on TCP keepalive (SO_KEEPALIVE). This must be called before
+	 * connect()
+	 * 
+	 * @param keepalive
+	 *            true to probe an idle connection
+	 */
+	public void setKeepAlive(boolean keepalive) {
+		this.keepalive = keepalive;
+	}
+
+	public boolean getKeepAlive() {
+		return keepalive;
+	}
+
+	/**
+	 * Set the size of the socket's send buffer (SO_SNDBUF). This must be
+	 * called before connect()
+	 * 
+	 * @param size
+	 *            Size in bytes, or 0 to leave it to the system
+	 */
+	public void setSendBufferSize(int size) {
+		sendbuffersize = size;
+	}
+
+	public int getSendBufferSize() {
+		return sendbuffersize;
+	}
+
+	/**
+	 * Set the size of the socket's receive buffer (SO_RCVBUF). This must be
+	 * called before connect()
+	 * 
+	 * @param size
+	 *            Size in bytes, or 0 to leave it to the system
+	 */
+	public void setReceiveBufferSize(int size) {
+		receivebuffersize = size;
+	}
+
+	public int getReceiveBufferSize() {
+		return receivebuffersize;
+	}
+
+	/**
+	 * Choose whether each sendEDF() and sendAsync() is written out straight
+	 * away, which is the default. With auto flush off, requests are held
+	 * back until flush() is called or the flush threshold is reached, so a
+	 * caller sending several can have them go out together. Requests which
+	 * are waited for, by sendAndRead() and sendAndReadAll(), are always
+	 * written out
+	 * 
+	 * @param autoflush
+	 *            false to hold back output until flush()
+	 */
+	public void setAutoFlush(boolean autoflush) {
+		this.autoflush = autoflush;
+	}
+
+	public boolean isAutoFlush() {
+		return autoflush;
+	}
+
+	/**
+	 * Set how much output is held back before it is written without waiting
+	 * for a flush. This must be called before connect()
+	 * 
+	 * @param threshold
+	 *            Size in bytes
+	 */
+	public void setFlushThreshold(int threshold) {
+		flushthreshold = threshold;
+	}
+
+	public int getFlushThreshold() {
+		return flushthreshold;
+	}
+
+	/**
+	 * @return number of EDF elements sent to the server
+	 */
+	public long getSentCount() {
+		UAOutput current = output();
+		return (current != null ? current.getSentCount() : 0);
+	}
+
+	/**
+	 * @return number of writes to the socket. Compared with getSentCount(),
+	 *         shows how well output is being coalesced
+	 */
+	public long getWriteCount() {
+		UAOutput current = output();
+		return (current != null ? current.getWriteCount() : 0);
+	}
+
+	private UAOutput output() {
+		UAChannel current = channel;
+		return (current != null ? current.getOutput() : output);
+	}
+
+	/**
+	 * Set what makes the reader thread, eg. UAThreads.virtual("Reader-") for
+	 * a virtual thread. This must be called before connect(). It isn't used
+	 * if the connection is served by a UAEngine
+	 * 
+	 * @param factory
+	 *            ThreadFactory to use
+	 */
+	public void setThreadFactory(ThreadFactory factory) {
+		threadfactory = factory;
+	}
+
+	/**
+	 * Select the parser used to read EDF from the server. This must be called
+	 * before connect()
+	 * 
+	 * @param type
+	 *            ParserType to use
+	 */
+	public void setParserType(ParserType type) {
+		parsertype = type;
+	}
+
+	public ParserType getParserType() {
+		return parsertype;
+	}
+
+	/**
+	 * Keep string values from the server escaped until they are read with
+	 * EDFData.getString(), so that values which are never read are never
+	 * decoded. This must be called before connect()
+	 * 
+	 * @param lazy
+	 *            true to unescape lazily
+	 * @see org.ua2.edf.EDFData#setEscapedString(String)
+	 */
+	public void setLazyStrings(boolean lazy) {
+		lazystrings = lazy;
+	}
+
+	/**
+	 * Sends an EDF tree to the server, encoded as UTF-8. It is written out
+	 * straight away unless auto flush is off
 	 * 
 	 * @param edf
 	 *            EDFData object to send
 	 * @return true if the sending suceeded, false otherwise
+	 * @see #setAutoFlush(boolean)
 	 */
 	public boolean sendEDF(EDFData edf) {
+		return sendEDF(edf, autoflush);
+	}
+
+	private boolean sendEDF(EDFData edf, boolean flush) {
 		try {
-			String str = edf.toString();
 			if (logger.isTraceEnabled())
-				logger.trace("Writing EDF:" + str);
-			output.writeBytes(str);
+				logger.trace("Writing EDF:" + edf.toString());
+			if (channel != null) {
+				channel.send(edf, flush);
+			} else {
+				outputlock.lock();
+				try {
+					output.write(edf, flush);
+				} finally {
+					outputlock.unlock();
+				}
+			}
+			written();
+		} catch (IOException e) {
+			// Whatever was buffered, and maybe part of this, never goes out,
+			// so nothing waiting on the connection will be answered
+			handleError(e);
+
+			return false;
+		} catch (RuntimeException e) {
+			if (isOutputBroken()) {
+				// Written out part way, so the stream can't be carried on
+				handleError(e);
+			} else {
+				// Dropped whole, so the connection is still usable
+				logger.error("Cannot send EDF", e);
+			}
+
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return true if an element failed after part of it was written out
+	 */
+	private boolean isOutputBroken() {
+		UAOutput current = output();
+		return current != null && current.isBroken();
+	}
+
+	/**
+	 * Writes out everything sent so far
+	 * 
+	 * @return true if the writing succeeded, false otherwise
+	 */
+	public boolean flush() {
+		try {
+			if (channel != null) {
+				channel.flush();
+			} else if (output != null) {
+				outputlock.lock();
+				try {
+					output.flush();
+				} finally {
+					outputlock.unlock();
+				}
+			}
+			written();
 		} catch (Exception e) {
-			// FIXME - is this the right connection status?
-			// FIXME - throw a NoConnectionError exception
-			setStatus(ConnectionStatus.CONNECTFAILED, e.getLocalizedMessage());
+			handleError(e);
 
 			return false;
 		}
@@ -209,17 +744,35 @@ public class UAConnection implements Runnable {
 		return true;
 	}
 
-	private void handleError(Throwable t) {
+	void handleError(Throwable t) {
 		// FIXME - is this the right connection status?
 		// FIXME - throw a NoConnectionError exception
 		setStatus(ConnectionStatus.CONNECTFAILED, t.getLocalizedMessage());
 
 		closeConnection();
+		abandonRequests();
 	}
 
 	void disconnect() {
 		setStatus(ConnectionStatus.NOTCONNECTED, "Disconnected");
 		closeConnection();
+		abandonRequests();
+	}
+
+	/**
+	 * Wake everything waiting for a reply which will never come
+	 */
+	private void abandonRequests() {
+		HeldRequest waiting;
+		while ((waiting = held.poll()) != null) {
+			waiting.request.abandon();
+		}
+		unwatched.clear();
+
+		PendingRequest request;
+		while ((request = nextRequest()) != null) {
+			request.abandon();
+		}
 	}
 
 	/**
@@ -230,6 +783,11 @@ public class UAConnection implements Runnable {
 	public EDFData readEDF() {
 		EDFData edf = null;
 
+		if (inputparser == null) {
+			// Read by the engine, or not connected
+			return null;
+		}
+
 		try {
 			edf = inputparser.elementtree();
 			if (logger.isTraceEnabled()) logger.trace("Read EDF:\n" + edf.format(true));
@@ -249,34 +807,549 @@ public class UAConnection implements Runnable {
 		return null;
 	}
 
-	public synchronized EDFData sendAndRead(EDFData send) throws NoConnectionError {
-		EDFData replymessage = null;
+	/**
+	 * Reads the START_ELEMENT of the next top level element from the server
+	 * 
+	 * @return true if an element was started, false if there was an error
+	 */
+	private boolean readElementStart() {
+		try {
+			if (inputreader.next() == EDFReader.Event.START_ELEMENT) {
+				return true;
+			}
+		} catch (EDFFormatException e) {
+			logger.error("Cannot parse EDF", e);
+			handleError(e);
+		} catch (Exception e) {
+			logger.error("Exception during EDF read", e);
+			handleError(e);
+		}
+
+		logger.info("No element, connection status " + status);
+		return false;
+	}
+
+	/**
+	 * Let several threads calling sendAndRead have requests in flight at the
+	 * same time, rather than each waiting for the request before to be
+	 * answered. Replies are matched to requests in the order they were sent
+	 * 
+	 * @param pipelined
+	 *            true to pipeline requests
+	 */
+	public void setPipelined(boolean pipelined) {
+		this.pipelined = pipelined;
+	}
+
+	public boolean isPipelined() {
+		return pipelined;
+	}
+
+	/**
+	 * @return number of requests sent and not yet answered
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Set the time allowed for replies to requests which have no time of
+	 * their own. A request which times out fails with NoConnectionError
+	 * TIMEDOUT, and its reply is dropped when it arrives. The connection
+	 * stays open; only the idle timeout closes it
+	 * 
+	 * @param millis
+	 *            Time in milliseconds, or 0 to wait as long as the
+	 *            connection lasts
+	 */
+	public void setTimeout(long millis) {
+		timeout = millis;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Set the time allowed for replies to one kind of request. By default
+	 * user_list, which has the largest reply, is allowed longer
+	 * 
+	 * @param request
+	 *            Request name, eg. "user_list"
+	 * @param millis
+	 *            Time in milliseconds, or 0 to wait as long as the
+	 *            connection lasts
+	 * @see #setTimeout(long)
+	 */
+	public void setTimeout(String request, long millis) {
+		timeouts.put(request, millis);
+	}
+
+	/**
+	 * @return time in milliseconds allowed for replies to a request
+	 */
+	public long getTimeout(String request) {
+		Long millis = timeouts.get(request);
+		return (millis != null ? millis : timeout);
+	}
+
+	/**
+	 * Set how long the server may send nothing at all while a request is
+	 * waiting for its reply, counted from when the request has all been
+	 * written out, so output held back by setAutoFlush(false) doesn't count.
+	 * After that the connection is taken to be dead, so it is closed and
+	 * every request waiting on it fails
+	 * 
+	 * @param millis
+	 *            Time in milliseconds, or 0 to wait as long as the
+	 *            connection lasts
+	 * @see #setTimeout(long)
+	 */
+	public void setIdleTimeout(long millis) {
+		idletimeout = millis;
+	}
+
+	public long getIdleTimeout() {
+		return idletimeout;
+	}
+
+	private static ConcurrentHashMap<String, Long> defaultTimeouts() {
+		ConcurrentHashMap<String, Long> timeouts = new ConcurrentHashMap<String, Long>();
+		timeouts.put("user_list", 3 * DEFAULT_TIMEOUT);
+		return timeouts;
+	}
+
+	/**
+	 * Called as input arrives from the server
+	 */
+	void received() {
+		lastinput = System.nanoTime();
+	}
+
+	/**
+	 * Called as output goes out. Starts the idle timeout for each request
+	 * which has now all been written out
+	 */
+	void written() {
+		if (unwatched.isEmpty()) {
+			return;
+		}
+		UAOutput current = output();
+		if (current == null) {
+			return;
+		}
+
+		long total = current.getWrittenBytes();
+		PendingRequest request;
+		while ((request = unwatched.peek()) != null && request.end - total <= 0) {
+			// Another thread may have taken it first
+			if (unwatched.remove(request) && !request.isAnswered()) {
+				watch(request);
+			}
+		}
+	}
+
+	private void watch(final PendingRequest request) {
+		long millis = idletimeout;
+		if (millis > 0) {
+			request.watch(millis, TimeUnit.MILLISECONDS, new Runnable() {
+				public void run() {
+					idle(request);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Called on the timer thread when a request has waited for the idle
+	 * timeout since it was written out. Closes the connection if the server
+	 * has sent nothing since
+	 */
+	private void idle(PendingRequest request) {
+		if (request.isAnswered() || lastinput - request.sent >= 0) {
+			// Still alive, just slow
+			return;
+		}
+
+		logger.error("No input from server for " + idletimeout + " ms, closing connection");
+		setStatus(ConnectionStatus.LOSTCONNECTION, NoConnectionError.Reason.TIMEDOUT.toString());
+		closeConnection();
+		abandonRequests();
+	}
+
+	/**
+	 * Limit the number of requests in flight. Beyond that, sendAndRead waits
+	 * until the oldest is answered, and requests sent without waiting are
+	 * held back and written out as replies arrive, so a caller which stops
+	 * collecting replies holds up its own requests rather than the reader
+	 * thread. This must be called before connect()
+	 * 
+	 * @param max
+	 *            Maximum number of requests waiting for replies
+	 */
+	public void setMaxPending(int max) {
+		maxpending = max;
+		slots = new Semaphore(max);
+	}
+
+	public int getMaxPending() {
+		return maxpending;
+	}
+
+	/**
+	 * @return number of replies dropped because their requests had already
+	 *         timed out or been cancelled
+	 */
+	public long getLateReplyCount() {
+		return latereplies.get();
+	}
+
+	/**
+	 * @return number of replies dropped because no request was waiting
+	 */
+	public long getUnmatchedReplyCount() {
+		return unmatchedreplies.get();
+	}
+
+	public EDFData sendAndRead(EDFData send) throws NoConnectionError {
+		EDFData replymessage;
+
+		lockRequests();
+		try {
+			replymessage = (EDFData) await(send(send, null, true, true));
+		} catch (NoConnectionError e) {
+			throw e;
+		} catch (UAException e) {
+			// Only an EDFReplyReader fails any other way
+			throw new IllegalStateException(e);
+		} finally {
+			unlockRequests();
+		}
+
+		if(logger.isTraceEnabled()) logger.trace("Sent " + send.getString() + " got " + replymessage.getString());
+
+		if (logger.isTraceEnabled()) logger.trace("Read:\n" + replymessage.format(true));
+		return replymessage;
+	}
+
+	/**
+	 * Sends a request, and turns the reply into an object using an
+	 * EDFReplyReader as the reply is read from the server. No EDFData tree is
+	 * built for the reply when the connection uses the BYTE parser
+	 * 
+	 * @param send
+	 *            EDFData request to send
+	 * @param reader
+	 *            EDFReplyReader to apply to the reply
+	 * @return the object returned by the EDFReplyReader
+	 * @throws UAException
+	 *             any exception thrown by the EDFReplyReader, or
+	 *             NoConnectionError
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T sendAndRead(EDFData send, EDFReplyReader<T> reader) throws UAException {
+		lockRequests();
+		try {
+			return (T) await(send(send, reader, true, true));
+		} finally {
+			unlockRequests();
+		}
+	}
+
+	/**
+	 * Sends several requests without waiting for each reply before sending
+	 * the next, then waits for the replies. Over a slow link this costs about
+	 * one round trip rather than one for each request
+	 * 
+	 * @param requests
+	 *            EDFData requests to send
+	 * @return the replies, in the same order as the requests
+	 * @throws NoConnectionError
+	 *             the connection was lost before every reply arrived
+	 */
+	public List<EDFData> sendAndReadAll(List<EDFData> requests) throws NoConnectionError {
+		List<EDFData> replies = new ArrayList<EDFData>(requests.size());
+
+		lockRequests();
+		try {
+			for (PendingRequest request : sendBurst(requests, true)) {
+				replies.add((EDFData) await(request));
+			}
+		} catch (NoConnectionError e) {
+			throw e;
+		} catch (UAException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			unlockRequests();
+		}
+
+		return replies;
+	}
+
+	/**
+	 * Unless requests are pipelined, only one caller at a time waits for a
+	 * reply
+	 */
+	private void lockRequests() {
+		if (!pipelined) {
+			requestlock.lock();
+		}
+	}
+
+	private void unlockRequests() {
+		if (requestlock.isHeldByCurrentThread()) {
+			requestlock.unlock();
+		}
+	}
+
+	/**
+	 * Sends a request with the time allowed for its kind
+	 */
+	private PendingRequest send(EDFData send, EDFReplyReader<?> reader, boolean flush, boolean wait) {
+		String name = (send.type == EDFData.ValueType.STRING ? send.getString() : null);
+		return send(send, reader, flush, (name != null ? getTimeout(name) : timeout), wait);
+	}
+
+	/**
+	 * Sends a request, adding it to the FIFO of requests waiting for replies
+	 * 
+	 * @param flush
+	 *            true to write it out straight away
+	 * @param millis
+	 *            Time allowed for the reply, 0 for no limit
+	 * @param wait
+	 *            true to wait for a slot if there isn't one, false to hold
+	 *            the request back until there is. Only callers waiting for
+	 *            the reply wait, so the reader thread never does
+	 */
+	private PendingRequest send(EDFData send, EDFReplyReader<?> reader, boolean flush, long millis, boolean wait) {
+		PendingRequest request = new PendingRequest(reader);
 
-		// Send data
 		if (logger.isTraceEnabled()) logger.trace("Sending:\n" + send.format(true));
-		sendEDF(send);
 
-		// Get reply
+		if (wait) {
+			if (!slots.tryAcquire()) {
+				// Anything held back has to go out for the slots to come back
+				flush();
+				slots.acquireUninterruptibly();
+			}
+			write(send, request, flush);
+		} else if (held.isEmpty() && slots.tryAcquire()) {
+			write(send, request, flush);
+		} else {
+			// Behind any others already held, so they go out in order
+			held.add(new HeldRequest(send, request));
+			sendHeld();
+		}
+
+		if (millis > 0 && !request.reply.isDone()) {
+			request.expireAfter(millis, TimeUnit.MILLISECONDS);
+		}
+
+		return request;
+	}
+
+	/**
+	 * Writes out requests held back for slots, oldest first, while there are
+	 * slots for them. Called whenever a request is held back and whenever a
+	 * slot is given back, so none is left behind
+	 */
+	private void sendHeld() {
+		boolean written = false;
+
+		outputlock.lock();
+		try {
+			while (!held.isEmpty() && slots.tryAcquire()) {
+				HeldRequest next = held.poll();
+				if (next == null) {
+					slots.release();
+					break;
+				}
+				if (next.request.reply.isDone()) {
+					// Timed out, cancelled or abandoned while it was held
+					slots.release();
+					continue;
+				}
+				write(next.send, next.request, false);
+				written = true;
+			}
+		} finally {
+			outputlock.unlock();
+		}
+
+		if (written) {
+			// Fails the connection if it can't be written
+			flush();
+		}
+	}
+
+	/**
+	 * Writes out a request which has a slot, adding it to the FIFO
+	 */
+	private void write(EDFData send, PendingRequest request, boolean flush) {
+		// The FIFO has to be in the order the requests are written
+		outputlock.lock();
+		try {
+			pending.add(request);
+			if (!sendEDF(send, false)) {
+				if (pending.remove(request)) {
+					slots.release();
+				}
+				request.abandon();
+				return;
+			}
+			if (idletimeout > 0) {
+				request.end = output().getEncodedBytes();
+				unwatched.add(request);
+			}
+		} finally {
+			outputlock.unlock();
+		}
+
+		if (flush) {
+			flush();
+		} else {
+			// It may have gone out with the flush threshold
+			written();
+		}
+	}
+
+	/**
+	 * Sends several requests, coalesced and written out together at the end
+	 * 
+	 * @param wait
+	 *            true to wait for slots, false to hold requests back
+	 */
+	private List<PendingRequest> sendBurst(List<EDFData> requests, boolean wait) {
+		List<PendingRequest> sent = new ArrayList<PendingRequest>(requests.size());
+
+		// Not holding the output lock across the burst, since a request may
+		// have to wait for a slot, and other writers mustn't wait with it
+		for (EDFData request : requests) {
+			sent.add(send(request, null, false, wait));
+		}
+		// Fails the connection if it can't be written
+		flush();
+
+		return sent;
+	}
+
+	/**
+	 * Waits for the reply to a request
+	 * 
+	 * @return the reply, or the result of the request's EDFReplyReader
+	 * @throws UAException
+	 *             the exception thrown by the EDFReplyReader, or
+	 *             NoConnectionError
+	 */
+	private Object await(PendingRequest request) throws UAException {
 		try {
-			while (replymessage == null && status == ConnectionStatus.CONNECTED) {
-				replymessage = reply.poll(5, TimeUnit.SECONDS);
+			// The reply, the deadline or the connection closing completes it
+			return request.reply.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof UAException) {
+				throw (UAException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
 			}
+			throw new UAException(cause);
+		} catch (InterruptedException e) {
+			// Only this caller has given up. The request stays in the FIFO
+			// and its reply is dropped when it arrives
+			Thread.currentThread().interrupt();
+			request.reply.cancel(false);
+			throw new NoConnectionError(NoConnectionError.Reason.INTERRUPTED);
 		} catch (Exception e) {
 			logger.error("Internal error in server", e);
 		}
 
-		if (replymessage == null) {
-			// Something went wrong
-			setStatus(ConnectionStatus.NOTCONNECTED, "No reply");
-			closeConnection();
+		// Something went wrong
+		setStatus(ConnectionStatus.NOTCONNECTED, "No reply");
+		closeConnection();
+		abandonRequests();
+
+		throw new NoConnectionError(NoConnectionError.Reason.CONNECTIONLOST);
+	}
+
+	/**
+	 * Sends a request without waiting for the reply. The future is completed
+	 * by the thread reading from the server, so anything chained to it
+	 * without an executor (thenApply() rather than thenApplyAsync()) runs on
+	 * that thread and should not block
+	 * <p>
+	 * Requests sent this way are always pipelined, and never wait for a
+	 * slot; beyond the limit they are held back until replies arrive.
+	 * Cancelling the future doesn't recall the request; its reply is dropped
+	 * when it arrives
+	 * 
+	 * @param send
+	 *            EDFData request to send
+	 * @return future reply, failing with NoConnectionError if the connection
+	 *         is lost or the request times out
+	 * @see #setTimeout(String, long)
+	 */
+	public CompletableFuture<EDFData> sendAsync(EDFData send) {
+		return future(send(send, null, autoflush, false));
+	}
+
+	/**
+	 * Sends a request without waiting for the reply, failing if it takes
+	 * longer than a deadline
+	 * 
+	 * @param send
+	 *            EDFData request to send
+	 * @param timeout
+	 *            Time to wait for the reply
+	 * @param unit
+	 *            Unit of the timeout
+	 * @return future reply, failing with NoConnectionError TIMEDOUT if the
+	 *         deadline passes first
+	 * @see #sendAsync(EDFData)
+	 */
+	public CompletableFuture<EDFData> sendAsync(EDFData send, long timeout, TimeUnit unit) {
+		return future(send(send, null, autoflush, unit.toMillis(timeout), false));
+	}
 
-			throw new NoConnectionError(NoConnectionError.Reason.CONNECTIONLOST);
+	/**
+	 * Sends a request without waiting for the reply, turning the reply into
+	 * an object using an EDFReplyReader as it is read
+	 * 
+	 * @param send
+	 *            EDFData request to send
+	 * @param reader
+	 *            EDFReplyReader to apply to the reply
+	 * @return future result of the EDFReplyReader, failing with any exception
+	 *         it throws
+	 * @see #sendAsync(EDFData)
+	 */
+	public <T> CompletableFuture<T> sendAsync(EDFData send, EDFReplyReader<T> reader) {
+		return future(send(send, reader, autoflush, false));
+	}
+
+	/**
+	 * Sends several requests without waiting for the replies. The requests
+	 * are coalesced and written out together, whether or not auto flush is
+	 * on, so a burst usually costs one write
+	 * 
+	 * @param requests
+	 *            EDFData requests to send
+	 * @return future replies, in the same order as the requests
+	 * @see #sendAsync(EDFData)
+	 */
+	public List<CompletableFuture<EDFData>> sendAsync(List<EDFData> requests) {
+		List<CompletableFuture<EDFData>> futures = new ArrayList<CompletableFuture<EDFData>>(requests.size());
+		for (PendingRequest request : sendBurst(requests, false)) {
+			futures.add(UAConnection.<EDFData> future(request));
 		}
-		
-		if(logger.isTraceEnabled()) logger.trace("Sent " + send.getString() + " got " + replymessage.getString());
+		return futures;
+	}
 
-		if (logger.isTraceEnabled()) logger.trace("Read:\n" + replymessage.format(true));
-		return replymessage;
+	@SuppressWarnings("unchecked")
+	private static <T> CompletableFuture<T> future(PendingRequest request) {
+		// The reply is whatever type the request was sent for
+		return (CompletableFuture<T>) (CompletableFuture<?>) request.reply;
 	}
 
 	public AnnounceQueue getAnnounceQueue() {
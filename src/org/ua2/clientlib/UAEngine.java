@@ -0,0 +1,174 @@
+package org.ua2.clientlib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A UAEngine reads and writes for many UAConnections from a few threads
+ * <p>
+ * Without an engine each UAConnection has its own reader thread, blocked
+ * reading its socket. Connections given an engine (see
+ * UAConnection.setEngine()) use a non-blocking SocketChannel instead, and
+ * one of the engine's I/O threads waits on a Selector for all of the
+ * connections it has been given. Input is parsed as it arrives with an
+ * EDFIncrementalParser, and each element is routed exactly as the reader
+ * thread would route it.
+ * <p>
+ * Connections are shared out between the threads in turn. Replies and
+ * announcements are handed on without blocking, so one slow connection
+ * doesn't hold up the others on its thread, but EDFReplyReaders and
+ * anything else run on delivery do run on the I/O thread. For the same
+ * reason, their announcement queues can't use AnnounceQueue.Overflow.BLOCK.
+ * An error serving one connection closes only that connection.
+ *
+ * @author brian
+ *
+ */
+public class UAEngine {
+	// Read buffer size for each I/O thread
+	private static final int READ_SIZE = 64 * 1024;
+
+	private final IOThread[] threads;
+	private final AtomicInteger next = new AtomicInteger();
+	private volatile boolean running = true;
+
+	private static final Logger logger = Logger.getLogger(UAEngine.class);
+
+	/**
+	 * Start an engine
+	 *
+	 * @param count
+	 *            Number of I/O threads
+	 * @throws IOException
+	 *             a Selector could not be opened
+	 */
+	public UAEngine(int count) throws IOException {
+		threads = new IOThread[count];
+		for (int i = 0; i < count; i++) {
+			threads[i] = new IOThread(i);
+		}
+		for (IOThread thread : threads) {
+			thread.start();
+		}
+	}
+
+	/**
+	 * @return number of I/O threads
+	 */
+	public int getThreadCount() {
+		return threads.length;
+	}
+
+	/**
+	 * Stop the I/O threads and close every connection they were serving
+	 */
+	public void shutdown() {
+		running = false;
+		for (IOThread thread : threads) {
+			thread.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Hand a connected channel to one of the I/O threads
+	 */
+	void register(UAChannel channel) throws IOException {
+		if (!running) {
+			throw new IOException("Engine has been shut down");
+		}
+
+		IOThread thread = threads[(next.getAndIncrement() & Integer.MAX_VALUE) % threads.length];
+		channel.setSelector(thread.selector);
+		thread.registrations.add(channel);
+		thread.selector.wakeup();
+	}
+
+	private class IOThread extends Thread {
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<UAChannel> registrations = new ConcurrentLinkedQueue<UAChannel>();
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_SIZE);
+
+		IOThread(int n) throws IOException {
+			selector = Selector.open();
+			setName("UAEngine-" + n);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+
+					UAChannel registration;
+					while ((registration = registrations.poll()) != null) {
+						try {
+							registration.register(selector);
+						} catch (RuntimeException e) {
+							failed(registration, e);
+						}
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+
+						UAChannel channel = (UAChannel) key.attachment();
+						try {
+							if (key.isValid() && key.isReadable()) {
+								channel.read(buffer);
+							}
+							if (key.isValid() && key.isWritable()) {
+								channel.write();
+							}
+						} catch (RuntimeException e) {
+							failed(channel, e);
+						}
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				// Shut down
+			} catch (Exception e) {
+				logger.error("I/O thread stopped due to error", e);
+			}
+
+			// Nothing will serve these connections any more
+			IOException stopped = new IOException("Engine shut down");
+			for (SelectionKey key : selector.keys()) {
+				((UAChannel) key.attachment()).fail(stopped);
+			}
+			UAChannel registration;
+			while ((registration = registrations.poll()) != null) {
+				registration.fail(stopped);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Ignore it
+			}
+		}
+
+		/**
+		 * Something went wrong serving one channel. Close it, and carry on
+		 * serving the others
+		 */
+		private void failed(UAChannel channel, RuntimeException e) {
+			logger.error("Closing connection after error on I/O thread", e);
+			try {
+				channel.fail(e);
+			} catch (RuntimeException f) {
+				logger.error("Connection failed to close cleanly", f);
+			}
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package org.ua2.clientlib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.ua2.edf.EDFData;
+import org.ua2.edf.EDFWriter;
+
+/**
+ * The output side of a connection, coalescing the EDF from several sends
+ * into one write
+ * <p>
+ * Elements are encoded into a buffer which is reused for the life of the
+ * connection. The buffer is only written out when it holds the flush
+ * threshold or more, when it runs out of room, or when flush() is called,
+ * so a burst of requests goes out in one write rather than one for each.
+ * <p>
+ * If encoding an element fails part way, what it had encoded is dropped so
+ * that it doesn't go out in front of the next element. If some of it had
+ * already been written out, the output is broken and every later write
+ * fails.
+ * <p>
+ * A UAOutput is not thread safe, its connection writes to it under a lock.
+ *
+ * @author brian
+ *
+ */
+class UAOutput {
+	static final int DEFAULT_THRESHOLD = 8 * 1024;
+
+	// Big enough for EDFWriter to drain its own buffer in one go
+	private static final int INITIAL_SIZE = 16 * 1024;
+
+	/**
+	 * Where the output goes
+	 */
+	interface Sink {
+		/**
+		 * Write as much of the buffer, from its position to its limit, as
+		 * can be written now. A blocking sink writes all of it
+		 */
+		void write(ByteBuffer buffer) throws IOException;
+	}
+
+	private final Sink sink;
+	private final boolean direct;
+
+	// Encoded output not yet written, in write mode
+	private ByteBuffer buffer;
+	private int threshold = DEFAULT_THRESHOLD;
+
+	// Set when the sink didn't take everything it was given
+	private boolean stalled = false;
+
+	// Set while an element is being encoded, and when it has been written out part way
+	private boolean encoding = false;
+	private boolean spilled = false;
+	// Part of an element has been written out, and the rest of it never will be
+	private boolean broken = false;
+
+	// Only changed under the connection's lock, but read from anywhere
+	private volatile long sent = 0;
+	private volatile long writes = 0;
+	// Bytes the sink has taken, and bytes of whole elements encoded
+	private volatile long writtenbytes = 0;
+	private volatile long encodedbytes = 0;
+
+	private final EDFWriter writer = new EDFWriter(new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			reserve(1);
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			reserve(length);
+			buffer.put(bytes, offset, length);
+		}
+	});
+
+	/**
+	 * @param sink
+	 *            Where to write
+	 * @param direct
+	 *            true for a direct buffer, which saves a copy when the sink
+	 *            is a channel
+	 */
+	UAOutput(Sink sink, boolean direct) {
+		this.sink = sink;
+		this.direct = direct;
+		buffer = allocate(INITIAL_SIZE);
+	}
+
+	void setThreshold(int threshold) {
+		this.threshold = threshold;
+	}
+
+	int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Encode an element, writing out the buffer if it has reached the
+	 * threshold
+	 *
+	 * @param flush
+	 *            true to write out the buffer whatever it holds
+	 */
+	void write(EDFData edf, boolean flush) throws IOException {
+		if (broken) {
+			throw new IOException("Output broken by an element which failed part way");
+		}
+
+		int start = buffer.position();
+		boolean encoded = false;
+		encoding = true;
+		spilled = false;
+		try {
+			writer.write(edf);
+			// Only moves EDFWriter's bytes into the buffer
+			writer.flush();
+			encoded = true;
+		} finally {
+			encoding = false;
+			if (!encoded) {
+				writer.discard();
+				if (spilled) {
+					broken = true;
+					buffer.clear();
+				} else {
+					buffer.position(start);
+				}
+			}
+		}
+		sent++;
+		encodedbytes = writtenbytes + buffer.position();
+
+		if (flush || buffer.position() >= threshold) {
+			flush();
+		}
+	}
+
+	/**
+	 * Write out everything buffered, or as much as the sink will take
+	 */
+	void flush() throws IOException {
+		if (buffer.position() == 0) {
+			return;
+		}
+
+		buffer.flip();
+		int length = buffer.remaining();
+		try {
+			sink.write(buffer);
+			writes++;
+		} finally {
+			writtenbytes += length - buffer.remaining();
+			stalled = buffer.hasRemaining();
+			buffer.compact();
+		}
+	}
+
+	/**
+	 * @return true if part of an element has been written out, and the rest never will be
+	 */
+	boolean isBroken() {
+		return broken;
+	}
+
+	/**
+	 * @return true if the sink didn't take everything at the last flush
+	 */
+	boolean isStalled() {
+		return stalled;
+	}
+
+	/**
+	 * @return number of bytes waiting to be written
+	 */
+	int getBuffered() {
+		return buffer.position();
+	}
+
+	/**
+	 * @return number of elements written
+	 */
+	long getSentCount() {
+		return sent;
+	}
+
+	/**
+	 * @return number of writes to the sink
+	 */
+	long getWriteCount() {
+		return writes;
+	}
+
+	/**
+	 * @return number of bytes the sink has taken
+	 */
+	long getWrittenBytes() {
+		return writtenbytes;
+	}
+
+	/**
+	 * @return number of bytes encoded, written out or not. Once
+	 *         getWrittenBytes() reaches this, everything encoded so far has
+	 *         gone out
+	 */
+	long getEncodedBytes() {
+		return encodedbytes;
+	}
+
+	/**
+	 * Make room in the buffer, writing it out if it is full and growing it if
+	 * the sink won't take enough
+	 */
+	private void reserve(int length) throws IOException {
+		if (buffer.remaining() >= length) {
+			return;
+		}
+
+		flush();
+		spilled |= encoding;
+		if (buffer.remaining() >= length) {
+			return;
+		}
+
+		ByteBuffer bigger = allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+		buffer.flip();
+		bigger.put(buffer);
+		buffer = bigger;
+	}
+
+	private ByteBuffer allocate(int size) {
+		return (direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size));
+	}
+}
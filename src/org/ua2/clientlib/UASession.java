@@ -1,6 +1,7 @@
 package org.ua2.clientlib;
 
 import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.log4j.Logger;
 import org.ua2.clientlib.exception.NoConnectionError;
@@ -93,6 +94,14 @@ public class UASession
 		return connection.sendAndRead(sendData);
 	}
 	
+	/**
+	 * @see UAConnection#sendAsync(EDFData)
+	 */
+	public CompletableFuture<EDFData> sendAsync(EDFData sendData) {
+		UAConnection connection = (UAConnection) ua.get(UAConnection.class);
+		return connection.sendAsync(sendData);
+	}
+	
 	public int getUserId() {
 		if(user == null) {
 			return -1;
@@ -134,7 +143,7 @@ public class UASession
 		
 		EDFData readData = sendAndRead(sendData);
 		
-		if(readData.sValue.equals("user_login"))
+		if(readData.getString().equals("user_login"))
 		{
 			// Login successful
 			user  = readData;
@@ -184,7 +193,7 @@ public class UASession
 		{
 			EDFData bannerresponse = sendAndRead(new EDFData("request", "system_list"));
 
-			banner = bannerresponse.getChild("banner").sValue;
+			banner = bannerresponse.getChild("banner").getString();
 		}
 		catch(Exception e)
 		{
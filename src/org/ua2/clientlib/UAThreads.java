@@ -0,0 +1,126 @@
+package org.ua2.clientlib;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Thread factories and executors for UAConnection reader threads and
+ * AnnounceQueue handlers
+ * <p>
+ * By default each connection has a platform thread blocked reading its
+ * socket, and announcements are handled on a small pool of platform
+ * threads shared by every connection. On JDK 21 or later virtual() gives a
+ * factory for virtual threads instead, so a blocked reader or a blocking
+ * handler costs a virtual thread rather than a platform thread and its
+ * stack:
+ * <pre>
+ * connection.setThreadFactory(UAThreads.virtual("Reader-"));
+ * connection.getAnnounceQueue().setExecutor(UAThreads.perTask(UAThreads.virtual("Announce-")));
+ * </pre>
+ * Virtual threads are found by reflection, so the library still builds
+ * and runs on older JDKs.
+ *
+ * @author brian
+ *
+ */
+public final class UAThreads {
+	// Thread.ofVirtual(), Thread.Builder.name(String, long) and Thread.Builder.factory()
+	private static final Method OF_VIRTUAL;
+	private static final Method NAME;
+	private static final Method FACTORY;
+
+	static {
+		Method ofvirtual = null;
+		Method name = null;
+		Method factory = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofvirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class, long.class);
+			factory = builder.getMethod("factory");
+
+			// Fails on JDKs where they are a preview feature which isn't enabled
+			ofvirtual.invoke(null);
+		} catch (Exception e) {
+			ofvirtual = null;
+		}
+		OF_VIRTUAL = ofvirtual;
+		NAME = name;
+		FACTORY = factory;
+	}
+
+	private UAThreads() {
+	}
+
+	/**
+	 * @return true if the JDK has virtual threads
+	 */
+	public static boolean isVirtualAvailable() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Platform threads named with a prefix and the time they were created,
+	 * as the library has always named them
+	 *
+	 * @param prefix
+	 *            Start of each thread's name, eg. "Reader-"
+	 * @return ThreadFactory
+	 */
+	public static ThreadFactory platform(final String prefix) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				return new Thread(runnable, prefix + System.currentTimeMillis());
+			}
+		};
+	}
+
+	/**
+	 * Virtual threads named with a prefix and a counter
+	 *
+	 * @param prefix
+	 *            Start of each thread's name, eg. "Reader-"
+	 * @return ThreadFactory
+	 * @throws UnsupportedOperationException
+	 *             the JDK doesn't have virtual threads
+	 */
+	public static ThreadFactory virtual(String prefix) {
+		if (OF_VIRTUAL == null) {
+			throw new UnsupportedOperationException("Virtual threads need JDK 21 or later");
+		}
+
+		try {
+			Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L);
+			return (ThreadFactory) FACTORY.invoke(builder);
+		} catch (Exception e) {
+			throw new UnsupportedOperationException("Cannot create virtual threads", e);
+		}
+	}
+
+	/**
+	 * Virtual threads if the JDK has them, otherwise platform threads
+	 *
+	 * @param prefix
+	 *            Start of each thread's name
+	 * @return ThreadFactory
+	 */
+	public static ThreadFactory best(String prefix) {
+		return (isVirtualAvailable() ? virtual(prefix) : platform(prefix));
+	}
+
+	/**
+	 * An executor which runs each task on a new thread
+	 *
+	 * @param factory
+	 *            Makes the threads
+	 * @return Executor
+	 */
+	public static Executor perTask(final ThreadFactory factory) {
+		return new Executor() {
+			public void execute(Runnable task) {
+				factory.newThread(task).start();
+			}
+		};
+	}
+}
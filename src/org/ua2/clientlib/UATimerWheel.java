@@ -0,0 +1,262 @@
+package org.ua2.clientlib;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A hashed timer wheel, firing timeouts for every connection from one thread
+ * <p>
+ * Time is cut into ticks, and the wheel has a bucket for each tick of one
+ * rotation. A timeout is hashed into the bucket for its deadline, with a
+ * count of the whole rotations left to go, so scheduling and cancelling are
+ * O(1) however many timeouts there are. New and cancelled timeouts are
+ * queued for the timer thread, which is the only thread to touch the
+ * buckets. Timeouts fire up to a tick late, never early.
+ * <p>
+ * The thread is started by the first timeout and parks while there are
+ * none. Tasks run on it, so they must be quick.
+ *
+ * @author brian
+ *
+ */
+class UATimerWheel implements Runnable {
+	// Request deadlines for every connection in the JVM
+	static final UATimerWheel SHARED = new UATimerWheel(10, TimeUnit.MILLISECONDS, 512, "UATimer");
+
+	private static final int WAITING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	/**
+	 * A scheduled task
+	 */
+	final class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(WAITING);
+
+		// Only used by the timer thread
+		private long rounds;
+		private Bucket bucket;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @return false if the timeout has already fired or been cancelled
+		 */
+		boolean cancel() {
+			if (!state.compareAndSet(WAITING, CANCELLED)) {
+				return false;
+			}
+			// Unlinked by the timer thread
+			cancelled.add(this);
+			return true;
+		}
+
+		boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+	}
+
+	/**
+	 * The timeouts due in one tick of a rotation, a doubly linked list
+	 */
+	private static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.prev != null) {
+				timeout.prev.next = timeout.next;
+			} else {
+				head = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			} else {
+				tail = timeout.prev;
+			}
+			timeout.prev = timeout.next = null;
+			timeout.bucket = null;
+		}
+	}
+
+	private final long ticknanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final String name;
+
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+	// The timer thread, once started
+	private volatile Thread thread;
+	private volatile boolean idle = false;
+
+	// Only used by the timer thread: when tick 0 started, the tick being
+	// served, and the number of timeouts in the buckets
+	private long start;
+	private long tick = 0;
+	private int count = 0;
+
+	private static final Logger logger = Logger.getLogger(UATimerWheel.class);
+
+	/**
+	 * @param duration
+	 *            Length of a tick
+	 * @param unit
+	 *            Unit of the duration
+	 * @param buckets
+	 *            Number of ticks in a rotation, rounded up to a power of two
+	 * @param name
+	 *            Name of the timer thread
+	 */
+	UATimerWheel(long duration, TimeUnit unit, int buckets, String name) {
+		ticknanos = unit.toNanos(duration);
+		int size = Integer.highestOneBit(Math.max(1, buckets - 1)) << 1;
+		wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		mask = size - 1;
+		this.name = name;
+	}
+
+	/**
+	 * Run a task once a delay has passed, unless it is cancelled first
+	 *
+	 * @return Timeout to cancel
+	 */
+	Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+		added.add(timeout);
+		start();
+
+		if (idle) {
+			LockSupport.unpark(thread);
+		}
+		return timeout;
+	}
+
+	private void start() {
+		if (thread != null) {
+			return;
+		}
+
+		synchronized (this) {
+			if (thread == null) {
+				Thread timer = new Thread(this, name);
+				timer.setDaemon(true);
+				start = System.nanoTime();
+				thread = timer;
+				timer.start();
+			}
+		}
+	}
+
+	public void run() {
+		while (true) {
+			waitForTick();
+
+			transferAdded();
+			removeCancelled();
+
+			Bucket bucket = wheel[(int) (tick & mask)];
+			Timeout timeout = bucket.head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.rounds <= 0) {
+					bucket.remove(timeout);
+					count--;
+					expire(timeout);
+				} else {
+					timeout.rounds--;
+				}
+				timeout = next;
+			}
+
+			tick++;
+		}
+	}
+
+	/**
+	 * Sleep until the end of the current tick, or until there is something
+	 * to do if the wheel is empty
+	 */
+	private void waitForTick() {
+		while (count == 0 && added.isEmpty()) {
+			idle = true;
+			if (added.isEmpty()) {
+				LockSupport.park(this);
+			}
+			idle = false;
+
+			// Nothing is in the buckets, so carry on from now
+			start = System.nanoTime() - tick * ticknanos;
+		}
+
+		long end = start + (tick + 1) * ticknanos;
+		long wait;
+		while ((wait = end - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(this, wait);
+		}
+	}
+
+	private void transferAdded() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.state.get() != WAITING) {
+				continue;
+			}
+
+			// The first tick to end at or after the deadline, and never one
+			// which has already been served
+			long due = Math.max(tick, (timeout.deadline - start + ticknanos - 1) / ticknanos - 1);
+			timeout.rounds = (due - tick) / wheel.length;
+			wheel[(int) (due & mask)].add(timeout);
+			count++;
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+				count--;
+			}
+		}
+	}
+
+	private void expire(Timeout timeout) {
+		if (!timeout.state.compareAndSet(WAITING, EXPIRED)) {
+			return;
+		}
+
+		try {
+			timeout.task.run();
+		} catch (Throwable t) {
+			logger.error("Timer task failed", t);
+		}
+	}
+}
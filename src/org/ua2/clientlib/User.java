@@ -1,8 +1,14 @@
 package org.ua2.clientlib;
 
+import java.io.IOException;
+
 import org.ua2.clientlib.exception.NoConnectionError;
 import org.ua2.clientlib.exception.WrongEDFException;
+import org.ua2.edf.EDFBindException;
+import org.ua2.edf.EDFCodec;
+import org.ua2.edf.EDFCodecs;
 import org.ua2.edf.EDFData;
+import org.ua2.edf.EDFReader;
 
 /**
  * This class represents a UA user
@@ -20,7 +26,32 @@ public class User
 	// TODO - other data
 	
 	private UA ua;
-		
+	
+	/**
+	 * Binds &lt;user=[number]&gt; to a User
+	 */
+	public static final EDFCodec<User> CODEC = EDFCodec.builder("user", new EDFCodec.Factory<User>() {
+			public User create() { return new User(); }
+		})
+		.integerValue(new EDFCodec.IntField<User>() {
+			public void set(User user, int value) { user.id = value; }
+		})
+		.string("name", new EDFCodec.StringField<User>() {
+			public void set(User user, String value) { user.name = value; }
+		}, true)
+		.integer("accesslevel", new EDFCodec.IntField<User>() {
+			public void set(User user, int value) { user.accesslevel = value; }
+		}, true)
+		// TODO - the other elements of a user
+		// TODO - how to handle the fact that sometimes a <user> tree might be minimal (eg from <request="user_list"/>)
+		// and other times it might contain full information about a user
+		.build();
+
+	static
+	{
+		EDFCodecs.register(User.class, CODEC);
+	}
+
 
 	/**
 	 * Construct a blank User object
@@ -45,6 +76,19 @@ public class User
 		populateUser(edf);
 	}
 	
+	/**
+	 * Construct a user object from an EDFReader
+	 * @param reader EDFReader on the START_ELEMENT of a user. It is left on the user's END_ELEMENT
+	 * @throws WrongEDFException the EDF didn't contain the correct information to describe a user
+	 * @throws IOException the EDF could not be read
+	 */
+	public User(EDFReader reader) throws WrongEDFException, IOException
+	{
+		this();
+		
+		populateUser(reader);
+	}
+	
 	/**
 	 * Creates a User object for the user specified, or a blank object if the user doesn't exist
 	 * @param name	Name of the user
@@ -103,47 +147,47 @@ public class User
 	
 	private void populateUser(EDFData edf) throws WrongEDFException
 	{
-		// Check the root element
-		if((! edf.name.equalsIgnoreCase("user")) || (edf.type != EDFData.ValueType.INTEGER))
+		try
 		{
-			throw new WrongEDFException("Expected '<user=[number]></>");
+			CODEC.decode(edf, this);
 		}
-		
-		id = edf.iValue;
-
-		for(EDFData child : edf.children)
+		catch(EDFBindException e)
 		{
-			if(child.name.equals("name"))
-			{
-				if((child.type != EDFData.ValueType.STRING) || (child.sValue.isEmpty()))
-				{
-					throw new WrongEDFException("Expected <name=[string]/>");
-				}
-				
-				name = child.sValue;
-				continue;
-			}
-			
-			if(child.name.equals("accesslevel"))
-			{
-				if(child.type != EDFData.ValueType.INTEGER)
-				{
-					throw new WrongEDFException("Expected <accesslevel=[number]/>");
-				}
-				
-				accesslevel = child.iValue;
-				continue;
-			}
-
-			// TODO - the other elements of a user
-			// TODO - how to handle the fact that sometimes a <user> tree might be minimal (eg from <request="user_list"/>)
-			// and other times it might contain full information about a user
+			throw new WrongEDFException(e.getMessage(), e);
 		}
-		
-		if((name == null) || (accesslevel == -1))
+	}
+	
+	private void populateUser(EDFReader reader) throws WrongEDFException, IOException
+	{
+		try
 		{
-			throw new WrongEDFException("<user> is missing a required element");
+			CODEC.decode(reader, this);
 		}
+		catch(EDFBindException e)
+		{
+			throw new WrongEDFException(e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * @return true if another description of this user has the same fields
+	 */
+	boolean same(User other)
+	{
+		return id == other.id && name.equals(other.name) && accesslevel == other.accesslevel
+			&& (accessname == null ? other.accessname == null : accessname.equals(other.accessname));
+	}
+	
+	/**
+	 * Update this user in place from a newer description of it
+	 * @param other	User decoded from the newer description
+	 */
+	void copy(User other)
+	{
+		id = other.id;
+		name = other.name;
+		accesslevel = other.accesslevel;
+		accessname = other.accessname;
 	}
 	
 	/**
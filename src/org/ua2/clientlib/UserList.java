@@ -3,11 +3,10 @@ package org.ua2.clientlib;
 import org.ua2.clientlib.exception.*;
 import org.ua2.edf.EDFData;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 
 /**
  * A class to handle user - it the list of users on UA
@@ -16,7 +15,28 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class UserList
 {
-	private ConcurrentHashMap<String, User> users = new ConcurrentHashMap<String, User>();
+	private final KeyedList<User> users = new KeyedList<User>(User.CODEC)
+	{
+		int id(User user)
+		{
+			return user.id;
+		}
+		
+		String name(User user)
+		{
+			return user.name;
+		}
+		
+		boolean same(User user, User fresh)
+		{
+			return user.same(fresh);
+		}
+		
+		void copy(User fresh, User user)
+		{
+			user.copy(fresh);
+		}
+	};
 	private UA ua;
 	
 	/**
@@ -53,44 +73,82 @@ public class UserList
 			throw new Error("Can't set an object's UA instance more than once");
 		}
 	}	
+	/**
+	 * Add a listener to be told which users change on each refresh
+	 * @param listener	ListListener
+	 */
+	public void addListener(ListListener<User> listener)
+	{
+		users.addListener(listener);
+	}
+	
+	public void removeListener(ListListener<User> listener)
+	{
+		users.removeListener(listener);
+	}
+	
 	/**
 	 * Refresh the list of users
 	 */
 	public void refresh() throws UAException
 	{
-		ConcurrentHashMap<String, User> newusers = new ConcurrentHashMap<String, User>();
-		
 		UAConnection connection = (UAConnection) ua.get(UAConnection.class);
 		
 		EDFData request = new EDFData("request", "user_list");
-		EDFData reply = connection.sendAndRead(request);
 
 		// TODO - handle errors (eg, <reply="rq_invalid">)
-		for(EDFData userdata : reply.getChildren("user"))
-		{
-			User user = new User(userdata);
-			
-			newusers.put(user.name, user);
-		}
-		
-		users = newusers;
+		users.update(connection.sendAndRead(request));
 	}
 	
-	public List<User> getUserList()
+	/**
+	 * Refresh the list of users without waiting for the reply
+	 * <p>
+	 * The list is updated on the thread reading from the server, as for
+	 * UAConnection.sendAsync()
+	 * @return future sorted list of users, failing with WrongEDFException if the reply is not valid
+	 */
+	public CompletableFuture<List<User>> refreshAsync()
 	{
-		ArrayList<User> userlist = new ArrayList<User>(users.values());
-
-		// Ewww, ewww, ewww, ewww, ewww
-		// FIXME - this shit is just for testing
-		Collections.sort(userlist, new Comparator<User>() {
-			public int compare(org.ua2.clientlib.User arg0,
-					org.ua2.clientlib.User arg1) {
+		UAConnection connection = (UAConnection) ua.get(UAConnection.class);
+		
+		EDFData request = new EDFData("request", "user_list");
 
-				return arg0.name.compareToIgnoreCase(arg1.name);
+		return connection.sendAsync(request).thenApply(new Function<EDFData, List<User>>()
+		{
+			public List<User> apply(EDFData reply)
+			{
+				try
+				{
+					users.update(reply);
+				}
+				catch(WrongEDFException e)
+				{
+					throw new CompletionException(e);
+				}
+				
+				return getUserList();
 			}
 		});
-		
-		return userlist;
+	}
+	
+	/**
+	 * Bring the list up to date with a user_list reply
+	 * <p>
+	 * The reply is compared with the last one, and only the users which were
+	 * added, removed or changed are decoded and touched. Changed users are
+	 * updated in place (see ListListener). A reply with a user which isn't
+	 * valid changes nothing.
+	 * @param reply	&lt;reply="user_list"&gt;
+	 * @throws WrongEDFException a user in the reply is not valid
+	 */
+	public void update(EDFData reply) throws WrongEDFException
+	{
+		users.update(reply);
+	}
+	
+	public List<User> getUserList()
+	{
+		return users.sorted();
 	}
 	
 	/**
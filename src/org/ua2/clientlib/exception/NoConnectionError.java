@@ -20,6 +20,8 @@ public class NoConnectionError extends UAException {
 	{
 		COULDNOTCONNECT		("Could not connect to server"),
 		CONNECTIONLOST		("Connection to server lost"),
+		TIMEDOUT			("No reply from server in time"),
+		INTERRUPTED			("Interrupted waiting for reply"),
 		LOGGEDOUT			("You have logged out"),
 		FORCEDISCONNECT		("You have been logged out");
 	
@@ -0,0 +1,47 @@
+package org.ua2.edf;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream over the remaining bytes of a ByteBuffer, so that EDF held in
+ * a buffer (eg. a mapped file) can be read without copying it first
+ *
+ * @author brian
+ *
+ */
+class ByteBufferInputStream extends InputStream {
+	private final ByteBuffer buffer;
+
+	/**
+	 * @param buffer	Buffer to read, from its position to its limit. The
+	 * 					stream moves the buffer's position as it reads
+	 */
+	ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public int read() {
+		return (buffer.hasRemaining() ? buffer.get() & 0xff : -1);
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) {
+		if(length == 0) {
+			return 0;
+		}
+		if(!buffer.hasRemaining()) {
+			return -1;
+		}
+
+		int n = Math.min(length, buffer.remaining());
+		buffer.get(bytes, offset, n);
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+}
@@ -0,0 +1,378 @@
+package org.ua2.edf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compact binary encoding of EDFData trees, for caching and persisting
+ * replies or handing them to another process without re-parsing the text
+ * form
+ * <p>
+ * A document is
+ * <pre>
+ * 'E' 'D' 'F' 'B' version
+ * name count, names
+ * root element
+ * </pre>
+ * where each name is a length and UTF-8 bytes, and each element is
+ * <pre>
+ * (name index &lt;&lt; 2 | value type), [value], child count, children
+ * </pre>
+ * Integers, lengths, counts and indexes are unsigned LEB128 varints; integer
+ * values are zigzag encoded first so that small negative numbers stay small.
+ * String values are stored unescaped, as a length and UTF-8 bytes. Nameless
+ * elements use the empty name, so every form of the text grammar round trips.
+ * <p>
+ * Everything is length or count prefixed, so decoding is a single forward
+ * pass with no lookahead. Every length and count is checked against the
+ * bytes left, or against MAX_LENGTH when reading a stream, and nesting is
+ * limited to MAX_DEPTH, so damaged data fails with EDFFormatException.
+ *
+ * @author brian
+ *
+ */
+public final class EDFBinary {
+	static final byte[] MAGIC = { 'E', 'D', 'F', 'B' };
+	static final int VERSION = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int TYPE_NONE = 0;
+	private static final int TYPE_STRING = 1;
+	private static final int TYPE_INTEGER = 2;
+
+	/**
+	 * Most bytes a string or name read from a stream may have
+	 */
+	public static final int MAX_LENGTH = EDFIncrementalParser.DEFAULT_MAX_ELEMENT_SIZE;
+
+	/**
+	 * Deepest nesting of elements which will be decoded
+	 */
+	public static final int MAX_DEPTH = 1024;
+
+	private EDFBinary() {
+	}
+
+	/**
+	 * Encode a tree
+	 * @param root	Tree to encode
+	 * @return encoded document
+	 */
+	public static byte[] encode(EDFData root) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			encode(root, bytes);
+		} catch(IOException e) {
+			// Can't happen with a ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Encode a tree onto a stream
+	 * @param root		Tree to encode
+	 * @param output	Stream to write to
+	 * @throws IOException the stream could not be written
+	 */
+	public static void encode(EDFData root, OutputStream output) throws IOException {
+		new Encoder(output).document(root);
+	}
+
+	/**
+	 * Decode a document
+	 * @param bytes	Encoded document
+	 * @return tree
+	 * @throws EDFFormatException the bytes are not a valid document
+	 */
+	public static EDFData decode(byte[] bytes) throws EDFFormatException {
+		return decode(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Decode a document starting at the buffer's position. The position is
+	 * left after the document, so that documents written one after another
+	 * can be read back in turn
+	 * @param buffer	Buffer holding the document
+	 * @return tree
+	 * @throws EDFFormatException the bytes are not a valid document
+	 */
+	public static EDFData decode(ByteBuffer buffer) throws EDFFormatException {
+		try {
+			return new BufferDecoder(buffer).document();
+		} catch(BufferUnderflowException e) {
+			throw new EDFFormatException("Truncated binary EDF");
+		} catch(EDFFormatException e) {
+			throw e;
+		} catch(IOException e) {
+			// Only the stream decoder does I/O
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Decode a document from a stream. Only the bytes of the document are
+	 * read, and the stream is read a byte at a time, so pass a buffered stream
+	 * @param input	Stream to read
+	 * @return tree
+	 * @throws EDFFormatException the stream does not hold a valid document
+	 * @throws IOException the stream could not be read
+	 */
+	public static EDFData decode(InputStream input) throws IOException {
+		return new StreamDecoder(input).document();
+	}
+
+	private static class Encoder {
+		private final OutputStream output;
+		private final HashMap<String, Integer> names = new HashMap<String, Integer>();
+		private final List<String> order = new ArrayList<String>();
+
+		Encoder(OutputStream output) {
+			this.output = output;
+		}
+
+		void document(EDFData root) throws IOException {
+			collect(root);
+
+			output.write(MAGIC);
+			output.write(VERSION);
+			varint(order.size());
+			for(String name : order) {
+				string(name);
+			}
+			element(root);
+			output.flush();
+		}
+
+		private void collect(EDFData element) {
+			if(!names.containsKey(element.name)) {
+				names.put(element.name, order.size());
+				order.add(element.name);
+			}
+			for(int i = 0; i < element.getChildCount(); i++) {
+				collect(element.getChild(i));
+			}
+		}
+
+		private void element(EDFData element) throws IOException {
+			int name = names.get(element.name);
+			switch(element.type) {
+				case STRING:
+					varint(name << 2 | TYPE_STRING);
+					string(element.getString());
+					break;
+				case INTEGER:
+					varint(name << 2 | TYPE_INTEGER);
+					varint((element.iValue << 1) ^ (element.iValue >> 31));
+					break;
+				default:
+					varint(name << 2 | TYPE_NONE);
+			}
+
+			int children = element.getChildCount();
+			varint(children);
+			for(int i = 0; i < children; i++) {
+				element(element.getChild(i));
+			}
+		}
+
+		private void string(String value) throws IOException {
+			byte[] bytes = value.getBytes(UTF8);
+			varint(bytes.length);
+			output.write(bytes);
+		}
+
+		private void varint(int value) throws IOException {
+			while((value & ~0x7f) != 0) {
+				output.write((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			output.write(value);
+		}
+	}
+
+	private static abstract class Decoder {
+		private String[] names;
+
+		abstract int readByte() throws IOException;
+
+		abstract String readString(int length) throws IOException;
+
+		/**
+		 * @return most bytes there can be left, for checking lengths and counts
+		 */
+		abstract int available();
+
+		/**
+		 * @param count	Length or count read from the data
+		 * @param size	Fewest bytes each of them takes
+		 * @return the count, if the bytes left can hold it
+		 */
+		int check(int count, int size, String what) throws EDFFormatException {
+			if(count < 0 || count > available() / size) {
+				throw new EDFFormatException("Invalid " + what + " " + (count & 0xffffffffL));
+			}
+			return count;
+		}
+
+		EDFData document() throws IOException {
+			for(int i = 0; i < MAGIC.length; i++) {
+				if(readByte() != MAGIC[i]) {
+					throw new EDFFormatException("Not binary EDF");
+				}
+			}
+			int version = readByte();
+			if(version != VERSION) {
+				throw new EDFFormatException("Unsupported binary EDF version " + version);
+			}
+
+			// Each name takes at least its length. Grown as the names are
+			// read, since a stream's count can only be checked loosely
+			int count = check(varint(), 1, "name count");
+			List<String> list = new ArrayList<String>(Math.min(count, 64));
+			for(int i = 0; i < count; i++) {
+				list.add(EDFSymbols.intern(readString(check(varint(), 1, "name length"))));
+			}
+			names = list.toArray(new String[count]);
+
+			return element(0);
+		}
+
+		private EDFData element(int depth) throws IOException {
+			if(depth > MAX_DEPTH) {
+				throw new EDFFormatException("Elements nested more than " + MAX_DEPTH + " deep");
+			}
+
+			int header = varint();
+			int name = header >>> 2;
+			if(name >= names.length) {
+				throw new EDFFormatException("Name index " + name + " out of range");
+			}
+
+			EDFData element;
+			switch(header & 3) {
+				case TYPE_NONE:
+					element = new EDFData(names[name]);
+					break;
+				case TYPE_STRING:
+					element = new EDFData(names[name], readString(check(varint(), 1, "string length")));
+					break;
+				case TYPE_INTEGER:
+					int value = varint();
+					element = new EDFData(names[name], (value >>> 1) ^ -(value & 1));
+					break;
+				default:
+					throw new EDFFormatException("Invalid value type " + (header & 3));
+			}
+
+			// Each child takes at least its header and child count
+			int children = check(varint(), 2, "child count");
+			for(int i = 0; i < children; i++) {
+				element.add(element(depth + 1));
+			}
+
+			return element;
+		}
+
+		private int varint() throws IOException {
+			int value = 0;
+			for(int shift = 0; shift < 35; shift += 7) {
+				int b = readByte();
+				value |= (b & 0x7f) << shift;
+				if((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new EDFFormatException("Malformed varint");
+		}
+	}
+
+	private static class BufferDecoder extends Decoder {
+		private final ByteBuffer buffer;
+
+		BufferDecoder(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		int readByte() {
+			return buffer.get() & 0xff;
+		}
+
+		@Override
+		int available() {
+			return buffer.remaining();
+		}
+
+		@Override
+		String readString(int length) throws EDFFormatException {
+			if(length > buffer.remaining()) {
+				throw new EDFFormatException("Truncated binary EDF");
+			}
+
+			String value;
+			if(buffer.hasArray()) {
+				value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF8);
+				buffer.position(buffer.position() + length);
+			} else {
+				byte[] bytes = new byte[length];
+				buffer.get(bytes);
+				value = new String(bytes, UTF8);
+			}
+			return value;
+		}
+	}
+
+	private static class StreamDecoder extends Decoder {
+		private final InputStream input;
+		private byte[] scratch = new byte[256];
+
+		StreamDecoder(InputStream input) {
+			this.input = input;
+		}
+
+		@Override
+		int readByte() throws IOException {
+			int b = input.read();
+			if(b == -1) {
+				throw new EOFException("Truncated binary EDF");
+			}
+			return b;
+		}
+
+		@Override
+		int available() {
+			// Can't tell how much is left, so only guard against the absurd
+			return MAX_LENGTH;
+		}
+
+		@Override
+		String readString(int length) throws IOException {
+			// Grown as the bytes arrive, not from the length alone
+			int read = 0;
+			while(read < length) {
+				if(read == scratch.length) {
+					scratch = Arrays.copyOf(scratch, Math.min(length, scratch.length * 2));
+				}
+				int n = input.read(scratch, read, Math.min(length, scratch.length) - read);
+				if(n == -1) {
+					throw new EOFException("Truncated binary EDF");
+				}
+				read += n;
+			}
+
+			return new String(scratch, 0, length, UTF8);
+		}
+	}
+}
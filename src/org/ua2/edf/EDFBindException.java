@@ -0,0 +1,19 @@
+package org.ua2.edf;
+
+/**
+ * Thrown by EDFCodec when well formed EDF doesn't describe the object being
+ * decoded, eg. a required element is missing or has the wrong type of value
+ *
+ * @author brian
+ *
+ */
+public class EDFBindException extends EDFFormatException {
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 1L;
+
+	public EDFBindException(String msg) {
+		super(msg);
+	}
+}
@@ -0,0 +1,92 @@
+package org.ua2.edf;
+
+import java.util.HashMap;
+
+/**
+ * Index of an EDFData node's children by name, so that lookups on wide nodes
+ * (eg. the hundreds of &lt;folder&gt; or &lt;user&gt; children of a list
+ * reply) don't have to scan every child
+ * <p>
+ * The index is built in its constructor. Nodes only build one once they have
+ * INDEX_THRESHOLD children, and keep it up to date as children are added.
+ * The index takes over the node's array of children, so that a node doesn't
+ * need a field of its own for it.
+ *
+ * @author brian
+ *
+ */
+class EDFChildIndex {
+	static final int INDEX_THRESHOLD = 16;
+
+	private static final int[] NO_POSITIONS = new int[0];
+
+	/**
+	 * Positions of the children with one name, in order
+	 */
+	private static class Positions {
+		int[] at = new int[4];
+		int count = 0;
+
+		void add(int position) {
+			if(count == at.length) {
+				int[] bigger = new int[count * 2];
+				System.arraycopy(at, 0, bigger, 0, count);
+				at = bigger;
+			}
+			at[count++] = position;
+		}
+	}
+
+	private final HashMap<String, Positions> index = new HashMap<String, Positions>();
+
+	// The node's children, of which the node's childCount are used
+	EDFData[] children;
+
+	EDFChildIndex(EDFData[] children, int count) {
+		this.children = children;
+		for(int i = 0; i < count; i++) {
+			add(children[i].name, i);
+		}
+	}
+
+	void add(String name, int position) {
+		Positions positions = index.get(name);
+		if(positions == null) {
+			positions = new Positions();
+			index.put(name, positions);
+		}
+
+		positions.add(position);
+	}
+
+	/**
+	 * @return number of children with the name
+	 */
+	int count(String name) {
+		Positions positions = index.get(name);
+
+		return (positions == null ? 0 : positions.count);
+	}
+
+	/**
+	 * @return position of the n'th child with the name, or -1 if there isn't one
+	 */
+	int position(String name, int n) {
+		Positions positions = index.get(name);
+		if(positions == null || n >= positions.count) {
+			return -1;
+		}
+
+		return positions.at[n];
+	}
+
+	/**
+	 * Positions of the children with the name. Only the first count(name)
+	 * entries are valid, and the array must not be modified
+	 */
+	int[] positions(String name) {
+		Positions positions = index.get(name);
+
+		return (positions == null ? NO_POSITIONS : positions.at);
+	}
+}
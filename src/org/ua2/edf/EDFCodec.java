@@ -0,0 +1,344 @@
+package org.ua2.edf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Binds EDF elements to objects
+ * <p>
+ * A codec describes one element, eg. &lt;folder=[number]&gt;, as the type
+ * of its value and a binding for each child whose value sets a field:
+ * <pre>
+ * EDFCodec&lt;Folder&gt; codec = EDFCodec.builder("folder", factory)
+ *     .integerValue(idField)
+ *     .string("name", nameField, true)
+ *     .integer("unread", unreadField, false)
+ *     .build();
+ * </pre>
+ * Decoding works straight from an EDFReader, so objects can be built from
+ * a reply as it is parsed without an EDFData tree. Children without a
+ * binding are skipped, and a child which appears more than once sets its
+ * field each time, unless it is bound with first().
+ * <p>
+ * Decoding checks the element's name and the type of its value, the type
+ * of each bound child's value, and that required children are present
+ * (and, for strings, not empty). Failures throw EDFBindException.
+ * <p>
+ * Codecs are immutable and can be shared between threads.
+ *
+ * @author brian
+ *
+ */
+public final class EDFCodec<T> {
+	/**
+	 * Creates the objects a codec decodes into
+	 */
+	public interface Factory<T> {
+		T create();
+	}
+
+	/**
+	 * Sets a field from an integer value
+	 */
+	public interface IntField<T> {
+		void set(T target, int value);
+	}
+
+	/**
+	 * Sets a field from a string value
+	 */
+	public interface StringField<T> {
+		void set(T target, String value);
+	}
+
+	private static class Binding<T> {
+		final String name;
+		final EDFData.ValueType type;
+		final IntField<T> intField;
+		final StringField<T> stringField;
+		// Bit in the mask of required children, 0 if the child is optional
+		final long required;
+		// Bit in the mask of children only the first of which is used, 0 if every one is
+		final long first;
+
+		Binding(String name, EDFData.ValueType type, IntField<T> intField, StringField<T> stringField, long required, long first) {
+			this.name = name;
+			this.type = type;
+			this.intField = intField;
+			this.stringField = stringField;
+			this.required = required;
+			this.first = first;
+		}
+	}
+
+	/**
+	 * Builds an EDFCodec
+	 */
+	public static class Builder<T> {
+		private final String element;
+		private final Factory<T> factory;
+		private EDFData.ValueType type = EDFData.ValueType.NONE;
+		private IntField<T> intValue;
+		private StringField<T> stringValue;
+		private final HashMap<String, Binding<T>> bindings = new HashMap<String, Binding<T>>();
+		private long required = 0;
+		private long first = 0;
+
+		private Builder(String element, Factory<T> factory) {
+			this.element = element;
+			this.factory = factory;
+		}
+
+		/**
+		 * The element has an integer value
+		 * @param field	Field to set from it
+		 * @return this builder
+		 */
+		public Builder<T> integerValue(IntField<T> field) {
+			type = EDFData.ValueType.INTEGER;
+			intValue = field;
+			stringValue = null;
+			return this;
+		}
+
+		/**
+		 * The element has a string value
+		 * @param field	Field to set from it
+		 * @return this builder
+		 */
+		public Builder<T> stringValue(StringField<T> field) {
+			type = EDFData.ValueType.STRING;
+			stringValue = field;
+			intValue = null;
+			return this;
+		}
+
+		/**
+		 * Bind a child with an integer value
+		 * @param name		Name of the child
+		 * @param field		Field to set from its value
+		 * @param required	true if the child must be present
+		 * @return this builder
+		 */
+		public Builder<T> integer(String name, IntField<T> field, boolean required) {
+			return bind(new Binding<T>(EDFSymbols.intern(name), EDFData.ValueType.INTEGER, field, null, requiredBit(required), 0));
+		}
+
+		/**
+		 * Bind a child with a string value
+		 * @param name		Name of the child
+		 * @param field		Field to set from its value
+		 * @param required	true if the child must be present with a non-empty value
+		 * @return this builder
+		 */
+		public Builder<T> string(String name, StringField<T> field, boolean required) {
+			return bind(new Binding<T>(EDFSymbols.intern(name), EDFData.ValueType.STRING, null, field, requiredBit(required), 0));
+		}
+
+		/**
+		 * Only the first of a bound child which appears more than once sets its
+		 * field, eg. the first &lt;replyto&gt; of a message is its parent
+		 * @param name	Name of the child, which must already be bound
+		 * @return this builder
+		 */
+		public Builder<T> first(String name) {
+			Binding<T> binding = bindings.get(name);
+			if(binding == null) {
+				throw new IllegalStateException("<" + name + "> is not bound");
+			}
+			if(binding.first != 0) {
+				return this;
+			}
+			if(first == -1L) {
+				throw new IllegalStateException("Too many first-only children");
+			}
+
+			long bit = Long.lowestOneBit(~first);
+			first |= bit;
+			bindings.put(binding.name, new Binding<T>(binding.name, binding.type, binding.intField, binding.stringField, binding.required, bit));
+			return this;
+		}
+
+		private long requiredBit(boolean isRequired) {
+			if(!isRequired) {
+				return 0;
+			}
+			if(required == -1L) {
+				throw new IllegalStateException("Too many required children");
+			}
+
+			long bit = Long.lowestOneBit(~required);
+			required |= bit;
+			return bit;
+		}
+
+		private Builder<T> bind(Binding<T> binding) {
+			if(bindings.put(binding.name, binding) != null) {
+				throw new IllegalStateException("<" + binding.name + "> is bound twice");
+			}
+			return this;
+		}
+
+		public EDFCodec<T> build() {
+			return new EDFCodec<T>(this);
+		}
+	}
+
+	private final String element;
+	private final Factory<T> factory;
+	private final EDFData.ValueType type;
+	private final IntField<T> intValue;
+	private final StringField<T> stringValue;
+	private final HashMap<String, Binding<T>> bindings;
+	private final long required;
+
+	private EDFCodec(Builder<T> builder) {
+		element = builder.element;
+		factory = builder.factory;
+		type = builder.type;
+		intValue = builder.intValue;
+		stringValue = builder.stringValue;
+		bindings = new HashMap<String, Binding<T>>(builder.bindings);
+		required = builder.required;
+	}
+
+	/**
+	 * Start building a codec
+	 * @param element	Name of the element the codec decodes
+	 * @param factory	Creates the objects to decode into
+	 * @return Builder
+	 */
+	public static <T> Builder<T> builder(String element, Factory<T> factory) {
+		return new Builder<T>(element, factory);
+	}
+
+	/**
+	 * @return name of the element the codec decodes
+	 */
+	public String getElement() {
+		return element;
+	}
+
+	/**
+	 * Decode the element the reader is on into a new object
+	 * @param reader	Reader on the element's START_ELEMENT. It is left on its END_ELEMENT
+	 * @return decoded object
+	 * @throws EDFBindException the element doesn't describe the object
+	 * @throws IOException the EDF could not be read
+	 */
+	public T decode(EDFReader reader) throws IOException {
+		T target = factory.create();
+		decode(reader, target);
+		return target;
+	}
+
+	/**
+	 * Decode a tree into a new object
+	 * @param tree	Tree to decode
+	 * @return decoded object
+	 * @throws EDFBindException the tree doesn't describe the object
+	 */
+	public T decode(EDFData tree) throws EDFBindException {
+		T target = factory.create();
+		decode(tree, target);
+		return target;
+	}
+
+	/**
+	 * Decode a tree into an existing object
+	 * @param tree		Tree to decode
+	 * @param target	Object to set the fields of
+	 * @throws EDFBindException the tree doesn't describe the object
+	 */
+	public void decode(EDFData tree, T target) throws EDFBindException {
+		EDFReader reader = EDFReader.create(tree);
+		try {
+			reader.next();
+			decode(reader, target);
+		} catch(EDFBindException e) {
+			throw e;
+		} catch(IOException e) {
+			// Walking a tree doesn't do any I/O
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Decode the element the reader is on into an existing object
+	 * @param reader	Reader on the element's START_ELEMENT. It is left on its END_ELEMENT
+	 * @param target	Object to set the fields of
+	 * @throws EDFBindException the element doesn't describe the object
+	 * @throws IOException the EDF could not be read
+	 */
+	public void decode(EDFReader reader, T target) throws IOException {
+		if(!reader.getName().equalsIgnoreCase(element) || reader.getType() != type) {
+			throw new EDFBindException("Expected '<" + element + describe(type) + "></>");
+		}
+
+		switch(type) {
+			case INTEGER: intValue.set(target, reader.getInteger()); break;
+			case STRING: stringValue.set(target, reader.getString()); break;
+			case NONE: /* Nothing to do */
+		}
+
+		long missing = required;
+		long used = 0;
+		while(reader.next() == EDFReader.Event.START_ELEMENT) {
+			Binding<T> binding = bindings.get(reader.getName());
+			if(binding != null && (used & binding.first) == 0) {
+				if(reader.getType() != binding.type) {
+					throw new EDFBindException("Expected <" + binding.name + describe(binding.type) + "/>");
+				}
+
+				if(binding.type == EDFData.ValueType.INTEGER) {
+					binding.intField.set(target, reader.getInteger());
+				} else {
+					String value = reader.getString();
+					if(binding.required != 0 && value.isEmpty()) {
+						throw new EDFBindException("Expected <" + binding.name + describe(binding.type) + "/>");
+					}
+					binding.stringField.set(target, value);
+				}
+				missing &= ~binding.required;
+				used |= binding.first;
+			}
+
+			reader.skipElement();
+		}
+
+		if(missing != 0) {
+			throw new EDFBindException("<" + element + "> is missing a required element");
+		}
+	}
+
+	/**
+	 * Decode every child of the current element which this codec describes,
+	 * eg. each &lt;folder&gt; in a folder_list reply. Other children are skipped
+	 * @param reader	Reader on the START_ELEMENT of the parent. It is left on its END_ELEMENT
+	 * @return decoded objects, in order
+	 * @throws EDFBindException a child doesn't describe the object
+	 * @throws IOException the EDF could not be read
+	 */
+	public List<T> decodeList(EDFReader reader) throws IOException {
+		List<T> list = new ArrayList<T>();
+		while(reader.next() == EDFReader.Event.START_ELEMENT) {
+			if(reader.getName().equalsIgnoreCase(element)) {
+				list.add(decode(reader));
+			} else {
+				reader.skipElement();
+			}
+		}
+
+		return list;
+	}
+
+	private static String describe(EDFData.ValueType type) {
+		switch(type) {
+			case INTEGER: return "=[number]";
+			case STRING: return "=[string]";
+			default: return "";
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.ua2.edf;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the EDFCodec for each type which can be decoded from EDF
+ * <p>
+ * Types normally register their codec in a static initializer. get() makes
+ * sure the type has been initialized first, so callers don't have to.
+ *
+ * @author brian
+ *
+ */
+public final class EDFCodecs {
+	private static final ConcurrentHashMap<Class<?>, EDFCodec<?>> codecs = new ConcurrentHashMap<Class<?>, EDFCodec<?>>();
+
+	private EDFCodecs() {
+	}
+
+	/**
+	 * Register the codec for a type, replacing any previous one
+	 * @param type	Type the codec decodes
+	 * @param codec	Codec
+	 */
+	public static <T> void register(Class<T> type, EDFCodec<T> codec) {
+		codecs.put(type, codec);
+	}
+
+	/**
+	 * Get the codec for a type
+	 * @param type	Type to decode
+	 * @return codec, or null if the type hasn't registered one
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> EDFCodec<T> get(Class<T> type) {
+		EDFCodec<T> codec = (EDFCodec<T>) codecs.get(type);
+		if(codec == null) {
+			try {
+				// Run the type's static initializer, which may register one
+				Class.forName(type.getName(), true, type.getClassLoader());
+			} catch(ClassNotFoundException e) {
+				return null;
+			}
+			codec = (EDFCodec<T>) codecs.get(type);
+		}
+
+		return codec;
+	}
+}
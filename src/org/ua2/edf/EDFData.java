@@ -1,6 +1,8 @@
 package org.ua2.edf;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -11,25 +13,38 @@ import java.util.List;
 public class EDFData {
     public enum ValueType { STRING, INTEGER, NONE };
     
+    // Interned through EDFSymbols, so that trees share one instance of each
+    // name. setName() keeps it interned, but a name assigned directly still matches
     public String name;
     public String sValue;
-    public Integer iValue;
+    public int iValue;
     public ValueType type;
-    public ArrayList<EDFData> children;
+    
+    // Children are kept inline to keep the per-node footprint down. This is
+    // null with no children, the child itself with one, or an EDFData[] (of
+    // which the first childCount entries are used) with more. Once a wide
+    // node has been searched by name, the array moves into an EDFChildIndex.
+    // That can happen while other threads are reading the node, so read it
+    // once into a local
+    private volatile Object children;
+    private int childCount;
+    
+    // The value exactly as it was sent, until getString() unescapes it into
+    // sValue, see setEscapedString()
+    private volatile String raw;
     
     private static String PRETTY_EOL = "\r\n";
     
-    private int childcounter = 0;
-
+    private static final int INITIAL_CHILDREN = 4;
+    
     /**
      * Constructs an EDF object with a name, no value and no children
      * @param name  Name of the object
      */
     public EDFData(String name)
     {
-        this.name = name;
+        this.name = EDFSymbols.intern(name);
         type = ValueType.NONE;
-        children = new ArrayList<EDFData>();
     }
 
     /**
@@ -49,7 +64,7 @@ public class EDFData {
      * @param name  Name of the EDF object
      * @param value Value of the EDF object
      */
-    public EDFData(String name, Integer value)
+    public EDFData(String name, int value)
     {
         this(name);
         iValue = value;
@@ -63,9 +78,21 @@ public class EDFData {
         return name;
     }
     
+    public void setName(String name) {
+        this.name = EDFSymbols.intern(name);
+    }
+    
+    /**
+     * Get the EDFSymbols id of the element name
+     * @return  Symbol id, or EDFSymbols.NONE if the name isn't interned
+     */
+    public int getNameId() {
+        return EDFSymbols.id(name);
+    }
+    
     public Object getValue() {
         if(type.equals(ValueType.STRING)) {
-            return sValue;
+            return getString();
         } else if(type.equals(ValueType.INTEGER)) {
             return iValue;
         }
@@ -78,10 +105,50 @@ public class EDFData {
             throw new EDFTypeException("Expecting " + ValueType.STRING + " type value, found " + type);
         }
         
+        String pending = raw;
+        if(pending != null) {
+            // Always unescaped from the raw form, so threads racing here all
+            // get the same value. Clearing raw publishes sValue
+            sValue = unescape(pending);
+            raw = null;
+        }
+        
         return sValue;
     }
     
+    /**
+     * Set a string value exactly as it was sent over the wire, leaving it to
+     * be unescaped by the first call to getString() (if there is one). This
+     * saves decoding values which are never read
+     * <p>
+     * Until then sValue is null, so read the value with getString() rather
+     * than from sValue. It is safe for several threads to read the value at
+     * once
+     * @param value Escaped string value
+     */
+    public void setEscapedString(String value) {
+        sValue = null;
+        type = ValueType.STRING;
+        raw = value;
+    }
+    
+    /**
+     * @return the value exactly as it was sent, or null if it has been
+     *         unescaped or was never escaped
+     */
+    String getEscapedString() {
+        return raw;
+    }
+    
     public Integer getInteger() {
+        return getInt();
+    }
+    
+    /**
+     * Same as getInteger(), without boxing the value
+     * @return  Integer value
+     */
+    public int getInt() {
         if(!type.equals(ValueType.INTEGER)) {
             throw new EDFTypeException("Expecting " + ValueType.INTEGER + " type value, found " + type);
         }
@@ -95,32 +162,57 @@ public class EDFData {
      */
     public int getChildCount()
     {
-        return children.size();
+        return childCount;
     }
     
     /**
-     * Reset the iterating child pointer to the first child
+     * Get a child by position
+     * @param index Position of the child, from 0 to getChildCount() - 1
+     * @return  EDF data for child
      */
-    public void resetChild()
+    public EDFData getChild(int index)
     {
-        childcounter = 0;
+        if(index < 0 || index >= childCount)
+        {
+            throw new IndexOutOfBoundsException("Child " + index + " of " + childCount);
+        }
+        
+        Object current = children;
+        if(current instanceof EDFData)
+        {
+            return (EDFData) current;
+        }
+        
+        if(current instanceof EDFChildIndex)
+        {
+            return ((EDFChildIndex) current).children[index];
+        }
+        
+        return ((EDFData[]) current)[index];
     }
     
     /**
-     * Get the next child in the EDF structure
-     * @return  EDF data for child
+     * Get all of the children, in order
+     * @return  Read-only list of the children
      */
-    public EDFData getNext()
+    public List<EDFData> getChildren()
     {
-        if(childcounter >= children.size())
+        if(childCount == 0)
         {
-            return null;
+            return Collections.emptyList();
         }
         
-        EDFData data = children.get(childcounter);
-        childcounter++;
+        return new AbstractList<EDFData>() {
+            @Override
+            public EDFData get(int index) {
+                return getChild(index);
+            }
 
-        return data;
+            @Override
+            public int size() {
+                return childCount;
+            }
+        };
     }
     
     /**
@@ -129,7 +221,46 @@ public class EDFData {
      */
     public void add(EDFData child)
     {
-        children.add(child);
+        Object current = children;
+        if(childCount == 0)
+        {
+            children = child;
+        }
+        else if(childCount == 1)
+        {
+            EDFData[] array = new EDFData[INITIAL_CHILDREN];
+            array[0] = (EDFData) current;
+            array[1] = child;
+            children = array;
+        }
+        else
+        {
+            EDFChildIndex index = (current instanceof EDFChildIndex ? (EDFChildIndex) current : null);
+            EDFData[] array = (index != null ? index.children : (EDFData[]) current);
+            
+            if(childCount == array.length)
+            {
+                EDFData[] bigger = new EDFData[childCount * 2];
+                System.arraycopy(array, 0, bigger, 0, childCount);
+                array = bigger;
+                if(index != null)
+                {
+                    index.children = array;
+                }
+                else
+                {
+                    children = array;
+                }
+            }
+            array[childCount] = child;
+            
+            if(index != null)
+            {
+                index.add(child.name, childCount);
+            }
+        }
+        
+        childCount++;
     }
     
     /**
@@ -148,7 +279,7 @@ public class EDFData {
      * @param name
      * @param value
      */
-    public void add(String name, Integer value) {
+    public void add(String name, int value) {
         add(new EDFData(name, value));
     }
     
@@ -159,34 +290,123 @@ public class EDFData {
      */
     public EDFData getChild(String childname)
     {
-        if(getChildCount()> 0)
+        return getChild(childname, 0);
+    }
+    
+    /**
+     * Gets the n'th match of a child element, without creating a list of the
+     * matches as getChildren(String) does
+     * @param childname Name of the element
+     * @param n Which match, starting at 0
+     * @return EDFData object representing the child, or null if there are not that many matches
+     */
+    public EDFData getChild(String childname, int n)
+    {
+        EDFChildIndex childindex = index();
+        if(childindex != null)
+        {
+            int position = childindex.position(childname, n);
+            return (position == -1 ? null : getChild(position));
+        }
+        
+        for(int i = 0; i < childCount; i++)
         {
-            for(EDFData child : children)
+            EDFData child = getChild(i);
+            if(childname.equals(child.name) && n-- == 0)
             {
-                if(child.name.equals(childname))
-                {
-                    return child;
-                }
+                return child;
             }
         }
         
         return null;
     }
     
+    /**
+     * Counts the children with a given name
+     * @param childname Name of the element
+     * @return Number of matching children
+     */
+    public int getChildCount(String childname)
+    {
+        EDFChildIndex childindex = index();
+        if(childindex != null)
+        {
+            return childindex.count(childname);
+        }
+        
+        int count = 0;
+        
+        for(int i = 0; i < childCount; i++)
+        {
+            if(childname.equals(getChild(i).name))
+            {
+                count++;
+            }
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Get the index of children by name, building it if this node is wide
+     * enough to need one
+     * @return  Index, or null if this node is too narrow
+     */
+    private EDFChildIndex index()
+    {
+        Object current = children;
+        if(current instanceof EDFChildIndex)
+        {
+            return (EDFChildIndex) current;
+        }
+        
+        if(childCount < EDFChildIndex.INDEX_THRESHOLD)
+        {
+            return null;
+        }
+        
+        // Readers racing to build it each build an equal index, and any of them will do
+        EDFChildIndex index = new EDFChildIndex((EDFData[]) current, childCount);
+        children = index;
+        
+        return index;
+    }
+    
     /**
      * Convenience method for returning a list of childen of the specified type
      * @param name
-     * @return
+     * @return List of matching children, which is a shared empty list if there are none
      */
     public List<EDFData> getChildren(String name) {
-       List<EDFData> childList = new ArrayList<EDFData>();
+       EDFChildIndex childindex = index();
+       if(childindex != null) {
+           int count = childindex.count(name);
+           if(count == 0) {
+               return Collections.emptyList();
+           }
+           
+           int[] positions = childindex.positions(name);
+           List<EDFData> childList = new ArrayList<EDFData>(count);
+           for(int i = 0; i < count; i++) {
+               childList.add(getChild(positions[i]));
+           }
+           return childList;
+       }
        
-       for(EDFData child : children) {
-           if(child.getName().equals(name)) {
+       List<EDFData> childList = null;
+       for(int i = 0; i < childCount; i++) {
+           EDFData child = getChild(i);
+           if(name.equals(child.name)) {
+               if(childList == null) {
+                   childList = new ArrayList<EDFData>();
+               }
                childList.add(child);
            }
        }
        
+       if(childList == null) {
+           return Collections.emptyList();
+       }
        return childList;
     }
     
@@ -200,6 +420,16 @@ public class EDFData {
         return format(false);
     }
         
+    /**
+     * Make an immutable copy of this tree, which can be shared between threads
+     * @return frozen tree
+     * @see EDFNode
+     */
+    public EDFNode freeze()
+    {
+        return EDFNode.freeze(this);
+    }
+    
     /**
      * Print the EDF to the standard output stream, for debugging
      */
@@ -212,28 +442,74 @@ public class EDFData {
      * Unescape string values sent over the wire, turning \" into " and
      * \\ into \
      * @param in    Escaped string
-     * @return  Unescaped string
+     * @return  Unescaped string, which is in itself if there was nothing to unescape
      */
     public static String unescape(String in)
     {
-        String s;
+        int i = in.indexOf('\\');
+        if(i == -1)
+        {
+            return in;
+        }
+        
+        int length = in.length();
+        StringBuilder out = new StringBuilder(length);
+        int start = 0;
         
-        s = in.replaceAll("\\\\\"", "\"");      // Replace \" with "
-        return s.replaceAll("\\\\\\\\", "\\\\");        // Replace \\ with \
+        while(i != -1)
+        {
+            char c = (i + 1 < length ? in.charAt(i + 1) : 0);
+            if(c == '"' || c == '\\')
+            {
+                // Drop the backslash, keep the escaped character
+                out.append(in, start, i);
+                start = i + 1;
+                i = in.indexOf('\\', i + 2);
+            }
+            else
+            {
+                i = in.indexOf('\\', i + 1);
+            }
+        }
+        
+        out.append(in, start, length);
+        return out.toString();
     }
     
     /**
      * Escape string values sent over the wire, turning " into \" and
      * \ into \\
      * @param in    Unescaped string
-     * @return  Escaped string suitable for sending to server
+     * @return  Escaped string suitable for sending to server, which is in itself if there was nothing to escape
      */
     public static String escape(String in)
     {
-        String s;
+        int length = in.length();
+        int i = 0;
+        
+        while(i < length && in.charAt(i) != '"' && in.charAt(i) != '\\')
+        {
+            i++;
+        }
+        if(i == length)
+        {
+            return in;
+        }
         
-        s = in.replaceAll("\\\\", "\\\\\\\\");      // Replace \ with \\
-        return s.replaceAll("\"", "\\\\\"");        // Replace " with \"
+        StringBuilder out = new StringBuilder(length + 8);
+        out.append(in, 0, i);
+        
+        for(; i < length; i++)
+        {
+            char c = in.charAt(i);
+            if(c == '"' || c == '\\')
+            {
+                out.append('\\');
+            }
+            out.append(c);
+        }
+        
+        return out.toString();
     }
     
     public String format(boolean pretty) {
@@ -243,30 +519,36 @@ public class EDFData {
     }
     
     protected void format(StringBuffer data, boolean pretty, String indent) {
-        data.append((pretty ? indent : "") + "<" + name);
+        if(pretty) {
+            data.append(indent);
+        }
+        data.append('<').append(name);
         
         switch(type)
         {
-            case STRING: data.append("=\"" + escape(sValue) + "\"");     break;
-            case INTEGER: data.append("=" + iValue.toString());  break;
+            case STRING:
+                String escaped = raw;
+                data.append("=\"").append(escaped != null ? escaped : escape(sValue)).append('"');
+                break;
+            case INTEGER: data.append('=').append(iValue);  break;
             case NONE: /* Nothing to do */
         }
         
-        if(getChildCount()> 0)
+        if(childCount > 0)
         {
-            data.append(">");
+            data.append('>');
             if(pretty) {
                 data.append(PRETTY_EOL);
             }
             
-            String childIndent = indent + "  ";
-            for(EDFData child : children)
+            String childIndent = (pretty ? indent + "  " : indent);
+            for(int i = 0; i < childCount; i++)
             {
-                child.format(data, pretty, childIndent);
+                getChild(i).format(data, pretty, childIndent);
             }
             
             if(pretty) {
-                data.append(indent + "</" + name + ">");
+                data.append(indent).append("</").append(name).append('>');
             } else {
                 data.append("</>");
             }
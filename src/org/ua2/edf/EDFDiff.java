@@ -0,0 +1,230 @@
+package org.ua2.edf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keyed structural diff of two EDF trees
+ * <p>
+ * The children of the two roots are matched up by key, and each pair is
+ * compared recursively. A child which has children of its own, or whose
+ * name is repeated among its siblings (eg. the &lt;folder&gt; entries of a
+ * folder_list reply), is keyed on its name and value, so &lt;folder=2&gt; is
+ * matched with &lt;folder=2&gt; wherever it is in the list. Any other child
+ * (eg. &lt;nummsgs&gt;) is keyed on its name alone, so a new value shows up
+ * as a change rather than as a removal and an addition.
+ * <p>
+ * The result lists the children which were added, removed or changed.
+ * Children which are identical in both trees aren't mentioned. A change
+ * carries the changes found inside the child, so callers can tell exactly
+ * which values moved.
+ *
+ * @author brian
+ *
+ */
+public final class EDFDiff {
+	public enum Kind { ADDED, REMOVED, CHANGED };
+
+	/**
+	 * One difference between the children of two elements
+	 */
+	public static final class Change {
+		private final Kind kind;
+		private final EDFData before;
+		private final EDFData after;
+		private final List<Change> changes;
+
+		Change(Kind kind, EDFData before, EDFData after, List<Change> changes) {
+			this.kind = kind;
+			this.before = before;
+			this.after = after;
+			this.changes = changes;
+		}
+
+		public Kind getKind() {
+			return kind;
+		}
+
+		/**
+		 * @return the child in the old tree, null if it was added
+		 */
+		public EDFData getBefore() {
+			return before;
+		}
+
+		/**
+		 * @return the child in the new tree, null if it was removed
+		 */
+		public EDFData getAfter() {
+			return after;
+		}
+
+		/**
+		 * @return the name of the child
+		 */
+		public String getName() {
+			return (after != null ? after : before).getName();
+		}
+
+		/**
+		 * @return changes to the child's own children, empty unless the kind is CHANGED
+		 */
+		public List<Change> getChanges() {
+			return changes;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder text = new StringBuilder();
+			text.append(kind).append(' ').append(getName());
+			EDFData element = (after != null ? after : before);
+			if(element.getValue() != null) {
+				text.append('=').append(element.getValue());
+			}
+			if(!changes.isEmpty()) {
+				text.append(' ').append(changes);
+			}
+			return text.toString();
+		}
+	}
+
+	/**
+	 * What a child is matched on
+	 */
+	private static final class Key {
+		final String name;
+		final Object value;
+
+		Key(String name, Object value) {
+			this.name = name;
+			this.value = value;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			Key key = (Key) other;
+			return name.equals(key.name) && (value == null ? key.value == null : value.equals(key.value));
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * name.hashCode() + (value == null ? 0 : value.hashCode());
+		}
+	}
+
+	private EDFDiff() {
+	}
+
+	/**
+	 * Compare the children of two elements
+	 * @param before	Old tree
+	 * @param after		New tree
+	 * @return differences, in the order of the new tree followed by removals, empty if there are none
+	 */
+	public static List<Change> diff(EDFData before, EDFData after) {
+		int beforeCount = before.getChildCount();
+		int afterCount = after.getChildCount();
+		if(beforeCount == 0 && afterCount == 0) {
+			return Collections.emptyList();
+		}
+
+		// Names which appear more than once are keyed on their values too
+		HashMap<String, Integer> names = new HashMap<String, Integer>();
+		count(before, names);
+		count(after, names);
+
+		// Children of the old tree waiting to be matched, in order
+		LinkedHashMap<Key, List<EDFData>> unmatched = new LinkedHashMap<Key, List<EDFData>>();
+		for(int i = 0; i < beforeCount; i++) {
+			EDFData child = before.getChild(i);
+			Key key = key(child, names);
+			List<EDFData> candidates = unmatched.get(key);
+			if(candidates == null) {
+				candidates = new ArrayList<EDFData>(1);
+				unmatched.put(key, candidates);
+			}
+			candidates.add(child);
+		}
+
+		List<Change> changes = null;
+		for(int i = 0; i < afterCount; i++) {
+			EDFData child = after.getChild(i);
+			List<EDFData> candidates = unmatched.get(key(child, names));
+
+			Change change;
+			if(candidates == null || candidates.isEmpty()) {
+				change = new Change(Kind.ADDED, null, child, Collections.<Change>emptyList());
+			} else {
+				change = compare(candidates.remove(0), child);
+			}
+
+			if(change != null) {
+				if(changes == null) {
+					changes = new ArrayList<Change>();
+				}
+				changes.add(change);
+			}
+		}
+
+		for(Map.Entry<Key, List<EDFData>> entry : unmatched.entrySet()) {
+			for(EDFData child : entry.getValue()) {
+				if(changes == null) {
+					changes = new ArrayList<Change>();
+				}
+				changes.add(new Change(Kind.REMOVED, child, null, Collections.<Change>emptyList()));
+			}
+		}
+
+		return (changes == null ? Collections.<Change>emptyList() : changes);
+	}
+
+	/**
+	 * Compare two elements with the same key
+	 * @return CHANGED, or null if they are the same
+	 */
+	private static Change compare(EDFData before, EDFData after) {
+		List<Change> changes = diff(before, after);
+		if(changes.isEmpty() && sameValue(before, after)) {
+			return null;
+		}
+		return new Change(Kind.CHANGED, before, after, changes);
+	}
+
+	private static boolean sameValue(EDFData before, EDFData after) {
+		if(before.type != after.type) {
+			return false;
+		}
+		switch(before.type) {
+			case STRING: return before.getString().equals(after.getString());
+			case INTEGER: return before.iValue == after.iValue;
+			default: return true;
+		}
+	}
+
+	private static void count(EDFData element, HashMap<String, Integer> names) {
+		// Only whether a name is repeated within one element matters
+		HashMap<String, Integer> local = new HashMap<String, Integer>();
+		for(int i = 0; i < element.getChildCount(); i++) {
+			String name = element.getChild(i).name;
+			Integer count = local.get(name);
+			local.put(name, (count == null ? 1 : count + 1));
+		}
+		for(Map.Entry<String, Integer> entry : local.entrySet()) {
+			Integer count = names.get(entry.getKey());
+			if(count == null || count < entry.getValue()) {
+				names.put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private static Key key(EDFData child, HashMap<String, Integer> names) {
+		if(child.getChildCount() > 0 || names.get(child.name) > 1) {
+			return new Key(child.name, child.getValue());
+		}
+		return new Key(child.name, null);
+	}
+}
@@ -0,0 +1,20 @@
+package org.ua2.edf;
+
+import java.io.IOException;
+
+/**
+ * Thrown when EDF input is not well formed
+ *
+ * @author brian
+ *
+ */
+public class EDFFormatException extends IOException {
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 1L;
+
+	public EDFFormatException(String msg) {
+		super(msg);
+	}
+}
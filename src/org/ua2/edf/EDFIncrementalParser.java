@@ -0,0 +1,262 @@
+package org.ua2.edf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Push parser for EDF arriving in pieces
+ * <p>
+ * Rather than blocking on an InputStream, bytes are fed in whatever chunks
+ * they arrive in, eg. from a non-blocking channel read. A chunk can end
+ * anywhere: in the middle of a tag, a UTF-8 sequence or an escape. The
+ * parser keeps the bytes of the element it is in the middle of, and as each
+ * top level element (&lt;reply&gt;, &lt;announce&gt;, &lt;edf&gt;) is
+ * completed it is parsed and passed to the handler.
+ * <p>
+ * Completion is found with the resumable EDFScanner, so the bytes of an
+ * element are only scanned once before they are parsed, and a partial
+ * element is never parsed twice.
+ * <p>
+ * The bytes held for one element are limited, so that a peer which never
+ * closes an element can't use up the heap.
+ * <p>
+ * Parsers are not thread safe. Feed each one from a single thread at a time.
+ *
+ * @author brian
+ *
+ */
+public class EDFIncrementalParser {
+	/**
+	 * Receives each completed top level element
+	 */
+	public interface Handler {
+		void element(EDFData element);
+	}
+
+	public static final int DEFAULT_MAX_ELEMENT_SIZE = 16 * 1024 * 1024;
+
+	private static final int INITIAL_SIZE = 8 * 1024;
+
+	private final Handler handler;
+	private boolean lazy = false;
+	private int maxElementSize = DEFAULT_MAX_ELEMENT_SIZE;
+
+	private EDFScanner scanner = new EDFScanner();
+
+	// Bytes kept from previous feeds, data[0] to data[limit - 1]
+	private byte[] data = new byte[INITIAL_SIZE];
+	private ByteBuffer buffer = ByteBuffer.wrap(data);
+	private int limit = 0;
+	private int scanned = 0;
+
+	// Start of the top level element being scanned, -1 between elements
+	private int elementStart = -1;
+	// End of the top level element just completed, -1 if there isn't one
+	private int elementEnd = -1;
+	// A close tag was found outside any element
+	private boolean stray = false;
+
+	private final EDFScanner.Listener listener = new EDFScanner.Listener() {
+		public boolean start(int level, int offset) {
+			if(level == 1) {
+				elementStart = offset;
+			}
+			return true;
+		}
+
+		public boolean end(int level, int offset) {
+			if(level == 1) {
+				elementEnd = offset;
+				return false;
+			}
+			if(level < 1) {
+				stray = true;
+				return false;
+			}
+			return true;
+		}
+	};
+
+	/**
+	 * @param handler	Receives each completed top level element
+	 */
+	public EDFIncrementalParser(Handler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Keep string values in their escaped form, to be unescaped by the first
+	 * EDFData.getString() on each value
+	 * @param lazy	true to unescape lazily
+	 * @see EDFData#setEscapedString(String)
+	 */
+	public void setLazyStrings(boolean lazy) {
+		this.lazy = lazy;
+	}
+
+	/**
+	 * Set the most bytes to hold for an element which isn't complete yet
+	 * @param size	Number of bytes. DEFAULT_MAX_ELEMENT_SIZE by default
+	 */
+	public void setMaxElementSize(int size) {
+		maxElementSize = size;
+	}
+
+	public int getMaxElementSize() {
+		return maxElementSize;
+	}
+
+	/**
+	 * Feed the bytes between the buffer's position and its limit, passing
+	 * any elements they complete to the handler. The buffer's position is
+	 * moved to its limit
+	 * @param chunk	Next bytes of the input
+	 * @throws EDFFormatException a completed element is not valid EDF. The
+	 * element is dropped, and the bytes after it are parsed by the next feed.
+	 * Or the element in progress is longer than the maximum, in which case
+	 * everything held is dropped as for reset()
+	 */
+	public void feed(ByteBuffer chunk) throws EDFFormatException {
+		int length = chunk.remaining();
+		reserve(length);
+		chunk.get(data, limit, length);
+		limit += length;
+
+		drain();
+	}
+
+	/**
+	 * Feed part of an array
+	 * @see #feed(ByteBuffer)
+	 */
+	public void feed(byte[] bytes, int offset, int length) throws EDFFormatException {
+		reserve(length);
+		System.arraycopy(bytes, offset, data, limit, length);
+		limit += length;
+
+		drain();
+	}
+
+	/**
+	 * @return number of bytes held for an element which isn't complete yet
+	 */
+	public int getBuffered() {
+		return (elementStart == -1 ? 0 : limit - elementStart);
+	}
+
+	/**
+	 * Drop any partial element, eg. after the connection has been lost
+	 */
+	public void reset() {
+		scanner = new EDFScanner();
+		limit = 0;
+		scanned = 0;
+		elementStart = -1;
+		elementEnd = -1;
+		stray = false;
+	}
+
+	/**
+	 * Scan what hasn't been, handing each completed element over
+	 */
+	private void drain() throws EDFFormatException {
+		while(scanned < limit) {
+			scanned = scanner.scan(buffer, scanned, limit, listener);
+
+			if(stray) {
+				int at = scanned;
+				discard(scanned);
+				throw new EDFFormatException("Unexpected close tag ending at offset " + at);
+			}
+
+			if(elementEnd != -1) {
+				int start = elementStart;
+				int end = elementEnd;
+				elementStart = -1;
+				elementEnd = -1;
+
+				// Parsed in place, and the bytes are only reused by the next feed
+				EDFData element = parse(start, end);
+				if(element != null) {
+					handler.element(element);
+				}
+			}
+		}
+
+		// Keep only the element in progress, or the tag which might start one
+		int keep = limit;
+		if(elementStart != -1) {
+			keep = elementStart;
+		} else if(!scanner.isBetweenTags()) {
+			keep = scanner.getTagStart();
+		}
+		if(keep > 0) {
+			compact(keep);
+		}
+
+		if(limit > maxElementSize) {
+			int held = limit;
+			reset();
+			if(data.length > INITIAL_SIZE) {
+				data = new byte[INITIAL_SIZE];
+				buffer = ByteBuffer.wrap(data);
+			}
+			throw new EDFFormatException("Element longer than " + maxElementSize + " bytes (" + held + " held)");
+		}
+	}
+
+	private EDFData parse(int start, int end) throws EDFFormatException {
+		EDFReader reader = EDFReader.create(ByteBuffer.wrap(data, start, end - start));
+		reader.setLazyStrings(lazy);
+		try {
+			return reader.readElement();
+		} catch(EDFFormatException e) {
+			throw e;
+		} catch(IOException e) {
+			// Reading a buffer doesn't do I/O
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Start again after a stray close tag
+	 */
+	private void discard(int to) {
+		scanner = new EDFScanner();
+		stray = false;
+		elementStart = -1;
+		compact(to);
+	}
+
+	/**
+	 * Move the bytes from keep on down to the start of the array
+	 */
+	private void compact(int keep) {
+		System.arraycopy(data, keep, data, 0, limit - keep);
+		limit -= keep;
+		scanned -= keep;
+		if(elementStart != -1) {
+			elementStart -= keep;
+		}
+		scanner.shift(keep);
+	}
+
+	/**
+	 * Make room for length more bytes
+	 */
+	private void reserve(int length) {
+		if(limit + length <= data.length) {
+			return;
+		}
+
+		int size = data.length;
+		while(size < limit + length) {
+			size *= 2;
+		}
+
+		byte[] bigger = new byte[size];
+		System.arraycopy(data, 0, bigger, 0, limit);
+		data = bigger;
+		buffer = ByteBuffer.wrap(data);
+	}
+}
@@ -0,0 +1,91 @@
+package org.ua2.edf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An EDF document read from a memory mapped file
+ * <p>
+ * Opening a document maps the file and parses the root element's start tag.
+ * Nothing else is read until it is navigated to: a structural scan (see
+ * EDFScanner) finds the offsets of an element's children, going only as far
+ * as the child asked for, and only the elements fetched are parsed. So a
+ * single subtree of a very large capture can be read without materializing
+ * the rest of it, and the file's bytes stay in the page cache rather than
+ * on the heap.
+ * <p>
+ * Only the first top level element of the file is read. Files must be
+ * smaller than 2GB.
+ *
+ * @author brian
+ *
+ */
+public class EDFMappedDocument {
+	private final ByteBuffer buffer;
+	private final EDFMappedElement root;
+
+	/**
+	 * Map a file
+	 * @param file	File to open
+	 * @return document
+	 * @throws EDFFormatException the file does not contain an EDF element
+	 * @throws IOException the file could not be mapped
+	 */
+	public static EDFMappedDocument open(File file) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = input.getChannel();
+			if(channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(file + " is too large to map");
+			}
+
+			// The mapping stays valid once the file is closed
+			return new EDFMappedDocument(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Read a document held in a buffer, from index 0 to its limit
+	 * @param buffer	Buffer holding the document. Its contents must not change
+	 * @throws EDFFormatException the buffer does not contain an EDF element
+	 */
+	public EDFMappedDocument(ByteBuffer buffer) throws EDFFormatException {
+		this.buffer = buffer;
+
+		final int[] start = { -1 };
+		new EDFScanner().scan(buffer, 0, buffer.limit(), new EDFScanner.Listener() {
+			public boolean start(int level, int offset) {
+				start[0] = offset;
+				return false;
+			}
+
+			public boolean end(int level, int offset) {
+				return true;
+			}
+		});
+		if(start[0] == -1) {
+			throw new EDFFormatException("No EDF element found");
+		}
+
+		root = new EDFMappedElement(buffer, start[0], buffer.limit());
+	}
+
+	/**
+	 * @return the root element
+	 */
+	public EDFMappedElement getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return size of the document in bytes
+	 */
+	public int getLength() {
+		return buffer.limit();
+	}
+}
@@ -0,0 +1,458 @@
+package org.ua2.edf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An element of an EDFMappedDocument
+ * <p>
+ * Only the element's start tag is parsed up front. Its children are found
+ * by scanning its bytes only as far as the child being asked for, and each
+ * child is only parsed when it is fetched. toEDFData() parses the whole
+ * subtree into an ordinary EDFData tree.
+ * <p>
+ * Elements are not thread safe.
+ *
+ * @author brian
+ *
+ */
+public class EDFMappedElement {
+	// Large subtrees are parsed in parallel
+	private static final EDFParallelParser PARSER = new EDFParallelParser();
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ByteBuffer buffer;
+	private final int start;
+	private final int end;
+
+	// Start and end offsets of the children found so far
+	private int[] offsets = new int[16];
+	private int childCount = 0;
+	private EDFMappedElement[] children;
+
+	// Children are found by scanning forward only as far as is needed
+	private EDFScanner scanner;
+	private int scanned;
+	private boolean complete = false;
+
+	private String name;
+	private EDFData.ValueType type;
+	private String sValue;
+	private int iValue;
+
+	/**
+	 * Create an element, parsing its start tag
+	 * @param buffer	Buffer holding the document
+	 * @param start		Offset of the element's '&lt;'
+	 * @param end		Offset just after the element, or the end of the
+	 * 					document if that isn't known
+	 */
+	EDFMappedElement(ByteBuffer buffer, int start, int end) throws EDFFormatException {
+		this.buffer = buffer;
+		this.start = start;
+		this.end = end;
+
+		readStartTag();
+	}
+
+	/**
+	 * Parse the start tag for the name and value, reading straight out of the
+	 * buffer so that only the value is copied. Accepts the start tags
+	 * EDFStreamReader does; the rest of the element is checked when it is
+	 * scanned or parsed
+	 */
+	private void readStartTag() throws EDFFormatException {
+		type = EDFData.ValueType.NONE;
+
+		int pos = skip(start);
+		if(peek(pos) != '<') {
+			throw new EDFFormatException("No element at offset " + start);
+		}
+		pos = skip(pos + 1);
+
+		int c = peek(pos);
+		if(c == '>') {
+			// <>[children]</>
+			name = "";
+			return;
+		}
+
+		if(c == '=') {
+			// <=value/> or <=value></>
+			name = "";
+			pos = value(skip(pos + 1));
+		} else {
+			if(!isLetter(c)) {
+				throw c == '/' ? new EDFFormatException("No element at offset " + start) : unexpected(c, "name");
+			}
+			int from = pos++;
+			while(pos < end && isNameChar(buffer.get(pos))) {
+				pos++;
+			}
+			name = EDFSymbols.intern(buffer, from, pos - from);
+
+			pos = skip(pos);
+			if(peek(pos) == '=') {
+				pos = value(skip(pos + 1));
+			}
+		}
+
+		c = peek(skip(pos));
+		if(c != '/' && c != '>') {
+			throw unexpected(c, "'/' or '>'");
+		}
+	}
+
+	/**
+	 * Read an integer, string or (ignored) real value
+	 * @return offset just after the value
+	 */
+	private int value(int pos) throws EDFFormatException {
+		int c = peek(pos);
+		if(c == '"') {
+			return string(pos + 1);
+		} else if(c == '-' || c == '.' || isDigit(c)) {
+			return number(pos);
+		}
+		throw unexpected(c, "value");
+	}
+
+	private int number(int pos) throws EDFFormatException {
+		boolean negative = false;
+		long value = 0;
+		int digits = 0;
+
+		if(peek(pos) == '-') {
+			negative = true;
+			pos++;
+		}
+
+		while(isDigit(peek(pos))) {
+			value = value * 10 + (peek(pos++) - '0');
+			if(value > 0x80000000L) {
+				throw new EDFFormatException("Integer value out of range");
+			}
+			digits++;
+		}
+
+		if(peek(pos) == '.') {
+			// Reals are accepted but ignored, as they are by EDFStreamReader
+			pos = digits(pos + 1);
+			if(peek(pos) == 'e') {
+				int c = peek(++pos);
+				if(c != '+' && c != '-') {
+					throw unexpected(c, "'+' or '-'");
+				}
+				pos = digits(pos + 1);
+			}
+			return pos;
+		}
+
+		if(digits == 0) {
+			throw unexpected(peek(pos), "digit");
+		}
+		if(negative) {
+			value = -value;
+		}
+		if(value > Integer.MAX_VALUE) {
+			throw new EDFFormatException("Integer value out of range");
+		}
+
+		iValue = (int) value;
+		type = EDFData.ValueType.INTEGER;
+		return pos;
+	}
+
+	private int digits(int pos) throws EDFFormatException {
+		if(!isDigit(peek(pos))) {
+			throw unexpected(peek(pos), "digit");
+		}
+		while(isDigit(peek(pos))) {
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * Read a string value whose opening quote is just before pos, unescaping
+	 * \\ and \" as it is copied out
+	 * @return offset just after the closing quote
+	 */
+	private int string(int pos) throws EDFFormatException {
+		int from = pos;
+		int escapes = 0;
+
+		while(true) {
+			if(pos >= end) {
+				throw new EDFFormatException("Unterminated string value");
+			}
+			byte b = buffer.get(pos);
+			if(b == '"') {
+				break;
+			}
+			if(b == '\\') {
+				if(pos + 1 >= end) {
+					throw new EDFFormatException("Unterminated string value");
+				}
+				byte escaped = buffer.get(pos + 1);
+				if(escaped != '\\' && escaped != '"') {
+					throw new EDFFormatException("Invalid escape sequence in string value");
+				}
+				escapes++;
+				pos++;
+			}
+			pos++;
+		}
+
+		byte[] bytes = new byte[pos - from - escapes];
+		for(int i = from, n = 0; i < pos; i++) {
+			byte b = buffer.get(i);
+			if(b == '\\') {
+				b = buffer.get(++i);
+			}
+			bytes[n++] = b;
+		}
+
+		sValue = new String(bytes, UTF8);
+		type = EDFData.ValueType.STRING;
+		return pos + 1;
+	}
+
+	/**
+	 * @return the byte at pos, or -1 past the end of the element
+	 */
+	private int peek(int pos) {
+		return (pos < end ? buffer.get(pos) & 0xff : -1);
+	}
+
+	private int skip(int pos) {
+		while(pos < end) {
+			byte b = buffer.get(pos);
+			if(b != ' ' && b != '\r' && b != '\n' && b != '\t') {
+				break;
+			}
+			pos++;
+		}
+		return pos;
+	}
+
+	private static EDFFormatException unexpected(int c, String expected) {
+		if(c == -1) {
+			return new EDFFormatException("Encountered end of input, was expecting " + expected);
+		}
+		return new EDFFormatException("Encountered '" + (char) c + "', was expecting " + expected);
+	}
+
+	private static boolean isLetter(int c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static boolean isDigit(int c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isNameChar(int c) {
+		return isLetter(c) || isDigit(c) || c == '-';
+	}
+
+	private ByteBuffer slice(int from, int to) {
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(to);
+		slice.position(from);
+		return slice;
+	}
+
+	/**
+	 * Scan on until the children up to and including child n have been
+	 * found, or until the element ends
+	 */
+	private void scanTo(final int n) {
+		if(complete || n < childCount) {
+			return;
+		}
+
+		if(scanner == null) {
+			scanner = new EDFScanner();
+			scanned = start;
+		}
+
+		scanned = scanner.scan(buffer, scanned, end, new EDFScanner.Listener() {
+			public boolean start(int level, int offset) {
+				if(level == 2) {
+					if(childCount * 2 == offsets.length) {
+						int[] bigger = new int[offsets.length * 2];
+						System.arraycopy(offsets, 0, bigger, 0, offsets.length);
+						offsets = bigger;
+					}
+					offsets[childCount * 2] = offset;
+				}
+				return true;
+			}
+
+			public boolean end(int level, int offset) {
+				if(level == 2) {
+					offsets[childCount * 2 + 1] = offset;
+					return (++childCount <= n);
+				}
+				if(level == 1) {
+					complete = true;
+					return false;
+				}
+				return true;
+			}
+		});
+
+		if(scanned == end) {
+			complete = true;
+		}
+		if(complete) {
+			scanner = null;
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public EDFData.ValueType getType() {
+		return type;
+	}
+
+	public String getString() {
+		if(type != EDFData.ValueType.STRING) {
+			throw new EDFTypeException("Expecting " + EDFData.ValueType.STRING + " type value, found " + type);
+		}
+		return sValue;
+	}
+
+	public int getInteger() {
+		if(type != EDFData.ValueType.INTEGER) {
+			throw new EDFTypeException("Expecting " + EDFData.ValueType.INTEGER + " type value, found " + type);
+		}
+		return iValue;
+	}
+
+	public Object getValue() {
+		switch(type) {
+			case STRING: return sValue;
+			case INTEGER: return iValue;
+			default: return null;
+		}
+	}
+
+	/**
+	 * @return offset of the element in the document
+	 */
+	public int getOffset() {
+		return start;
+	}
+
+	/**
+	 * Scans the whole element if it hasn't been already
+	 * @return number of children
+	 */
+	public int getChildCount() {
+		scanTo(Integer.MAX_VALUE);
+		return childCount;
+	}
+
+	/**
+	 * @param i	Position of the child
+	 * @return child element
+	 * @throws EDFFormatException the child's start tag is not valid EDF
+	 */
+	public EDFMappedElement getChild(int i) throws EDFFormatException {
+		scanTo(i);
+		if(i < 0 || i >= childCount) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + childCount);
+		}
+
+		if(children == null || children.length <= i) {
+			EDFMappedElement[] bigger = new EDFMappedElement[offsets.length / 2];
+			if(children != null) {
+				System.arraycopy(children, 0, bigger, 0, children.length);
+			}
+			children = bigger;
+		}
+		if(children[i] == null) {
+			children[i] = new EDFMappedElement(buffer, offsets[i * 2], offsets[i * 2 + 1]);
+		}
+		return children[i];
+	}
+
+	/**
+	 * Get the first child with a name, scanning only as far as that child
+	 * @param name	Name to look for
+	 * @return child element, or null if there isn't one
+	 * @throws EDFFormatException a child's start tag is not valid EDF
+	 */
+	public EDFMappedElement getChild(String name) throws EDFFormatException {
+		for(int i = 0; ; i++) {
+			scanTo(i);
+			if(i == childCount) {
+				return null;
+			}
+
+			EDFMappedElement child = getChild(i);
+			if(child.name.equals(name)) {
+				return child;
+			}
+		}
+	}
+
+	/**
+	 * Get every child with a name
+	 * @param name	Name to look for
+	 * @return child elements, empty if there are none
+	 * @throws EDFFormatException a child's start tag is not valid EDF
+	 */
+	public List<EDFMappedElement> getChildren(String name) throws EDFFormatException {
+		List<EDFMappedElement> matches = null;
+		for(int i = 0; i < getChildCount(); i++) {
+			EDFMappedElement child = getChild(i);
+			if(child.name.equals(name)) {
+				if(matches == null) {
+					matches = new ArrayList<EDFMappedElement>();
+				}
+				matches.add(child);
+			}
+		}
+		return (matches == null ? Collections.<EDFMappedElement>emptyList() : matches);
+	}
+
+	/**
+	 * @return a reader over this element and its children
+	 */
+	public EDFReader reader() {
+		return EDFReader.create(slice(start, end));
+	}
+
+	/**
+	 * Parse the element and all of its children. Elements larger than
+	 * EDFParallelParser.DEFAULT_THRESHOLD have their children parsed in parallel
+	 * @return EDFData tree
+	 * @throws EDFFormatException the element is not valid EDF
+	 */
+	public EDFData toEDFData() throws EDFFormatException {
+		if(end - start >= EDFParallelParser.DEFAULT_THRESHOLD) {
+			return PARSER.parse(buffer, start, end);
+		}
+
+		try {
+			EDFData element = reader().readElement();
+			if(element == null) {
+				throw new EDFFormatException("No element at offset " + start);
+			}
+			return element;
+		} catch(EDFFormatException e) {
+			throw e;
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,453 @@
+package org.ua2.edf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable EDF tree
+ * <p>
+ * Every field is final and nothing can be changed once a node is built, so
+ * a tree can be handed to any number of threads without copying or
+ * locking, eg. a cached reply or an announcement fanned out to several
+ * handlers. Use EDFData.freeze() to get one from a parsed tree, and thaw()
+ * to get a mutable copy back.
+ * <p>
+ * Modified copies (withValue(), with(), add(), without()) share every child
+ * they don't change with the original, so building requests from a
+ * template only copies the nodes along the path to the change.
+ * <p>
+ * There is no cursor in the node itself. Iterate over getChildren(), or
+ * use indexOf() to step through the children with a name.
+ *
+ * @author brian
+ *
+ */
+public final class EDFNode {
+	private static final EDFNode[] NO_CHILDREN = new EDFNode[0];
+	private static final int[] NO_POSITIONS = new int[0];
+
+	private final String name;
+	private final EDFData.ValueType type;
+	private final String sValue;
+	private final int iValue;
+	private final EDFNode[] children;
+
+	// Positions of the children with each name, for wide nodes only
+	private final HashMap<String, int[]> index;
+
+	// Cached by hashCode(). Racy, but every thread computes the same value
+	private int hash;
+
+	private EDFNode(String name, EDFData.ValueType type, String sValue, int iValue, EDFNode[] children) {
+		this.name = EDFSymbols.intern(name);
+		this.type = type;
+		this.sValue = sValue;
+		this.iValue = iValue;
+		this.children = children;
+		this.index = (children.length >= EDFChildIndex.INDEX_THRESHOLD ? index(children) : null);
+	}
+
+	private static HashMap<String, int[]> index(EDFNode[] children) {
+		// Count the children with each name, then fill in their positions
+		HashMap<String, int[]> counts = new HashMap<String, int[]>();
+		for(EDFNode child : children) {
+			int[] count = counts.get(child.name);
+			if(count == null) {
+				count = new int[1];
+				counts.put(child.name, count);
+			}
+			count[0]++;
+		}
+
+		HashMap<String, int[]> index = new HashMap<String, int[]>();
+		for(String name : counts.keySet()) {
+			int[] count = counts.get(name);
+			index.put(name, new int[count[0]]);
+			count[0] = 0;
+		}
+		for(int i = 0; i < children.length; i++) {
+			index.get(children[i].name)[counts.get(children[i].name)[0]++] = i;
+		}
+
+		return index;
+	}
+
+	/**
+	 * @param name	Name of the node
+	 * @return node with no value and no children
+	 */
+	public static EDFNode of(String name) {
+		return new EDFNode(name, EDFData.ValueType.NONE, null, 0, NO_CHILDREN);
+	}
+
+	/**
+	 * @param name	Name of the node
+	 * @param value	Value of the node
+	 * @return node with a string value and no children
+	 */
+	public static EDFNode of(String name, String value) {
+		return new EDFNode(name, EDFData.ValueType.STRING, value, 0, NO_CHILDREN);
+	}
+
+	/**
+	 * @param name	Name of the node
+	 * @param value	Value of the node
+	 * @return node with an integer value and no children
+	 */
+	public static EDFNode of(String name, int value) {
+		return new EDFNode(name, EDFData.ValueType.INTEGER, null, value, NO_CHILDREN);
+	}
+
+	/**
+	 * Make an immutable copy of a tree
+	 * @param data	Tree to copy
+	 * @return frozen tree
+	 */
+	public static EDFNode freeze(EDFData data) {
+		EDFNode[] children = NO_CHILDREN;
+		int count = data.getChildCount();
+		if(count > 0) {
+			children = new EDFNode[count];
+			for(int i = 0; i < count; i++) {
+				children[i] = freeze(data.getChild(i));
+			}
+		}
+
+		switch(data.type) {
+			case STRING: return new EDFNode(data.name, data.type, data.getString(), 0, children);
+			case INTEGER: return new EDFNode(data.name, data.type, null, data.iValue, children);
+			default: return new EDFNode(data.name, EDFData.ValueType.NONE, null, 0, children);
+		}
+	}
+
+	/**
+	 * Make a mutable copy of the tree
+	 * @return EDFData tree
+	 */
+	public EDFData thaw() {
+		EDFData data;
+		switch(type) {
+			case STRING: data = new EDFData(name, sValue); break;
+			case INTEGER: data = new EDFData(name, iValue); break;
+			default: data = new EDFData(name);
+		}
+
+		for(EDFNode child : children) {
+			data.add(child.thaw());
+		}
+		return data;
+	}
+
+	// Access methods
+
+	public String getName() {
+		return name;
+	}
+
+	public EDFData.ValueType getType() {
+		return type;
+	}
+
+	public String getString() {
+		if(type != EDFData.ValueType.STRING) {
+			throw new EDFTypeException("Expecting " + EDFData.ValueType.STRING + " type value, found " + type);
+		}
+		return sValue;
+	}
+
+	public int getInt() {
+		if(type != EDFData.ValueType.INTEGER) {
+			throw new EDFTypeException("Expecting " + EDFData.ValueType.INTEGER + " type value, found " + type);
+		}
+		return iValue;
+	}
+
+	public Integer getInteger() {
+		return getInt();
+	}
+
+	public Object getValue() {
+		switch(type) {
+			case STRING: return sValue;
+			case INTEGER: return iValue;
+			default: return null;
+		}
+	}
+
+	public int getChildCount() {
+		return children.length;
+	}
+
+	public EDFNode getChild(int i) {
+		return children[i];
+	}
+
+	/**
+	 * @return read-only view of the children
+	 */
+	public List<EDFNode> getChildren() {
+		return new AbstractList<EDFNode>() {
+			@Override
+			public EDFNode get(int i) {
+				return children[i];
+			}
+
+			@Override
+			public int size() {
+				return children.length;
+			}
+		};
+	}
+
+	/**
+	 * Find the next child with a name. To visit them all:
+	 * <pre>
+	 * for(int i = node.indexOf("folder", 0); i != -1; i = node.indexOf("folder", i + 1)) {
+	 *     EDFNode folder = node.getChild(i);
+	 * }
+	 * </pre>
+	 * @param name	Name to look for
+	 * @param from	Position to start looking at
+	 * @return position of the child, or -1 if there are no more
+	 */
+	public int indexOf(String name, int from) {
+		if(index != null) {
+			int[] positions = positions(name);
+			int i = Arrays.binarySearch(positions, from);
+			if(i < 0) {
+				i = -i - 1;
+			}
+			return (i < positions.length ? positions[i] : -1);
+		}
+
+		for(int i = Math.max(from, 0); i < children.length; i++) {
+			if(children[i].name.equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int[] positions(String name) {
+		int[] positions = index.get(name);
+		return (positions == null ? NO_POSITIONS : positions);
+	}
+
+	/**
+	 * @param name	Name to look for
+	 * @return the first child with the name, or null if there isn't one
+	 */
+	public EDFNode getChild(String name) {
+		int i = indexOf(name, 0);
+		return (i == -1 ? null : children[i]);
+	}
+
+	/**
+	 * @param name	Name to look for
+	 * @return the children with the name, empty if there are none
+	 */
+	public List<EDFNode> getChildren(final String name) {
+		if(index != null) {
+			final int[] positions = positions(name);
+			return new AbstractList<EDFNode>() {
+				@Override
+				public EDFNode get(int i) {
+					return children[positions[i]];
+				}
+
+				@Override
+				public int size() {
+					return positions.length;
+				}
+			};
+		}
+
+		List<EDFNode> matches = null;
+		for(EDFNode child : children) {
+			if(child.name.equals(name)) {
+				if(matches == null) {
+					matches = new ArrayList<EDFNode>();
+				}
+				matches.add(child);
+			}
+		}
+		return (matches == null ? Collections.<EDFNode>emptyList() : Collections.unmodifiableList(matches));
+	}
+
+	/**
+	 * @return iterator over the children with a name
+	 */
+	public Iterable<EDFNode> children(final String name) {
+		return new Iterable<EDFNode>() {
+			public Iterator<EDFNode> iterator() {
+				return new Iterator<EDFNode>() {
+					private int next = indexOf(name, 0);
+
+					public boolean hasNext() {
+						return next != -1;
+					}
+
+					public EDFNode next() {
+						if(next == -1) {
+							throw new NoSuchElementException();
+						}
+						EDFNode child = children[next];
+						next = indexOf(name, next + 1);
+						return child;
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	// Modified copies
+
+	/**
+	 * @return copy of this node with a string value
+	 */
+	public EDFNode withValue(String value) {
+		return new EDFNode(name, EDFData.ValueType.STRING, value, 0, children);
+	}
+
+	/**
+	 * @return copy of this node with an integer value
+	 */
+	public EDFNode withValue(int value) {
+		return new EDFNode(name, EDFData.ValueType.INTEGER, null, value, children);
+	}
+
+	/**
+	 * @return copy of this node with a child added at the end
+	 */
+	public EDFNode add(EDFNode child) {
+		EDFNode[] copy = Arrays.copyOf(children, children.length + 1);
+		copy[children.length] = child;
+		return new EDFNode(name, type, sValue, iValue, copy);
+	}
+
+	public EDFNode add(String name, String value) {
+		return add(of(name, value));
+	}
+
+	public EDFNode add(String name, int value) {
+		return add(of(name, value));
+	}
+
+	/**
+	 * @return copy of this node with child i replaced
+	 */
+	public EDFNode with(int i, EDFNode child) {
+		EDFNode[] copy = children.clone();
+		copy[i] = child;
+		return new EDFNode(name, type, sValue, iValue, copy);
+	}
+
+	/**
+	 * Replace the first child with the same name as child, or add it if
+	 * there isn't one
+	 * @return modified copy of this node
+	 */
+	public EDFNode with(EDFNode child) {
+		int i = indexOf(child.name, 0);
+		return (i == -1 ? add(child) : with(i, child));
+	}
+
+	public EDFNode with(String name, String value) {
+		return with(of(name, value));
+	}
+
+	public EDFNode with(String name, int value) {
+		return with(of(name, value));
+	}
+
+	/**
+	 * @return copy of this node without any children with the name
+	 */
+	public EDFNode without(String name) {
+		int count = 0;
+		for(EDFNode child : children) {
+			if(!child.name.equals(name)) {
+				count++;
+			}
+		}
+		if(count == children.length) {
+			return this;
+		}
+
+		EDFNode[] copy = new EDFNode[count];
+		int n = 0;
+		for(EDFNode child : children) {
+			if(!child.name.equals(name)) {
+				copy[n++] = child;
+			}
+		}
+		return new EDFNode(this.name, type, sValue, iValue, copy);
+	}
+
+	// Output
+
+	@Override
+	public boolean equals(Object other) {
+		if(other == this) {
+			return true;
+		}
+		if(!(other instanceof EDFNode)) {
+			return false;
+		}
+
+		EDFNode node = (EDFNode) other;
+		if(node.hashCode() != hashCode() || !node.name.equals(name) || node.type != type || node.iValue != iValue) {
+			return false;
+		}
+		if(sValue == null ? node.sValue != null : !sValue.equals(node.sValue)) {
+			return false;
+		}
+		return Arrays.equals(children, node.children);
+	}
+
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if(h == 0) {
+			h = name.hashCode();
+			h = 31 * h + type.ordinal();
+			h = 31 * h + (sValue == null ? iValue : sValue.hashCode());
+			h = 31 * h + Arrays.hashCode(children);
+			hash = h;
+		}
+		return h;
+	}
+
+	@Override
+	public String toString() {
+		return format(false);
+	}
+
+	public String format(boolean pretty) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			EDFWriter writer = new EDFWriter(bytes, pretty);
+			writer.write(this);
+			writer.flush();
+			return bytes.toString("UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		} catch(IOException e) {
+			// Can't happen with a ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,301 @@
+package org.ua2.edf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parses large, fully buffered EDF in parallel
+ * <p>
+ * The big replies are flat lists of similar children (the &lt;user&gt;
+ * entries of a user_list, the &lt;message&gt; entries of a message dump).
+ * Rather than parse them strictly in order, the buffer is first scanned for
+ * the boundaries of the root's children (see EDFScanner, which respects
+ * quoted strings and escapes), then runs of children are parsed on a
+ * ForkJoinPool and added to the root in their original order. The result
+ * is the same tree a sequential parse gives.
+ * <p>
+ * Input smaller than the threshold, or with fewer than two children, is
+ * parsed sequentially since the scan wouldn't pay for itself.
+ * <p>
+ * Only the first top level element is parsed. A parser can be shared
+ * between threads once it is set up.
+ *
+ * @author brian
+ *
+ */
+public class EDFParallelParser {
+	/** Default size above which input is parsed in parallel */
+	public static final int DEFAULT_THRESHOLD = 256 * 1024;
+
+	// Smallest run of children worth handing to a task
+	private static final int MIN_CHUNK = 32 * 1024;
+
+	private final ForkJoinPool pool;
+	private volatile int threshold = DEFAULT_THRESHOLD;
+	private volatile boolean lazy = false;
+
+	/**
+	 * Create a parser which uses the common ForkJoinPool
+	 */
+	public EDFParallelParser() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param pool	Pool to parse children on
+	 */
+	public EDFParallelParser(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * @param threshold	Size in bytes from which input is parsed in parallel
+	 */
+	public void setThreshold(int threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Keep string values in their escaped form, to be unescaped by the first
+	 * EDFData.getString() on each value
+	 * @param lazy	true to unescape lazily
+	 * @see EDFData#setEscapedString(String)
+	 */
+	public void setLazyStrings(boolean lazy) {
+		this.lazy = lazy;
+	}
+
+	/**
+	 * Map a file and parse it
+	 * @param file	File to read
+	 * @return EDFData tree
+	 * @throws EDFFormatException the file does not contain valid EDF
+	 * @throws IOException the file could not be mapped
+	 */
+	public EDFData parse(File file) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = input.getChannel();
+			if(channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(file + " is too large to map");
+			}
+
+			return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * @param bytes	UTF-8 EDF
+	 * @return EDFData tree
+	 * @throws EDFFormatException the bytes do not contain valid EDF
+	 */
+	public EDFData parse(byte[] bytes) throws EDFFormatException {
+		return parse(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Parse the buffer from its position to its limit. The buffer itself is
+	 * left untouched
+	 * @param buffer	UTF-8 EDF. Its contents must not change while it is parsed
+	 * @return EDFData tree
+	 * @throws EDFFormatException the buffer does not contain valid EDF
+	 */
+	public EDFData parse(ByteBuffer buffer) throws EDFFormatException {
+		return parse(buffer, buffer.position(), buffer.limit());
+	}
+
+	/**
+	 * Parse the element between two offsets
+	 */
+	EDFData parse(ByteBuffer buffer, int from, int to) throws EDFFormatException {
+		if(to - from < threshold) {
+			return sequential(buffer, from, to);
+		}
+
+		Boundaries boundaries = new Boundaries();
+		new EDFScanner().scan(buffer, from, to, boundaries);
+		if(boundaries.root == -1) {
+			throw new EDFFormatException("No EDF element found");
+		}
+		if(boundaries.count < 2 || !boundaries.closed) {
+			// Nothing to share out, or truncated, in which case the parser says what is wrong
+			return sequential(buffer, boundaries.root, to);
+		}
+
+		EDFData root = readStartTag(buffer, boundaries.root, to);
+
+		Job job = new Job(buffer, boundaries.offsets, boundaries.count);
+		int span = boundaries.offsets[boundaries.count * 2 - 1] - boundaries.offsets[0];
+		job.chunk = Math.max(MIN_CHUNK, span / (pool.getParallelism() * 4));
+		pool.invoke(new ParseTask(job, 0, boundaries.count));
+
+		if(job.failure != null) {
+			if(job.failure instanceof EDFFormatException) {
+				throw (EDFFormatException) job.failure;
+			}
+			// Reading a buffer doesn't do I/O
+			throw new IllegalStateException(job.failure);
+		}
+
+		for(EDFData child : job.children) {
+			root.add(child);
+		}
+		return root;
+	}
+
+	private EDFData sequential(ByteBuffer buffer, int from, int to) throws EDFFormatException {
+		try {
+			EDFData element = reader(buffer, from, to).readElement();
+			if(element == null) {
+				throw new EDFFormatException("No EDF element found");
+			}
+			return element;
+		} catch(EDFFormatException e) {
+			throw e;
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Build the root from its start tag, without its children
+	 */
+	private EDFData readStartTag(ByteBuffer buffer, int from, int to) throws EDFFormatException {
+		EDFReader reader = reader(buffer, from, to);
+		try {
+			if(reader.next() != EDFReader.Event.START_ELEMENT) {
+				throw new EDFFormatException("No element at offset " + from);
+			}
+		} catch(EDFFormatException e) {
+			throw e;
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		switch(reader.getType()) {
+			case STRING: return new EDFData(reader.getName(), reader.getString());
+			case INTEGER: return new EDFData(reader.getName(), reader.getInteger());
+			default: return new EDFData(reader.getName());
+		}
+	}
+
+	private EDFReader reader(ByteBuffer buffer, int from, int to) {
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(to);
+		slice.position(from);
+
+		EDFReader reader = EDFReader.create(slice);
+		reader.setLazyStrings(lazy);
+		return reader;
+	}
+
+	/**
+	 * Collects the offsets of the root and its children
+	 */
+	private static class Boundaries implements EDFScanner.Listener {
+		int root = -1;
+		int[] offsets = new int[64];
+		int count = 0;
+		boolean closed = false;
+
+		public boolean start(int level, int offset) {
+			if(level == 1) {
+				root = offset;
+			} else if(level == 2) {
+				if(count * 2 == offsets.length) {
+					int[] bigger = new int[offsets.length * 2];
+					System.arraycopy(offsets, 0, bigger, 0, offsets.length);
+					offsets = bigger;
+				}
+				offsets[count * 2] = offset;
+			}
+			return true;
+		}
+
+		public boolean end(int level, int offset) {
+			if(level == 2) {
+				offsets[count * 2 + 1] = offset;
+				count++;
+			}
+			if(level == 1) {
+				// Only the first top level element is parsed
+				closed = true;
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * What the tasks of one parse share
+	 */
+	private static class Job {
+		final ByteBuffer buffer;
+		final int[] offsets;
+		final EDFData[] children;
+		int chunk;
+
+		// First failure, after which the remaining tasks give up
+		volatile IOException failure;
+
+		Job(ByteBuffer buffer, int[] offsets, int count) {
+			this.buffer = buffer;
+			this.offsets = offsets;
+			this.children = new EDFData[count];
+		}
+	}
+
+	/**
+	 * Parses children lo to hi, splitting the run in half until it is
+	 * small enough
+	 */
+	private class ParseTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Job job;
+		private final int lo;
+		private final int hi;
+
+		ParseTask(Job job, int lo, int hi) {
+			this.job = job;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			int from = job.offsets[lo * 2];
+			int to = job.offsets[hi * 2 - 1];
+			if(hi - lo > 1 && to - from > job.chunk) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new ParseTask(job, lo, mid), new ParseTask(job, mid, hi));
+				return;
+			}
+
+			if(job.failure != null) {
+				return;
+			}
+
+			// The run is contiguous, so one reader parses it child by child
+			EDFReader reader = reader(job.buffer, from, to);
+			try {
+				for(int i = lo; i < hi; i++) {
+					EDFData child = reader.readElement();
+					if(child == null) {
+						throw new EDFFormatException("Unexpected end of element at offset " + job.offsets[i * 2]);
+					}
+					job.children[i] = child;
+				}
+			} catch(IOException e) {
+				job.failure = e;
+			}
+		}
+	}
+}
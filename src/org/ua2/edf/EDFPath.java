@@ -0,0 +1,503 @@
+package org.ua2.edf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * A compiled path query over EDF
+ * <p>
+ * A path is a list of steps separated by '/', each step naming the
+ * children to move to:
+ * <pre>
+ * folder/name                  the name of every folder
+ * message[fromid=1177]/subject subjects of messages from user 1177
+ * //replyto/fromid             fromid of every replyto, at any depth
+ * folder[subscribed]/*         every child of subscribed folders
+ * /reply[=folder_list]/folder  the folders, if this is a folder_list reply
+ * </pre>
+ * A path is evaluated against a context element. A relative path starts
+ * with the context's children, a path starting '/' with the context itself,
+ * and a step after '//' may match at any depth below the previous one.
+ * '*' matches any name. A predicate [child] requires a child with that
+ * name, [child=value] one with that value, and [=value] is the element's own
+ * value. Values may be integers, quoted strings or bare words, and integers
+ * match either type of value.
+ * <p>
+ * Paths can be evaluated against EDFData trees, or against an EDFReader so
+ * that elements which can't match are skipped rather than built, and a
+ * search for the first match stops as soon as it has one.
+ * <p>
+ * Compiled paths are immutable and can be shared between threads.
+ *
+ * @author brian
+ *
+ */
+public final class EDFPath {
+	private static final int MAX_STEPS = 64;
+
+	private static class Predicate {
+		// Child to test, or null to test the element's own value
+		final String child;
+		// Value to match, or null to just require the child
+		final String value;
+		final boolean isInteger;
+		final int intValue;
+
+		Predicate(String child, String value, boolean quoted) {
+			this.child = child;
+			this.value = value;
+
+			boolean isInteger = false;
+			int intValue = 0;
+			if(value != null && !quoted) {
+				try {
+					intValue = Integer.parseInt(value);
+					isInteger = true;
+				} catch(NumberFormatException e) {
+					// A bare word
+				}
+			}
+			this.isInteger = isInteger;
+			this.intValue = intValue;
+		}
+
+		boolean matches(EDFData element) {
+			if(child == null) {
+				return matchesValue(element);
+			}
+
+			EDFData candidate;
+			for(int n = 0; (candidate = element.getChild(child, n)) != null; n++) {
+				if(value == null || matchesValue(candidate)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean matchesValue(EDFData element) {
+			switch(element.type) {
+				case STRING: return element.getString().equals(value);
+				case INTEGER: return isInteger && element.iValue == intValue;
+				default: return false;
+			}
+		}
+	}
+
+	private static class Step {
+		// Name to match, or null for any name
+		final String name;
+		// The step may match at any depth below the previous one
+		final boolean descendant;
+		final Predicate[] predicates;
+
+		Step(String name, boolean descendant, Predicate[] predicates) {
+			this.name = name;
+			this.descendant = descendant;
+			this.predicates = predicates;
+		}
+
+		boolean matchesName(String other) {
+			return name == null || name.equals(other);
+		}
+
+		boolean matches(EDFData element) {
+			if(!matchesName(element.name)) {
+				return false;
+			}
+			for(Predicate predicate : predicates) {
+				if(!predicate.matches(element)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Gathers matches during one evaluation
+	 */
+	private static class Results {
+		final boolean firstOnly;
+		// Only needed when more than one route can reach the same element
+		final IdentityHashMap<EDFData, Boolean> seen;
+		EDFData first;
+		List<EDFData> all;
+
+		Results(boolean firstOnly, boolean distinct) {
+			this.firstOnly = firstOnly;
+			this.seen = (distinct && !firstOnly ? new IdentityHashMap<EDFData, Boolean>() : null);
+		}
+
+		void add(EDFData element) {
+			if(seen != null && seen.put(element, Boolean.TRUE) != null) {
+				return;
+			}
+
+			if(first == null) {
+				first = element;
+			} else {
+				if(all == null) {
+					all = new ArrayList<EDFData>();
+					all.add(first);
+				}
+				all.add(element);
+			}
+		}
+
+		boolean done() {
+			return firstOnly && first != null;
+		}
+
+		List<EDFData> list() {
+			if(all != null) {
+				return all;
+			}
+			return (first == null ? Collections.<EDFData>emptyList() : Collections.singletonList(first));
+		}
+	}
+
+	private final String path;
+	private final boolean absolute;
+	private final Step[] steps;
+	private final boolean distinct;
+
+	private EDFPath(String path, boolean absolute, Step[] steps) {
+		this.path = path;
+		this.absolute = absolute;
+		this.steps = steps;
+
+		int descendants = 0;
+		for(Step step : steps) {
+			if(step.descendant) {
+				descendants++;
+			}
+		}
+		this.distinct = (descendants > 1);
+	}
+
+	/**
+	 * Compile a path
+	 * @param path	Path to compile
+	 * @return compiled path
+	 * @throws IllegalArgumentException the path is not valid
+	 */
+	public static EDFPath compile(String path) {
+		return new Compiler(path).compile();
+	}
+
+	/**
+	 * Find every element the path matches, in document order
+	 * @param context	Element to evaluate the path against
+	 * @return matching elements, empty if there are none
+	 */
+	public List<EDFData> select(EDFData context) {
+		Results results = new Results(false, distinct);
+		evaluate(context, results);
+		return results.list();
+	}
+
+	/**
+	 * Find the first element the path matches
+	 * @param context	Element to evaluate the path against
+	 * @return first matching element, or null if there isn't one
+	 */
+	public EDFData selectFirst(EDFData context) {
+		Results results = new Results(true, distinct);
+		evaluate(context, results);
+		return results.first;
+	}
+
+	/**
+	 * Find every element the path matches in the element the reader is on,
+	 * building trees only for the matches. The reader is left on the
+	 * context element's END_ELEMENT
+	 * @param reader	Reader on the START_ELEMENT of the context element
+	 * @return matching elements, empty if there are none
+	 * @throws IOException the input could not be read or is not valid EDF
+	 */
+	public List<EDFData> select(EDFReader reader) throws IOException {
+		Results results = new Results(false, distinct);
+		evaluate(reader, results);
+		return results.list();
+	}
+
+	/**
+	 * Find the first element the path matches in the element the reader is
+	 * on. Reading stops as soon as there is a match, leaving the reader on
+	 * the match's END_ELEMENT, somewhere inside the context element
+	 * @param reader	Reader on the START_ELEMENT of the context element
+	 * @return first matching element, or null if there isn't one
+	 * @throws IOException the input could not be read or is not valid EDF
+	 */
+	public EDFData selectFirst(EDFReader reader) throws IOException {
+		Results results = new Results(true, distinct);
+		evaluate(reader, results);
+		return results.first;
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+
+	private void evaluate(EDFData context, Results results) {
+		if(absolute) {
+			consider(context, 0, results);
+		} else {
+			visit(context, 0, results);
+		}
+	}
+
+	/**
+	 * Match step against each child of an element
+	 */
+	private void visit(EDFData element, int step, Results results) {
+		int children = element.getChildCount();
+		for(int i = 0; i < children && !results.done(); i++) {
+			consider(element.getChild(i), step, results);
+		}
+	}
+
+	/**
+	 * Match step against an element
+	 */
+	private void consider(EDFData element, int step, Results results) {
+		if(steps[step].matches(element)) {
+			if(step == steps.length - 1) {
+				results.add(element);
+			} else {
+				visit(element, step + 1, results);
+			}
+		}
+		if(steps[step].descendant) {
+			visit(element, step, results);
+		}
+	}
+
+	private void evaluate(EDFReader reader, Results results) throws IOException {
+		if(reader.getEvent() != EDFReader.Event.START_ELEMENT) {
+			throw new IllegalStateException("Reader is not at the start of an element");
+		}
+
+		long state = 1L;
+		if(absolute) {
+			// The context element is the first candidate
+			state = next(reader, state, results);
+			if(state == 0) {
+				reader.skipElement();
+				return;
+			}
+		}
+
+		walk(reader, state, results);
+	}
+
+	/**
+	 * Walk the children of the element the reader is on. Each bit of the
+	 * state is a step which the children might match
+	 */
+	private void walk(EDFReader reader, long state, Results results) throws IOException {
+		long[] stack = new long[16];
+		int depth = 0;
+		stack[0] = state;
+
+		while(depth >= 0 && !results.done()) {
+			EDFReader.Event event = reader.next();
+			if(event == EDFReader.Event.END_DOCUMENT) {
+				throw new EDFFormatException("Unexpected end of document");
+			}
+			if(event == EDFReader.Event.END_ELEMENT) {
+				depth--;
+				continue;
+			}
+
+			long childState = next(reader, stack[depth], results);
+			if(childState == 0) {
+				// Nothing below here can match, or it has all been dealt with
+				reader.skipElement();
+				continue;
+			}
+
+			if(++depth == stack.length) {
+				long[] bigger = new long[stack.length * 2];
+				System.arraycopy(stack, 0, bigger, 0, depth);
+				stack = bigger;
+			}
+			stack[depth] = childState;
+		}
+	}
+
+	/**
+	 * Match the steps in state against the element the reader is on. An
+	 * element which completes a match or has predicates to check is read
+	 * as a tree and the rest of the evaluation done on the tree
+	 * @return the steps its children might match, 0 if the element has been
+	 * dealt with or nothing below it can match
+	 */
+	private long next(EDFReader reader, long state, Results results) throws IOException {
+		String name = reader.getName();
+
+		long childState = 0;
+		for(long bits = state; bits != 0; bits &= bits - 1) {
+			int step = Long.numberOfTrailingZeros(bits);
+			if(steps[step].matchesName(name)) {
+				if(step == steps.length - 1 || steps[step].predicates.length > 0) {
+					EDFData element = reader.readTree();
+					for(long all = state; all != 0 && !results.done(); all &= all - 1) {
+						consider(element, Long.numberOfTrailingZeros(all), results);
+					}
+					return 0;
+				}
+				childState |= 1L << (step + 1);
+			}
+			if(steps[step].descendant) {
+				childState |= 1L << step;
+			}
+		}
+
+		return childState;
+	}
+
+	/**
+	 * Hand-written parser for the path syntax
+	 */
+	private static class Compiler {
+		private final String path;
+		private int pos = 0;
+
+		Compiler(String path) {
+			this.path = path;
+		}
+
+		EDFPath compile() {
+			boolean absolute = false;
+			List<Step> steps = new ArrayList<Step>();
+
+			if(path.startsWith("/") && !path.startsWith("//")) {
+				absolute = true;
+				pos++;
+			}
+
+			boolean descendant = false;
+			while(true) {
+				if(path.startsWith("//", pos)) {
+					descendant = true;
+					pos += 2;
+				}
+
+				steps.add(step(descendant));
+				if(steps.size() > MAX_STEPS) {
+					throw error("More than " + MAX_STEPS + " steps");
+				}
+
+				if(pos == path.length()) {
+					break;
+				}
+				if(path.startsWith("//", pos)) {
+					continue;
+				}
+				if(path.charAt(pos) != '/') {
+					throw error("Expecting '/'");
+				}
+				pos++;
+				descendant = false;
+			}
+
+			return new EDFPath(path, absolute, steps.toArray(new Step[steps.size()]));
+		}
+
+		private Step step(boolean descendant) {
+			String name;
+			if(pos < path.length() && path.charAt(pos) == '*') {
+				pos++;
+				name = null;
+			} else {
+				name = name();
+				if(name.length() == 0) {
+					throw error("Expecting a name or '*'");
+				}
+			}
+
+			List<Predicate> predicates = new ArrayList<Predicate>();
+			while(pos < path.length() && path.charAt(pos) == '[') {
+				pos++;
+				predicates.add(predicate());
+			}
+
+			return new Step(name, descendant, predicates.toArray(new Predicate[predicates.size()]));
+		}
+
+		private Predicate predicate() {
+			String child = name();
+			if(pos < path.length() && path.charAt(pos) == ']') {
+				if(child.length() == 0) {
+					throw error("Empty predicate");
+				}
+				pos++;
+				return new Predicate(child, null, false);
+			}
+
+			expect('=');
+			boolean quoted = false;
+			String value;
+			if(pos < path.length() && path.charAt(pos) == '"') {
+				quoted = true;
+				value = quoted();
+			} else {
+				int start = pos;
+				while(pos < path.length() && path.charAt(pos) != ']') {
+					pos++;
+				}
+				value = path.substring(start, pos);
+			}
+			expect(']');
+
+			return new Predicate(child.length() == 0 ? null : child, value, quoted);
+		}
+
+		private String name() {
+			int start = pos;
+			while(pos < path.length() && isNameChar(path.charAt(pos))) {
+				pos++;
+			}
+			return path.substring(start, pos);
+		}
+
+		private String quoted() {
+			StringBuilder value = new StringBuilder();
+			pos++;
+			while(true) {
+				if(pos == path.length()) {
+					throw error("Unterminated string");
+				}
+				char c = path.charAt(pos++);
+				if(c == '"') {
+					return value.toString();
+				}
+				if(c == '\\' && pos < path.length()) {
+					c = path.charAt(pos++);
+				}
+				value.append(c);
+			}
+		}
+
+		private void expect(char c) {
+			if(pos == path.length() || path.charAt(pos) != c) {
+				throw error("Expecting '" + c + "'");
+			}
+			pos++;
+		}
+
+		private static boolean isNameChar(char c) {
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '-';
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at position " + pos + " of path " + path);
+		}
+	}
+}
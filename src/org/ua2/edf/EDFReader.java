@@ -0,0 +1,205 @@
+package org.ua2.edf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Pull reader for EDF
+ * <p>
+ * Rather than building an EDFData tree, a reader reports each element as a
+ * START_ELEMENT event, carrying the element's name and value, followed by its
+ * children and then an END_ELEMENT event. This lets large replies be turned
+ * into application objects without holding the whole tree in memory.
+ * <p>
+ * A typical loop over the children of the current element is
+ * <pre>
+ * while(reader.next() == EDFReader.Event.START_ELEMENT) {
+ *     if(reader.getName().equals("folder")) {
+ *         ...
+ *     }
+ *     reader.skipElement();
+ * }
+ * </pre>
+ *
+ * @author brian
+ *
+ */
+public abstract class EDFReader {
+	public enum Event { START_ELEMENT, END_ELEMENT, END_DOCUMENT };
+
+	/**
+	 * Creates a reader which parses EDF from a UTF-8 byte stream. The stream
+	 * may contain any number of top level elements, END_DOCUMENT is reported
+	 * at the end of the stream
+	 * @param input	Stream to read
+	 * @return EDFReader
+	 */
+	public static EDFReader create(InputStream input) {
+		return new EDFStreamReader(input);
+	}
+
+	/**
+	 * Creates a reader which parses EDF from the remaining UTF-8 bytes of a
+	 * buffer. The buffer's own position is left alone
+	 * @param buffer	Buffer to read
+	 * @return EDFReader
+	 */
+	public static EDFReader create(ByteBuffer buffer) {
+		return new EDFStreamReader(new ByteBufferInputStream(buffer.slice()), buffer.remaining());
+	}
+
+	/**
+	 * Creates a reader which walks an existing EDFData tree
+	 * @param root	Tree to read
+	 * @return EDFReader
+	 */
+	public static EDFReader create(EDFData root) {
+		return new EDFTreeReader(root);
+	}
+
+	/**
+	 * Move to the next event
+	 * @return the event
+	 * @throws EDFFormatException the input is not valid EDF
+	 * @throws IOException the input could not be read
+	 */
+	public abstract Event next() throws IOException;
+
+	/**
+	 * @return the current event, or null if next() has not been called
+	 */
+	public abstract Event getEvent();
+
+	/**
+	 * @return name of the current element, valid for START_ELEMENT and END_ELEMENT
+	 */
+	public abstract String getName();
+
+	/**
+	 * @return value type of the current element, valid for START_ELEMENT
+	 */
+	public abstract EDFData.ValueType getType();
+
+	/**
+	 * @return string value of the current element, valid for START_ELEMENT
+	 * @throws EDFTypeException the element does not have a string value
+	 */
+	public abstract String getString();
+
+	/**
+	 * @return integer value of the current element, valid for START_ELEMENT
+	 * @throws EDFTypeException the element does not have an integer value
+	 */
+	public abstract int getInteger();
+
+	/**
+	 * Nesting level of the current element, 1 for a top level element. For
+	 * END_ELEMENT this is the level of the element being closed
+	 * @return nesting level
+	 */
+	public abstract int getDepth();
+
+	/**
+	 * Leave string values escaped until they are read. getString() still
+	 * returns the unescaped value, but trees built by readTree() keep the
+	 * escaped form until EDFData.getString() is called
+	 * @param lazy	true to unescape lazily
+	 * @see org.ua2.edf.EDFData#setEscapedString(String)
+	 */
+	public void setLazyStrings(boolean lazy) {
+		// Only meaningful for readers which parse
+	}
+
+	/**
+	 * @return the string value of the current element as it was sent,
+	 * if it has not been unescaped yet, otherwise null
+	 */
+	String getEscapedString() {
+		return null;
+	}
+
+	public Object getValue() {
+		switch(getType()) {
+			case STRING: return getString();
+			case INTEGER: return getInteger();
+			default: return null;
+		}
+	}
+
+	/**
+	 * Skip over the rest of the current element, leaving the reader on its
+	 * END_ELEMENT event. Does nothing if the current event is already an
+	 * END_ELEMENT
+	 * @throws IOException
+	 */
+	public void skipElement() throws IOException {
+		if(getEvent() != Event.START_ELEMENT) {
+			return;
+		}
+
+		int depth = getDepth();
+		while(true) {
+			Event event = next();
+			if(event == Event.END_ELEMENT && getDepth() == depth) {
+				return;
+			}
+			if(event == Event.END_DOCUMENT) {
+				throw new EDFFormatException("Unexpected end of document in <" + getName() + ">");
+			}
+		}
+	}
+
+	/**
+	 * Build an EDFData tree from the current START_ELEMENT, leaving the reader
+	 * on its END_ELEMENT event
+	 * @return EDFData tree
+	 * @throws IOException
+	 */
+	public EDFData readTree() throws IOException {
+		if(getEvent() != Event.START_ELEMENT) {
+			throw new IllegalStateException("Reader is not at the start of an element");
+		}
+
+		EDFData element = new EDFData(getName());
+		switch(getType()) {
+			case STRING:
+				String escaped = getEscapedString();
+				if(escaped != null) {
+					element.setEscapedString(escaped);
+				} else {
+					element.sValue = getString();
+					element.type = EDFData.ValueType.STRING;
+				}
+				break;
+			case INTEGER:
+				element.iValue = getInteger();
+				element.type = EDFData.ValueType.INTEGER;
+				break;
+			case NONE: /* Nothing to do */
+		}
+
+		Event event;
+		while((event = next()) == Event.START_ELEMENT) {
+			element.add(readTree());
+		}
+		if(event != Event.END_ELEMENT) {
+			throw new EDFFormatException("Unexpected end of document in <" + element.name + ">");
+		}
+
+		return element;
+	}
+
+	/**
+	 * Read the next element as an EDFData tree
+	 * @return EDFData tree, or null if there are no more elements at this level
+	 * @throws IOException
+	 */
+	public EDFData readElement() throws IOException {
+		if(next() != Event.START_ELEMENT) {
+			return null;
+		}
+
+		return readTree();
+	}
+}
@@ -0,0 +1,187 @@
+package org.ua2.edf;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Structural scanner for EDF
+ * <p>
+ * Finds where elements start and end without parsing them. It only tracks
+ * what it needs to do that: whether it is inside a tag, inside a quoted
+ * string or just after an escape, and how deeply elements are nested. This
+ * is several times cheaper than a full parse, so it is used to find the
+ * elements worth parsing.
+ * <p>
+ * The scanner is resumable. Its state is carried from one call to scan() to
+ * the next, so input can be fed to it in pieces that split anywhere, even in
+ * the middle of a tag or an escape.
+ * <p>
+ * The scanner doesn't validate. Malformed input gives meaningless offsets,
+ * which the parser will reject when the element is parsed.
+ *
+ * @author brian
+ *
+ */
+class EDFScanner {
+	/**
+	 * Receives element boundaries. Levels count from 1 for a top level
+	 * element, offsets are positions in the buffer being scanned
+	 */
+	interface Listener {
+		/**
+		 * An element starts
+		 * @param level		Nesting level of the element
+		 * @param offset	Position of its '&lt;'
+		 * @return false to stop scanning
+		 */
+		boolean start(int level, int offset);
+
+		/**
+		 * An element ends
+		 * @param level		Nesting level of the element
+		 * @param offset	Position just after its closing '&gt;'
+		 * @return false to stop scanning
+		 */
+		boolean end(int level, int offset);
+	}
+
+	private static final int TEXT = 0;
+	private static final int TAG_START = 1;
+	private static final int OPEN_TAG = 2;
+	private static final int CLOSE_TAG = 3;
+	private static final int STRING = 4;
+	private static final int ESCAPE = 5;
+
+	private int state = TEXT;
+	private int depth = 0;
+
+	// Position of the '<' of the tag being scanned
+	private int tagStart = -1;
+
+	// The open tag being scanned has a '/', so it closes itself
+	private boolean selfClosing = false;
+
+	/**
+	 * @return nesting level at the point scanning stopped, 0 between top level elements
+	 */
+	int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return true if scanning stopped between tags rather than inside one
+	 */
+	boolean isBetweenTags() {
+		return state == TEXT;
+	}
+
+	/**
+	 * @return position of the '&lt;' of the tag being scanned, if scanning stopped inside one
+	 */
+	int getTagStart() {
+		return tagStart;
+	}
+
+	/**
+	 * Adjust the positions the scanner holds after the bytes being scanned
+	 * have been moved down the buffer
+	 * @param delta	Distance they moved
+	 */
+	void shift(int delta) {
+		tagStart -= delta;
+	}
+
+	/**
+	 * Scan part of a buffer, picking up from the state the last call left
+	 * @param buffer	Buffer to scan, which is read with absolute gets
+	 * @param from		Position to start at
+	 * @param to		Position to stop at
+	 * @param listener	Receives element boundaries
+	 * @return position scanning stopped at, which is to unless the listener stopped it
+	 */
+	int scan(ByteBuffer buffer, int from, int to, Listener listener) {
+		// Work on locals, and save them whenever the listener is called
+		int state = this.state;
+		int pos = from;
+
+		while(pos < to) {
+			byte b = buffer.get(pos++);
+
+			switch(state) {
+				case TEXT:
+					while(b != '<' && pos < to) {
+						b = buffer.get(pos++);
+					}
+					if(b == '<') {
+						state = TAG_START;
+						tagStart = pos - 1;
+					}
+					break;
+
+				case TAG_START:
+					if(b == '/') {
+						state = CLOSE_TAG;
+					} else if(b != ' ' && b != '\r' && b != '\n' && b != '\t') {
+						state = OPEN_TAG;
+						selfClosing = false;
+						pos--;
+						this.state = state;
+						if(!listener.start(++depth, tagStart)) {
+							return pos;
+						}
+					}
+					break;
+
+				case OPEN_TAG:
+					while(b != '"' && b != '/' && b != '>' && pos < to) {
+						b = buffer.get(pos++);
+					}
+					if(b == '"') {
+						state = STRING;
+					} else if(b == '/') {
+						selfClosing = true;
+					} else if(b == '>') {
+						state = TEXT;
+						if(selfClosing) {
+							this.state = state;
+							if(!listener.end(depth--, pos)) {
+								return pos;
+							}
+						}
+					}
+					break;
+
+				case CLOSE_TAG:
+					while(b != '>' && pos < to) {
+						b = buffer.get(pos++);
+					}
+					if(b == '>') {
+						state = TEXT;
+						this.state = state;
+						if(!listener.end(depth--, pos)) {
+							return pos;
+						}
+					}
+					break;
+
+				case STRING:
+					// Most of the bytes are in strings
+					while(b != '"' && b != '\\' && pos < to) {
+						b = buffer.get(pos++);
+					}
+					if(b == '\\') {
+						state = ESCAPE;
+					} else if(b == '"') {
+						state = OPEN_TAG;
+					}
+					break;
+
+				case ESCAPE:
+					state = STRING;
+					break;
+			}
+		}
+
+		this.state = state;
+		return pos;
+	}
+}
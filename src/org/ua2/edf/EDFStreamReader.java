@@ -0,0 +1,496 @@
+package org.ua2.edf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * EDFReader which parses UTF-8 bytes from a stream
+ * <p>
+ * Accepts the same language as the JavaCC grammar in EDFParser.jj. Names,
+ * integers and strings are decoded straight out of the read buffer, so there
+ * is no per-character decoding and no Token object or image String per lexeme.
+ *
+ * @author brian
+ *
+ */
+class EDFStreamReader extends EDFReader {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 8192;
+
+	private InputStream input;
+
+	private byte[] buffer;
+	private int pos = 0;
+	private int limit = 0;
+
+	// Start of the token currently being read, which must be kept in the buffer on refill
+	private int mark = -1;
+
+	// Open elements. Nameless (<>) elements can only be closed by </>
+	private String[] names = new String[16];
+	private boolean[] nameless = new boolean[16];
+	private int depth = 0;
+
+	// Nesting level of the current element
+	private int level = 0;
+
+	// The current element has no children, so the next event is its END_ELEMENT
+	private boolean closed = false;
+
+	private Event event;
+	private String name;
+	private EDFData.ValueType type;
+	private String sValue;
+	private int iValue;
+
+	// Leave strings escaped until they are read
+	private boolean lazyStrings = false;
+
+	// sValue is still escaped
+	private boolean escaped = false;
+
+	EDFStreamReader(InputStream input) {
+		this(input, BUFFER_SIZE);
+	}
+
+	/**
+	 * @param input	Stream to read
+	 * @param size	Expected size of the input. The buffer starts no bigger
+	 * 				than this and grows if a token doesn't fit
+	 */
+	EDFStreamReader(InputStream input, int size) {
+		this.input = input;
+		buffer = new byte[Math.max(16, Math.min(size, BUFFER_SIZE))];
+	}
+
+	@Override
+	public Event next() throws IOException {
+		if(closed) {
+			closed = false;
+			return end();
+		}
+
+		if(depth == 0) {
+			int c = peekToken();
+			if(c == -1) {
+				level = 0;
+				event = Event.END_DOCUMENT;
+				return event;
+			}
+			expect('<');
+			return start();
+		}
+
+		expect('<');
+		if(peekToken() != '/') {
+			return start();
+		}
+		pos++;
+
+		if(!nameless[depth - 1] && isLetter(peekToken())) {
+			name();
+		}
+		expect('>');
+
+		return end();
+	}
+
+	/**
+	 * Parse an opening tag whose '&lt;' has been consumed. All three forms of
+	 * the grammar are accepted:
+	 * <ul>
+	 * <li>&lt;name[=value]/&gt; and &lt;name[=value]&gt;[children]&lt;/[name]&gt;</li>
+	 * <li>&lt;=value/&gt; and &lt;=value&gt;&lt;/&gt;</li>
+	 * <li>&lt;&gt;[children]&lt;/&gt;</li>
+	 * </ul>
+	 */
+	private Event start() throws IOException {
+		type = EDFData.ValueType.NONE;
+		sValue = null;
+		iValue = 0;
+		escaped = false;
+
+		int c = peekToken();
+
+		if(c == '=') {
+			// Obscure cases <=value/> or <=value></>
+			pos++;
+			name = "";
+			value();
+			if(peekToken() == '>') {
+				pos++;
+				expect('<');
+			}
+			expect('/');
+			expect('>');
+			closed = true;
+			return push(false);
+		}
+
+		if(c == '>') {
+			// Obscure case <>[children]</>
+			pos++;
+			name = "";
+			return push(true);
+		}
+
+		// Normal cases <name=value/> or <name>[children]</> etc
+		name = name();
+		if(peekToken() == '=') {
+			pos++;
+			value();
+		}
+
+		c = nextToken();
+		if(c == '/') {
+			if(isLetter(peekToken())) {
+				name();
+			}
+			expect('>');
+			closed = true;
+		} else if(c != '>') {
+			throw unexpected(c, "'/' or '>'");
+		}
+
+		return push(false);
+	}
+
+	private Event push(boolean isNameless) {
+		if(depth == names.length) {
+			String[] biggerNames = new String[depth * 2];
+			System.arraycopy(names, 0, biggerNames, 0, depth);
+			names = biggerNames;
+
+			boolean[] biggerNameless = new boolean[depth * 2];
+			System.arraycopy(nameless, 0, biggerNameless, 0, depth);
+			nameless = biggerNameless;
+		}
+
+		names[depth] = name;
+		nameless[depth] = isNameless;
+		level = ++depth;
+
+		event = Event.START_ELEMENT;
+		return event;
+	}
+
+	private Event end() {
+		level = depth--;
+		name = names[depth];
+		names[depth] = null;
+		type = EDFData.ValueType.NONE;
+		sValue = null;
+
+		event = Event.END_ELEMENT;
+		return event;
+	}
+
+	@Override
+	public Event getEvent() {
+		return event;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public EDFData.ValueType getType() {
+		return type;
+	}
+
+	@Override
+	public String getString() {
+		if(type != EDFData.ValueType.STRING) {
+			throw new EDFTypeException("Expecting " + EDFData.ValueType.STRING + " type value, found " + type);
+		}
+
+		if(escaped) {
+			sValue = EDFData.unescape(sValue);
+			escaped = false;
+		}
+
+		return sValue;
+	}
+
+	@Override
+	public void setLazyStrings(boolean lazy) {
+		lazyStrings = lazy;
+	}
+
+	@Override
+	String getEscapedString() {
+		return (type == EDFData.ValueType.STRING && escaped ? sValue : null);
+	}
+
+	@Override
+	public int getInteger() {
+		if(type != EDFData.ValueType.INTEGER) {
+			throw new EDFTypeException("Expecting " + EDFData.ValueType.INTEGER + " type value, found " + type);
+		}
+
+		return iValue;
+	}
+
+	@Override
+	public int getDepth() {
+		return level;
+	}
+
+	/**
+	 * Parse an integer, string or (ignored) real value
+	 */
+	private void value() throws IOException {
+		int c = peekToken();
+
+		if(c == '"') {
+			pos++;
+			sValue = string();
+			type = EDFData.ValueType.STRING;
+		} else if(c == '-' || c == '.' || isDigit(c)) {
+			number();
+		} else {
+			throw unexpected(c, "value");
+		}
+	}
+
+	private String name() throws IOException {
+		int c = peekToken();
+		if(!isLetter(c)) {
+			throw unexpected(c, "name");
+		}
+
+		mark = pos++;
+		while(true) {
+			if(pos == limit && !fill()) {
+				break;
+			}
+			c = buffer[pos];
+			if(!(isLetter(c) || isDigit(c) || c == '-')) {
+				break;
+			}
+			pos++;
+		}
+
+		String name = EDFSymbols.intern(buffer, mark, pos - mark);
+		mark = -1;
+
+		return name;
+	}
+
+	/**
+	 * Read an integer or real number. Reals are accepted but ignored, as they
+	 * are by the JavaCC grammar
+	 */
+	private void number() throws IOException {
+		boolean negative = false;
+		long value = 0;
+		int digits = 0;
+
+		int c = read();
+		if(c == '-') {
+			negative = true;
+			c = read();
+		}
+
+		while(isDigit(c)) {
+			value = value * 10 + (c - '0');
+			if(value > 0x80000000L) {
+				throw new EDFFormatException("Integer value out of range");
+			}
+			digits++;
+			c = read();
+		}
+
+		if(c == '.') {
+			// Real: ( "-" )? ( <DIGIT> )* ( "." ) ( <DIGIT> )+ ( "e" ( "+" | "-" ) ( <DIGIT> )+ )?
+			c = read();
+			if(!isDigit(c)) {
+				throw unexpected(c, "digit");
+			}
+			while(isDigit(c)) {
+				c = read();
+			}
+			if(c == 'e') {
+				c = read();
+				if(c != '+' && c != '-') {
+					throw unexpected(c, "'+' or '-'");
+				}
+				c = read();
+				if(!isDigit(c)) {
+					throw unexpected(c, "digit");
+				}
+				while(isDigit(c)) {
+					c = read();
+				}
+			}
+			unread(c);
+			return;
+		}
+		unread(c);
+
+		if(digits == 0) {
+			throw unexpected(c, "digit");
+		}
+		if(negative) {
+			value = -value;
+		}
+		if(value > Integer.MAX_VALUE) {
+			throw new EDFFormatException("Integer value out of range");
+		}
+
+		iValue = (int) value;
+		type = EDFData.ValueType.INTEGER;
+	}
+
+	/**
+	 * Read a string value whose opening quote has been consumed, unescaping
+	 * \\ and \" in place unless strings are lazy
+	 */
+	private String string() throws IOException {
+		mark = pos;
+
+		// Length of the unescaped string so far, once the first escape has been seen
+		int written = -1;
+
+		while(true) {
+			if(pos == limit && !fill()) {
+				throw new EDFFormatException("Unterminated string value");
+			}
+
+			byte b = buffer[pos];
+			if(b == '"') {
+				break;
+			}
+
+			if(b == '\\') {
+				if(pos + 1 == limit && !fill()) {
+					throw new EDFFormatException("Unterminated string value");
+				}
+				byte escaped = buffer[pos + 1];
+				if(escaped != '\\' && escaped != '"') {
+					throw new EDFFormatException("Invalid escape sequence in string value");
+				}
+				if(lazyStrings) {
+					// Leave the escape where it is
+					this.escaped = true;
+					pos += 2;
+					continue;
+				}
+				if(written == -1) {
+					written = pos - mark;
+				}
+				buffer[mark + written++] = escaped;
+				pos += 2;
+				continue;
+			}
+
+			if(written != -1) {
+				buffer[mark + written++] = b;
+			}
+			pos++;
+		}
+
+		String s = new String(buffer, mark, (written == -1 ? pos - mark : written), UTF8);
+		mark = -1;
+		pos++;
+
+		return s;
+	}
+
+	private void expect(int expected) throws IOException {
+		int c = nextToken();
+		if(c != expected) {
+			throw unexpected(c, "'" + (char) expected + "'");
+		}
+	}
+
+	/**
+	 * Skip whitespace and return the next byte without consuming it
+	 */
+	private int peekToken() throws IOException {
+		while(true) {
+			if(pos == limit && !fill()) {
+				return -1;
+			}
+			byte b = buffer[pos];
+			if(b != ' ' && b != '\r' && b != '\n' && b != '\t') {
+				return b & 0xff;
+			}
+			pos++;
+		}
+	}
+
+	/**
+	 * Skip whitespace and consume the next byte
+	 */
+	private int nextToken() throws IOException {
+		int c = peekToken();
+		if(c != -1) {
+			pos++;
+		}
+		return c;
+	}
+
+	private int read() throws IOException {
+		if(pos == limit && !fill()) {
+			return -1;
+		}
+		return buffer[pos++] & 0xff;
+	}
+
+	private void unread(int c) {
+		if(c != -1) {
+			pos--;
+		}
+	}
+
+	/**
+	 * Read more input into the buffer, keeping any marked token
+	 * @return false at end of input
+	 */
+	private boolean fill() throws IOException {
+		int keep = (mark == -1 ? limit : mark);
+		int kept = limit - keep;
+
+		if(kept > 0) {
+			if(kept == buffer.length) {
+				byte[] bigger = new byte[buffer.length * 2];
+				System.arraycopy(buffer, keep, bigger, 0, kept);
+				buffer = bigger;
+			} else {
+				System.arraycopy(buffer, keep, buffer, 0, kept);
+			}
+		}
+		if(mark != -1) {
+			mark = 0;
+		}
+		pos -= keep;
+		limit = kept;
+
+		int count = input.read(buffer, limit, buffer.length - limit);
+		if(count <= 0) {
+			return false;
+		}
+		limit += count;
+
+		return true;
+	}
+
+	private EDFFormatException unexpected(int c, String expected) {
+		if(c == -1) {
+			return new EDFFormatException("Encountered end of input, was expecting " + expected);
+		}
+		return new EDFFormatException("Encountered '" + (char) c + "', was expecting " + expected);
+	}
+
+	private static boolean isLetter(int c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static boolean isDigit(int c) {
+		return c >= '0' && c <= '9';
+	}
+}
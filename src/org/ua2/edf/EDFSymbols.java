@@ -0,0 +1,250 @@
+package org.ua2.edf;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Symbol table of element names, shared by every parse in the JVM
+ * <p>
+ * The same few dozen names (folder, user, name, accesslevel...) make up
+ * nearly every element the server sends. Interning them here means each
+ * distinct name is held once, as the same String instance as the equivalent
+ * literal in the code, and gets a small integer id.
+ * <p>
+ * The table is bounded. Once it is full, new names are simply not interned.
+ * Symbols are never removed, so a name that is interned stays interned.
+ * <p>
+ * Lookups don't lock; adding a symbol does.
+ *
+ * @author brian
+ *
+ */
+public final class EDFSymbols {
+	/**
+	 * Id returned for names which are not in the table
+	 */
+	public static final int NONE = -1;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	static final int MAX_SYMBOLS = 4096;
+	static final int MAX_LENGTH = 64;
+
+	// Open addressing, kept at most half full
+	private static final int TABLE_SIZE = MAX_SYMBOLS * 2;
+
+	/**
+	 * An interned name. All fields are final, so a Symbol read from the
+	 * table without locking is always seen fully constructed
+	 */
+	static final class Symbol {
+		final String name;
+		final int hash;
+		final int id;
+
+		Symbol(String name, int hash, int id) {
+			this.name = name;
+			this.hash = hash;
+			this.id = id;
+		}
+	}
+
+	private static final Symbol[] table = new Symbol[TABLE_SIZE];
+	private static final Symbol[] symbols = new Symbol[MAX_SYMBOLS];
+	private static int count = 0;
+
+	private EDFSymbols() {
+	}
+
+	/**
+	 * Get the canonical instance of a name, adding it to the table if there
+	 * is room
+	 * @param name	Element name
+	 * @return canonical instance, or name itself if it cannot be interned
+	 */
+	public static String intern(String name) {
+		Symbol symbol = find(name);
+		if(symbol == null) {
+			symbol = add(name, name.hashCode());
+		}
+
+		return (symbol == null ? name : symbol.name);
+	}
+
+	/**
+	 * Get the canonical instance of a name without adding it to the table
+	 * @param name	Element name
+	 * @return canonical instance, or null if the name isn't interned
+	 */
+	public static String canonical(String name) {
+		Symbol symbol = find(name);
+
+		return (symbol == null ? null : symbol.name);
+	}
+
+	/**
+	 * Get the id of a name without adding it to the table
+	 * @param name	Element name
+	 * @return symbol id, or NONE if the name isn't interned
+	 */
+	public static int id(String name) {
+		Symbol symbol = find(name);
+
+		return (symbol == null ? NONE : symbol.id);
+	}
+
+	/**
+	 * Get the name for a symbol id
+	 * @param id	Symbol id
+	 * @return name, or null if there is no such symbol
+	 */
+	public static String name(int id) {
+		if(id < 0 || id >= MAX_SYMBOLS) {
+			return null;
+		}
+
+		Symbol symbol = symbols[id];
+		return (symbol == null ? null : symbol.name);
+	}
+
+	/**
+	 * @return the number of interned names
+	 */
+	public static synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Get the canonical instance of a name held as ASCII bytes, adding it to
+	 * the table if there is room. No String is created if the name is
+	 * already interned
+	 * @param bytes		Buffer holding the name
+	 * @param offset	Start of the name
+	 * @param length	Length of the name
+	 * @return canonical instance, or a new String if the name cannot be interned
+	 */
+	static String intern(byte[] bytes, int offset, int length) {
+		// Same as String.hashCode() for an ASCII string
+		int hash = 0;
+		for(int i = 0; i < length; i++) {
+			hash = 31 * hash + bytes[offset + i];
+		}
+
+		for(int slot = hash & (TABLE_SIZE - 1); ; slot = (slot + 1) & (TABLE_SIZE - 1)) {
+			Symbol symbol = table[slot];
+			if(symbol == null) {
+				break;
+			}
+			if(symbol.hash == hash && matches(symbol.name, bytes, offset, length)) {
+				return symbol.name;
+			}
+		}
+
+		String name = new String(bytes, offset, length, ASCII);
+		Symbol symbol = add(name, hash);
+
+		return (symbol == null ? name : symbol.name);
+	}
+
+	/**
+	 * Get the canonical instance of a name held as ASCII bytes in a buffer,
+	 * as intern(byte[], int, int) does. The buffer's position is left alone
+	 * @param buffer	Buffer holding the name
+	 * @param offset	Start of the name
+	 * @param length	Length of the name
+	 * @return canonical instance, or a new String if the name cannot be interned
+	 */
+	static String intern(ByteBuffer buffer, int offset, int length) {
+		if(buffer.hasArray()) {
+			return intern(buffer.array(), buffer.arrayOffset() + offset, length);
+		}
+
+		// Same as String.hashCode() for an ASCII string
+		int hash = 0;
+		for(int i = 0; i < length; i++) {
+			hash = 31 * hash + buffer.get(offset + i);
+		}
+
+		for(int slot = hash & (TABLE_SIZE - 1); ; slot = (slot + 1) & (TABLE_SIZE - 1)) {
+			Symbol symbol = table[slot];
+			if(symbol == null) {
+				break;
+			}
+			if(symbol.hash == hash && matches(symbol.name, buffer, offset, length)) {
+				return symbol.name;
+			}
+		}
+
+		byte[] bytes = new byte[length];
+		for(int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(offset + i);
+		}
+		String name = new String(bytes, ASCII);
+		Symbol symbol = add(name, hash);
+
+		return (symbol == null ? name : symbol.name);
+	}
+
+	private static boolean matches(String name, ByteBuffer buffer, int offset, int length) {
+		if(name.length() != length) {
+			return false;
+		}
+
+		for(int i = 0; i < length; i++) {
+			if(name.charAt(i) != buffer.get(offset + i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static boolean matches(String name, byte[] bytes, int offset, int length) {
+		if(name.length() != length) {
+			return false;
+		}
+
+		for(int i = 0; i < length; i++) {
+			if(name.charAt(i) != bytes[offset + i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static Symbol find(String name) {
+		int hash = name.hashCode();
+
+		for(int slot = hash & (TABLE_SIZE - 1); ; slot = (slot + 1) & (TABLE_SIZE - 1)) {
+			Symbol symbol = table[slot];
+			if(symbol == null) {
+				return null;
+			}
+			if(symbol.name == name || (symbol.hash == hash && symbol.name.equals(name))) {
+				return symbol;
+			}
+		}
+	}
+
+	private static synchronized Symbol add(String name, int hash) {
+		int slot = hash & (TABLE_SIZE - 1);
+		for(; table[slot] != null; slot = (slot + 1) & (TABLE_SIZE - 1)) {
+			// Someone else may have added it since the unlocked lookup
+			if(table[slot].hash == hash && table[slot].name.equals(name)) {
+				return table[slot];
+			}
+		}
+
+		if(count == MAX_SYMBOLS || name.length() > MAX_LENGTH) {
+			return null;
+		}
+
+		// Share the instance with any equal literals in the code
+		Symbol symbol = new Symbol(name.intern(), hash, count);
+		symbols[count++] = symbol;
+		table[slot] = symbol;
+
+		return symbol;
+	}
+}
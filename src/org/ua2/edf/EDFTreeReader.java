@@ -0,0 +1,148 @@
+package org.ua2.edf;
+
+/**
+ * EDFReader which walks an existing EDFData tree
+ *
+ * @author brian
+ *
+ */
+class EDFTreeReader extends EDFReader {
+	private EDFData root;
+
+	// Path from the root to the current element, and the position in each parent's children
+	private EDFData[] path = new EDFData[16];
+	private int[] positions = new int[16];
+	private int depth = 0;
+
+	private Event event;
+	private EDFData current;
+
+	EDFTreeReader(EDFData root) {
+		this.root = root;
+	}
+
+	@Override
+	public Event next() {
+		if(event == null) {
+			return start(root);
+		}
+
+		if(event == Event.END_DOCUMENT) {
+			return event;
+		}
+
+		if(depth == 0) {
+			// Finished the root element
+			current = null;
+			event = Event.END_DOCUMENT;
+			return event;
+		}
+
+		EDFData parent = path[depth - 1];
+		int position = positions[depth - 1];
+		if(position < parent.getChildCount()) {
+			positions[depth - 1]++;
+			return start(parent.getChild(position));
+		}
+
+		// No more children, close the parent
+		depth--;
+		current = parent;
+		event = Event.END_ELEMENT;
+		return event;
+	}
+
+	private Event start(EDFData element) {
+		if(depth == path.length) {
+			EDFData[] biggerPath = new EDFData[depth * 2];
+			System.arraycopy(path, 0, biggerPath, 0, depth);
+			path = biggerPath;
+
+			int[] biggerPositions = new int[depth * 2];
+			System.arraycopy(positions, 0, biggerPositions, 0, depth);
+			positions = biggerPositions;
+		}
+
+		path[depth] = element;
+		positions[depth] = 0;
+		depth++;
+
+		current = element;
+		event = Event.START_ELEMENT;
+		return event;
+	}
+
+	@Override
+	public Event getEvent() {
+		return event;
+	}
+
+	@Override
+	public String getName() {
+		return (current == null ? null : current.name);
+	}
+
+	@Override
+	public EDFData.ValueType getType() {
+		return (event == Event.START_ELEMENT ? current.type : EDFData.ValueType.NONE);
+	}
+
+	@Override
+	public String getString() {
+		if(event != Event.START_ELEMENT) {
+			throw new EDFTypeException("Expecting " + EDFData.ValueType.STRING + " type value, found " + EDFData.ValueType.NONE);
+		}
+
+		return current.getString();
+	}
+
+	@Override
+	public int getInteger() {
+		if(event != Event.START_ELEMENT) {
+			throw new EDFTypeException("Expecting " + EDFData.ValueType.INTEGER + " type value, found " + EDFData.ValueType.NONE);
+		}
+
+		return current.getInt();
+	}
+
+	@Override
+	public int getDepth() {
+		if(event == Event.START_ELEMENT) {
+			return depth;
+		}
+		if(event == Event.END_ELEMENT) {
+			return depth + 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Skips the element by moving straight to its END_ELEMENT
+	 * @see org.ua2.edf.EDFReader#skipElement()
+	 */
+	@Override
+	public void skipElement() {
+		if(event != Event.START_ELEMENT) {
+			return;
+		}
+
+		depth--;
+		event = Event.END_ELEMENT;
+	}
+
+	/**
+	 * Returns the current element itself rather than a copy of it
+	 * @see org.ua2.edf.EDFReader#readTree()
+	 */
+	@Override
+	public EDFData readTree() {
+		if(event != Event.START_ELEMENT) {
+			throw new IllegalStateException("Reader is not at the start of an element");
+		}
+
+		EDFData element = current;
+		skipElement();
+
+		return element;
+	}
+}
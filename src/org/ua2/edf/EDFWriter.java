@@ -0,0 +1,290 @@
+package org.ua2.edf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming EDF serializer
+ * <p>
+ * Writes an EDFData (or EDFNode) tree as UTF-8 straight into an OutputStream or a
+ * ByteBuffer. Values are escaped and encoded as they are written, through a
+ * buffer which is reused from one tree to the next, so no String is built
+ * for the message or for any part of it.
+ * <p>
+ * The output is the same as EDFData.format(), compact or pretty. Output is
+ * buffered, call flush() once a message is complete. A writer is not thread
+ * safe.
+ *
+ * @author brian
+ *
+ */
+public class EDFWriter {
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final byte[] PRETTY_EOL = { '\r', '\n' };
+
+	private final OutputStream output;
+	private final ByteBuffer target;
+	private final boolean pretty;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int count = 0;
+
+	// Digits of an integer value, least significant first
+	private final byte[] digits = new byte[10];
+
+	/**
+	 * Creates a compact writer on a stream
+	 * @param output	Stream to write to
+	 */
+	public EDFWriter(OutputStream output) {
+		this(output, false);
+	}
+
+	/**
+	 * Creates a writer on a stream
+	 * @param output	Stream to write to
+	 * @param pretty	true to indent elements one per line
+	 */
+	public EDFWriter(OutputStream output, boolean pretty) {
+		this.output = output;
+		this.target = null;
+		this.pretty = pretty;
+	}
+
+	/**
+	 * Creates a compact writer into a buffer
+	 * @param target	Buffer to write to, from its current position
+	 */
+	public EDFWriter(ByteBuffer target) {
+		this(target, false);
+	}
+
+	/**
+	 * Creates a writer into a buffer. flush() throws
+	 * java.nio.BufferOverflowException if the buffer runs out of room
+	 * @param target	Buffer to write to, from its current position
+	 * @param pretty	true to indent elements one per line
+	 */
+	public EDFWriter(ByteBuffer target, boolean pretty) {
+		this.output = null;
+		this.target = target;
+		this.pretty = pretty;
+	}
+
+	/**
+	 * Write an element and its children
+	 * @param element	Element to write
+	 * @throws IOException the stream could not be written
+	 */
+	public void write(EDFData element) throws IOException {
+		write(element, 0);
+	}
+
+	/**
+	 * Write an immutable tree
+	 * @param node	Tree to write
+	 * @throws IOException the stream could not be written
+	 */
+	public void write(EDFNode node) throws IOException {
+		write(node, 0);
+	}
+
+	/**
+	 * Write out anything still buffered, and flush the stream
+	 * @throws IOException the stream could not be written
+	 */
+	public void flush() throws IOException {
+		drain();
+		if(output != null) {
+			output.flush();
+		}
+	}
+
+	/**
+	 * Drop anything buffered but not yet written out, eg. the start of an
+	 * element whose write failed part way
+	 */
+	public void discard() {
+		count = 0;
+	}
+
+	private void write(EDFData element, int level) throws IOException {
+		int children = element.getChildCount();
+
+		// Still escaped values are written out as they were sent
+		String escaped = element.getEscapedString();
+		startTag(element.name, element.type, (escaped != null ? escaped : element.sValue), escaped == null, element.iValue, children > 0, level);
+		for(int i = 0; i < children; i++) {
+			write(element.getChild(i), level + 1);
+		}
+		endTag(element.name, children > 0, level);
+	}
+
+	private void write(EDFNode node, int level) throws IOException {
+		int children = node.getChildCount();
+
+		EDFData.ValueType type = node.getType();
+		String sValue = (type == EDFData.ValueType.STRING ? node.getString() : null);
+		int iValue = (type == EDFData.ValueType.INTEGER ? node.getInt() : 0);
+
+		startTag(node.getName(), type, sValue, true, iValue, children > 0, level);
+		for(int i = 0; i < children; i++) {
+			write(node.getChild(i), level + 1);
+		}
+		endTag(node.getName(), children > 0, level);
+	}
+
+	private void startTag(String name, EDFData.ValueType type, String sValue, boolean escape, int iValue, boolean children, int level) throws IOException {
+		if(pretty) {
+			indent(level);
+		}
+		put('<');
+		putName(name);
+
+		switch(type) {
+			case STRING:
+				put('=');
+				put('"');
+				putString(sValue, escape);
+				put('"');
+				break;
+			case INTEGER:
+				put('=');
+				putInteger(iValue);
+				break;
+			case NONE: /* Nothing to do */
+		}
+
+		if(children) {
+			put('>');
+			if(pretty) {
+				put(PRETTY_EOL);
+			}
+		}
+	}
+
+	private void endTag(String name, boolean children, int level) throws IOException {
+		if(children) {
+			if(pretty) {
+				indent(level);
+				put('<');
+				put('/');
+				putName(name);
+				put('>');
+			} else {
+				put('<');
+				put('/');
+				put('>');
+			}
+		} else {
+			put('/');
+			put('>');
+		}
+
+		// Same as format(), no line break after the top level element
+		if(pretty && level > 0) {
+			put(PRETTY_EOL);
+		}
+	}
+
+	private void indent(int level) throws IOException {
+		for(int i = 0; i < level; i++) {
+			put(' ');
+			put(' ');
+		}
+	}
+
+	private void putName(String name) throws IOException {
+		int length = name.length();
+		for(int i = 0; i < length; i++) {
+			char c = name.charAt(i);
+			if(c < 0x80) {
+				put(c);
+			} else {
+				// Not a valid name, but write what we were given
+				putString(name.substring(i), false);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Encode a string as UTF-8, optionally escaping \ and ". Unpaired
+	 * surrogates are written as '?', as String.getBytes() does
+	 */
+	private void putString(String value, boolean escape) throws IOException {
+		int length = value.length();
+		for(int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+
+			if(c < 0x80) {
+				if(escape && (c == '"' || c == '\\')) {
+					put('\\');
+				}
+				put(c);
+			} else if(c < 0x800) {
+				put(0xc0 | (c >> 6));
+				put(0x80 | (c & 0x3f));
+			} else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codepoint = Character.toCodePoint(c, value.charAt(++i));
+				put(0xf0 | (codepoint >> 18));
+				put(0x80 | ((codepoint >> 12) & 0x3f));
+				put(0x80 | ((codepoint >> 6) & 0x3f));
+				put(0x80 | (codepoint & 0x3f));
+			} else if(Character.isSurrogate(c)) {
+				put('?');
+			} else {
+				put(0xe0 | (c >> 12));
+				put(0x80 | ((c >> 6) & 0x3f));
+				put(0x80 | (c & 0x3f));
+			}
+		}
+	}
+
+	private void putInteger(int value) throws IOException {
+		// Work in negatives so that Integer.MIN_VALUE doesn't overflow
+		if(value < 0) {
+			put('-');
+		} else {
+			value = -value;
+		}
+
+		int n = 0;
+		do {
+			digits[n++] = (byte) ('0' - (value % 10));
+			value /= 10;
+		} while(value != 0);
+
+		while(n > 0) {
+			put(digits[--n]);
+		}
+	}
+
+	private void put(byte[] bytes) throws IOException {
+		for(byte b : bytes) {
+			put(b);
+		}
+	}
+
+	private void put(int b) throws IOException {
+		if(count == BUFFER_SIZE) {
+			drain();
+		}
+		buffer[count++] = (byte) b;
+	}
+
+	private void drain() throws IOException {
+		if(count == 0) {
+			return;
+		}
+
+		if(output != null) {
+			output.write(buffer, 0, count);
+		} else {
+			target.put(buffer, 0, count);
+		}
+		count = 0;
+	}
+}
@@ -0,0 +1,65 @@
+package org.ua2.edf.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.ua2.edf.EDFData;
+import org.ua2.edf.EDFReader;
+
+/**
+ * Hand-written EDF parser
+ * <p>
+ * Accepts the same language as the JavaCC grammar in EDFParser.jj and
+ * produces the same EDFData trees, but works directly on the UTF-8 bytes of
+ * the input stream (see EDFReader). Names, integers and strings are decoded
+ * straight out of the read buffer, so there is no per-character decoding and
+ * no Token object or image String per lexeme.
+ * <p>
+ * Like the generated parser, an instance reads ahead into its own buffer, so
+ * the same instance must be used for every element read from a stream.
+ *
+ * @author brian
+ *
+ */
+public class EDFByteParser implements EDFTreeParser {
+	private EDFReader reader;
+
+	public EDFByteParser(InputStream input) {
+		reader = EDFReader.create(input);
+	}
+
+	/**
+	 * Parse the next complete EDF element. All three forms of the grammar are
+	 * accepted:
+	 * <ul>
+	 * <li>&lt;name[=value]/&gt; and &lt;name[=value]&gt;[children]&lt;/[name]&gt;</li>
+	 * <li>&lt;=value/&gt; and &lt;=value&gt;&lt;/&gt;</li>
+	 * <li>&lt;&gt;[children]&lt;/&gt;</li>
+	 * </ul>
+	 * @see org.ua2.edf.parser.EDFTreeParser#elementtree()
+	 */
+	public EDFData elementtree() throws ParseException {
+		try {
+			EDFData element = reader.readElement();
+			if(element == null) {
+				throw new ParseException("Encountered end of input, was expecting '<'");
+			}
+			return element;
+		} catch(IOException e) {
+			throw new ParseException(e.getMessage());
+		}
+	}
+
+	public void setLazyStrings(boolean lazy) {
+		reader.setLazyStrings(lazy);
+	}
+
+	/**
+	 * Get the pull reader this parser reads from, so that elements can be
+	 * consumed as events rather than as trees
+	 * @return EDFReader
+	 */
+	public EDFReader getReader() {
+		return reader;
+	}
+}
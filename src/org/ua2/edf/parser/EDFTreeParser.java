@@ -0,0 +1,30 @@
+package org.ua2.edf.parser;
+
+import org.ua2.edf.EDFData;
+
+/**
+ * Common interface of the EDF parsers
+ * <p>
+ * EDFParser (generated by JavaCC from EDFParser.jj) is the reference
+ * implementation, EDFByteParser is a hand-written equivalent which works
+ * directly on UTF-8 bytes
+ *
+ * @author brian
+ *
+ */
+public interface EDFTreeParser {
+	/**
+	 * Parse the next complete EDF element, including its children
+	 * @return EDFData tree
+	 * @throws ParseException the input is not valid EDF
+	 */
+	EDFData elementtree() throws ParseException;
+
+	/**
+	 * Keep string values in their escaped form, to be unescaped by the first
+	 * EDFData.getString() on each value
+	 * @param lazy	true to unescape lazily
+	 * @see org.ua2.edf.EDFData#setEscapedString(String)
+	 */
+	void setLazyStrings(boolean lazy);
+}
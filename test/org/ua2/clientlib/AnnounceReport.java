@@ -0,0 +1,82 @@
+package org.ua2.clientlib;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.ua2.edf.EDFData;
+
+/**
+ * Compares a thread for each announcement with the lane dispatcher, with and
+ * without conflation by userid, during a login storm
+ * <p>
+ * Run from the project directory, optionally with the number of logins.
+ * The time to handle every announcement, the peak thread count, the
+ * queue's latency, the number of handler calls and the number dropped
+ * are reported.
+ */
+public class AnnounceReport {
+	private static void run(String mode, Executor executor, boolean conflate, int logins) throws Exception {
+		MockUAServer server = new MockUAServer();
+		UAConnection connection = new UAConnection();
+		if (executor != null) {
+			connection.getAnnounceQueue().setExecutor(executor);
+		}
+		if (conflate) {
+			connection.getAnnounceQueue().conflate("user_*", "userid");
+		}
+
+		final AtomicInteger calls = new AtomicInteger();
+		connection.getAnnounceQueue().subscribe("user_login", new EDFAnnouncement() {
+			public void announce(EDFData announcement) {
+				// A handler slower than the server, eg. one updating a display
+				LockSupport.parkNanos(100000);
+				calls.incrementAndGet();
+			}
+		});
+		connection.connect("localhost", server.getPort());
+
+		ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+		int before = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		long start = System.nanoTime();
+		StringBuilder storm = new StringBuilder();
+		for (int i = 0; i < logins; i++) {
+			storm.append("<announce=\"user_login\"><userid=").append(i % 500).append("/><username=\"User").append(i).append("\"/></>");
+			if (i % 100 == 99) {
+				server.broadcast(storm.toString());
+				storm.setLength(0);
+			}
+		}
+		server.broadcast(storm.toString());
+
+		AnnounceQueue queue = connection.getAnnounceQueue();
+		long end = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(5);
+		while (queue.getDelivered() + queue.getConflated() + queue.getDropped() < logins) {
+			if (System.currentTimeMillis() > end) {
+				throw new IllegalStateException("Announcements not handled");
+			}
+			Thread.sleep(1);
+		}
+		double elapsed = (System.nanoTime() - start) / 1000000.0;
+
+		System.out.printf("%-10s %8.0f ms %6d peak extra threads %6d max depth %8.2f ms max latency %6d calls %6d dropped%n", mode, elapsed,
+				ManagementFactory.getThreadMXBean().getPeakThreadCount() - before, queue.getMaxDepth(), queue.getMaxLatency() / 1000000.0,
+				calls.get(), queue.getDropped());
+
+		connection.disconnect();
+		server.stop();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int logins = (args.length > 0 ? Integer.parseInt(args[0]) : 20000);
+
+		System.out.printf("%d logins%n", logins);
+		run("per-task", UAThreads.perTask(UAThreads.platform("Announce")), false, logins);
+		run("lanes", null, false, logins);
+		run("conflated", null, true, logins);
+		System.exit(0);
+	}
+}
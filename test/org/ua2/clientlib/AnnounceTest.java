@@ -0,0 +1,389 @@
+package org.ua2.clientlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.ua2.edf.EDFData;
+
+public class AnnounceTest {
+	/**
+	 * Runs tasks only when asked
+	 */
+	private static class Manual implements Executor {
+		final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		int executed = 0;
+
+		public void execute(Runnable task) {
+			tasks.add(task);
+		}
+
+		void runAll() {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				executed++;
+				task.run();
+			}
+		}
+	}
+
+	/**
+	 * Records the seq of each announcement handled
+	 */
+	private static class Recorder implements EDFAnnouncement {
+		final List<Integer> seqs = Collections.synchronizedList(new ArrayList<Integer>());
+
+		public void announce(EDFData data) {
+			seqs.add(data.getChild("seq").getInt());
+		}
+	}
+
+	private static EDFData announcement(String type, int userid, int seq) {
+		EDFData announcement = new EDFData("announce", type);
+		announcement.add("userid", userid);
+		announcement.add("seq", seq);
+		return announcement;
+	}
+
+	@Test
+	public void testUserOrder() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		AnnounceQueue queue = new AnnounceQueue();
+		queue.setExecutor(pool);
+		queue.setBatchSize(3);
+
+		final int users = 20;
+		final int count = 4000;
+		final List<List<Integer>> seen = new ArrayList<List<Integer>>();
+		for (int i = 0; i < users; i++) {
+			seen.add(Collections.synchronizedList(new ArrayList<Integer>()));
+		}
+		final CountDownLatch latch = new CountDownLatch(count);
+		EDFAnnouncement handler = new EDFAnnouncement() {
+			public void announce(EDFData data) {
+				seen.get(data.getChild("userid").getInt()).add(data.getChild("seq").getInt());
+				latch.countDown();
+			}
+		};
+		queue.subscribe("user_login", handler);
+		queue.subscribe("user_logout", handler);
+
+		for (int i = 0; i < count; i++) {
+			queue.announce(announcement(i % 2 == 0 ? "user_login" : "user_logout", (i / 2) % users, i));
+		}
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+		// A user's login and logout are handled in the order they arrived
+		for (List<Integer> seqs : seen) {
+			for (int i = 1; i < seqs.size(); i++) {
+				assertTrue(seqs.get(i - 1) < seqs.get(i));
+			}
+		}
+		// Counted once the last handler has returned
+		long end = System.currentTimeMillis() + 5000;
+		while (queue.getDelivered() < count && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, queue.getDelivered());
+		assertEquals(0, queue.getDropped());
+		assertEquals(0, queue.getDepth());
+		pool.shutdown();
+	}
+
+	@Test
+	public void testBoundedThreads() throws Exception {
+		AnnounceQueue queue = new AnnounceQueue();
+
+		final int count = 2000;
+		final CountDownLatch latch = new CountDownLatch(count);
+		queue.subscribe("user_login", new EDFAnnouncement() {
+			public void announce(EDFData data) {
+				latch.countDown();
+			}
+		});
+		for (int i = 0; i < count; i++) {
+			queue.announce(announcement("user_login", i, i));
+		}
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+		int threads = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("Announce-")) {
+				threads++;
+			}
+		}
+		assertTrue(threads + " threads", threads <= Math.max(2, Runtime.getRuntime().availableProcessors()));
+	}
+
+	@Test
+	public void testDropNewest() throws Exception {
+		Recorder recorder = new Recorder();
+		Manual manual = new Manual();
+		AnnounceQueue queue = new AnnounceQueue();
+		queue.setExecutor(manual);
+		queue.setCapacity(5);
+		queue.setOverflow(AnnounceQueue.Overflow.DROP_NEWEST);
+		queue.subscribe("user_login", recorder);
+
+		for (int i = 0; i < 8; i++) {
+			queue.announce(announcement("user_login", 1, i));
+		}
+		assertEquals(5, queue.getDepth());
+		assertEquals(3, queue.getDropped());
+
+		manual.runAll();
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4), recorder.seqs);
+		assertEquals(5, queue.getMaxDepth());
+	}
+
+	@Test
+	public void testDropOldest() throws Exception {
+		Recorder recorder = new Recorder();
+		Manual manual = new Manual();
+		AnnounceQueue queue = new AnnounceQueue();
+		queue.setExecutor(manual);
+		queue.setCapacity(5);
+		queue.subscribe("user_login", recorder);
+		assertEquals(AnnounceQueue.Overflow.DROP_OLDEST, queue.getOverflow());
+
+		for (int i = 0; i < 8; i++) {
+			queue.announce(announcement("user_login", 1, i));
+		}
+		assertEquals(5, queue.getDepth());
+		assertEquals(3, queue.getDropped());
+
+		manual.runAll();
+		assertEquals(Arrays.asList(3, 4, 5, 6, 7), recorder.seqs);
+	}
+
+	@Test
+	public void testBlock() throws Exception {
+		Recorder recorder = new Recorder();
+		Manual manual = new Manual();
+		final AnnounceQueue queue = new AnnounceQueue();
+		queue.setExecutor(manual);
+		queue.setCapacity(2);
+		queue.setOverflow(AnnounceQueue.Overflow.BLOCK);
+		queue.subscribe("user_login", recorder);
+
+		queue.announce(announcement("user_login", 1, 0));
+		queue.announce(announcement("user_login", 1, 1));
+
+		Thread blocked = new Thread() {
+			@Override
+			public void run() {
+				queue.announce(announcement("user_login", 1, 2));
+			}
+		};
+		blocked.start();
+		blocked.join(200);
+		assertTrue(blocked.isAlive());
+
+		manual.runAll();
+		blocked.join(5000);
+		assertFalse(blocked.isAlive());
+		manual.runAll();
+
+		assertEquals(Arrays.asList(0, 1, 2), recorder.seqs);
+		assertEquals(0, queue.getDropped());
+	}
+
+	@Test
+	public void testBatches() throws Exception {
+		Recorder recorder = new Recorder();
+		Manual manual = new Manual();
+		AnnounceQueue queue = new AnnounceQueue();
+		queue.setExecutor(manual);
+		queue.setBatchSize(10);
+		queue.setOrdering(AnnounceQueue.Ordering.TYPE);
+		queue.subscribe("user_login", recorder);
+
+		for (int i = 0; i < 25; i++) {
+			queue.announce(announcement("user_login", i, i));
+		}
+		// One lane, so one task until it has run
+		assertEquals(1, manual.tasks.size());
+
+		manual.runAll();
+		assertEquals(3, manual.executed);
+		assertEquals(25, recorder.seqs.size());
+		for (int i = 0; i < 25; i++) {
+			assertEquals(i, (int) recorder.seqs.get(i));
+		}
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		Manual manual = new Manual();
+		AnnounceQueue queue = new AnnounceQueue();
+		queue.setExecutor(manual);
+		queue.subscribe("user_login", new EDFAnnouncement() {
+			public void announce(EDFData data) {
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					// Ignore it
+				}
+			}
+		});
+		queue.subscribe("user_logout", new EDFAnnouncement() {
+			public void announce(EDFData data) {
+				throw new IllegalStateException("Handler failure");
+			}
+		});
+
+		queue.announce(announcement("user_login", 1, 0));
+		queue.announce(announcement("user_logout", 1, 1));
+		queue.announce(announcement("user_status", 1, 2));
+		assertEquals(3, queue.getDepth());
+
+		manual.runAll();
+		assertEquals(0, queue.getDepth());
+		assertEquals(3, queue.getMaxDepth());
+		assertEquals(3, queue.getDelivered());
+		assertTrue(queue.getAverageHandlerTime() >= TimeUnit.MILLISECONDS.toNanos(5) / 3);
+		assertTrue(queue.getMaxLatency() >= TimeUnit.MILLISECONDS.toNanos(5));
+		assertTrue(queue.getAverageLatency() >= queue.getAverageHandlerTime());
+	}
+
+	@Test
+	public void testConflate() throws Exception {
+		Recorder recorder = new Recorder();
+		Manual manual = new Manual();
+		AnnounceQueue queue = new AnnounceQueue();
+		queue.setExecutor(manual);
+		queue.conflate("user_*", "userid");
+		queue.subscribe("user_*", recorder);
+		queue.subscribe("folder_add", recorder);
+
+		// While waiting, only the latest for each user is kept, in the place of the first
+		queue.announce(announcement("user_login", 1, 0));
+		queue.announce(announcement("user_login", 2, 1));
+		queue.announce(announcement("user_status", 1, 2));
+		queue.announce(announcement("user_logout", 1, 3));
+		queue.announce(announcement("folder_add", 1, 4));
+		queue.announce(announcement("folder_add", 1, 5));
+		EDFData nouser = new EDFData("announce", "user_status");
+		nouser.add("seq", 6);
+		queue.announce(nouser);
+		assertEquals(5, queue.getDepth());
+		assertEquals(2, queue.getConflated());
+
+		// User 1's lane, then user 2's, then the one without a userid
+		manual.runAll();
+		assertEquals(Arrays.asList(3, 4, 5, 1, 6), recorder.seqs);
+		assertEquals(5, queue.getDelivered());
+
+		// Once handled, the next is queued again
+		queue.announce(announcement("user_status", 1, 7));
+		queue.announce(announcement("user_status", 1, 8));
+		manual.runAll();
+		assertEquals(8, (int) recorder.seqs.get(5));
+		assertEquals(6, recorder.seqs.size());
+		assertEquals(3, queue.getConflated());
+		assertEquals(0, queue.getDepth());
+	}
+
+	@Test
+	public void testConflateWhileBusy() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		AnnounceQueue queue = new AnnounceQueue();
+		queue.setExecutor(pool);
+		queue.conflate("user_status", "userid");
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<Integer> seqs = Collections.synchronizedList(new ArrayList<Integer>());
+		queue.subscribe("user_status", new EDFAnnouncement() {
+			public void announce(EDFData data) {
+				seqs.add(data.getChild("seq").getInt());
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					// Ignore it
+				}
+			}
+		});
+
+		queue.announce(announcement("user_status", 1, 0));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		// The handler is busy with the first, so the rest collapse into one
+		for (int i = 1; i <= 100; i++) {
+			queue.announce(announcement("user_status", 1, i));
+		}
+		release.countDown();
+
+		long end = System.currentTimeMillis() + 5000;
+		while (queue.getDelivered() < 2 && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(Arrays.asList(0, 100), seqs);
+		assertEquals(99, queue.getConflated());
+		pool.shutdown();
+	}
+
+	@Test
+	public void testConflateWindow() throws Exception {
+		Recorder recorder = new Recorder();
+		Manual manual = new Manual();
+		AnnounceQueue queue = new AnnounceQueue();
+		queue.setExecutor(manual);
+		queue.conflate("user_status", "userid", 300, TimeUnit.MILLISECONDS);
+		queue.subscribe("user_status", recorder);
+
+		queue.announce(announcement("user_status", 1, 0));
+		queue.announce(announcement("user_status", 1, 1));
+		assertEquals(1, queue.getDepth());
+
+		// Held back until the window has passed
+		manual.runAll();
+		assertEquals(0, recorder.seqs.size());
+		queue.announce(announcement("user_status", 1, 2));
+
+		long end = System.currentTimeMillis() + 5000;
+		while (manual.tasks.isEmpty() && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		manual.runAll();
+		assertEquals(Arrays.asList(2), recorder.seqs);
+		assertEquals(2, queue.getConflated());
+		assertEquals(0, queue.getDepth());
+	}
+
+	@Test
+	public void testConflateDropped() throws Exception {
+		Recorder recorder = new Recorder();
+		Manual manual = new Manual();
+		AnnounceQueue queue = new AnnounceQueue();
+		queue.setExecutor(manual);
+		queue.setCapacity(2);
+		queue.setOrdering(AnnounceQueue.Ordering.TYPE);
+		queue.conflate("user_status", "userid");
+		queue.subscribe("user_status", recorder);
+
+		queue.announce(announcement("user_status", 1, 0));
+		queue.announce(announcement("user_status", 2, 1));
+		// Drops user 1's, which can't be replaced afterwards
+		queue.announce(announcement("user_status", 3, 2));
+		queue.announce(announcement("user_status", 1, 3));
+		assertEquals(0, queue.getConflated());
+		assertEquals(2, queue.getDropped());
+
+		manual.runAll();
+		assertEquals(Arrays.asList(2, 3), recorder.seqs);
+	}
+}
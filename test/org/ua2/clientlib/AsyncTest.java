@@ -0,0 +1,265 @@
+package org.ua2.clientlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ua2.clientlib.exception.NoConnectionError;
+import org.ua2.edf.EDFData;
+import org.ua2.edf.EDFReader;
+
+public class AsyncTest {
+	private static final String[] REQUESTS = { "system_list", "folder_list", "user_list", "channel_list", "service_list" };
+
+	private MockUAServer server;
+	private UAConnection connection;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new MockUAServer();
+		connection = new UAConnection();
+		assertTrue(connection.connect("localhost", server.getPort()));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		connection.disconnect();
+		server.stop();
+	}
+
+	@Test
+	public void testInOrder() throws Exception {
+		server.setLatency(20);
+
+		List<CompletableFuture<EDFData>> futures = new ArrayList<CompletableFuture<EDFData>>();
+		for (int i = 0; i < 20; i++) {
+			futures.add(connection.sendAsync(new EDFData("request", REQUESTS[i % REQUESTS.length])));
+		}
+
+		for (int i = 0; i < 20; i++) {
+			assertEquals(REQUESTS[i % REQUESTS.length], futures.get(i).get(5, TimeUnit.SECONDS).getString());
+		}
+		assertEquals(0, connection.getPendingCount());
+	}
+
+	@Test
+	public void testDeadline() throws Exception {
+		server.setLatency(300);
+
+		CompletableFuture<EDFData> slow = connection.sendAsync(new EDFData("request", "system_list"), 100, TimeUnit.MILLISECONDS);
+		try {
+			slow.get(5, TimeUnit.SECONDS);
+			fail("No timeout");
+		} catch (ExecutionException e) {
+			assertEquals(NoConnectionError.Reason.TIMEDOUT, ((NoConnectionError) e.getCause()).reason);
+		}
+
+		// The timed out request is still waiting for its reply, which is dropped
+		assertEquals(1, connection.getPendingCount());
+		assertEquals("user_list", connection.sendAsync(new EDFData("request", "user_list")).get(5, TimeUnit.SECONDS).getString());
+		assertEquals(0, connection.getPendingCount());
+		assertEquals(1, connection.getLateReplyCount());
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		cancel(connection);
+	}
+
+	@Test
+	public void testCancelByteParser() throws Exception {
+		UAConnection streamed = new UAConnection();
+		streamed.setParserType(UAConnection.ParserType.BYTE);
+		assertTrue(streamed.connect("localhost", server.getPort()));
+
+		cancel(streamed);
+		streamed.disconnect();
+	}
+
+	private void cancel(UAConnection connection) throws Exception {
+		server.setLatency(100);
+
+		CompletableFuture<EDFData> cancelled = connection.sendAsync(new EDFData("request", "folder_list"));
+		assertTrue(cancelled.cancel(false));
+		try {
+			cancelled.get();
+			fail("Not cancelled");
+		} catch (CancellationException e) {
+			// Expected
+		}
+
+		// The late folder_list reply is dropped
+		assertEquals("user_list", connection.sendAndRead(new EDFData("request", "user_list")).getString());
+		assertEquals(0, connection.getPendingCount());
+		assertEquals(1, connection.getLateReplyCount());
+	}
+
+	@Test
+	public void testUnmatched() throws Exception {
+		server.broadcast("<reply=\"system_list\"/>");
+		for (int i = 0; i < 100 && connection.getUnmatchedReplyCount() == 0; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(1, connection.getUnmatchedReplyCount());
+
+		assertEquals("user_list", connection.sendAndRead(new EDFData("request", "user_list")).getString());
+	}
+
+	@Test
+	public void testMaxPending() throws Exception {
+		UAConnection bounded = new UAConnection();
+		bounded.setMaxPending(2);
+		assertTrue(bounded.connect("localhost", server.getPort()));
+		server.setLatency(50);
+
+		List<CompletableFuture<EDFData>> futures = new ArrayList<CompletableFuture<EDFData>>();
+		for (int i = 0; i < 10; i++) {
+			futures.add(bounded.sendAsync(new EDFData("request", REQUESTS[i % REQUESTS.length])));
+			assertTrue(bounded.getPendingCount() <= 2);
+		}
+		for (int i = 0; i < 10; i++) {
+			assertEquals(REQUESTS[i % REQUESTS.length], futures.get(i).get(5, TimeUnit.SECONDS).getString());
+		}
+
+		// Held back output is written out rather than waiting for a slot forever
+		bounded.setAutoFlush(false);
+		futures = bounded.sendAsync(requestList(5));
+		futures.add(bounded.sendAsync(new EDFData("request", "system_list")));
+		futures.add(bounded.sendAsync(new EDFData("request", "system_list")));
+		bounded.flush();
+		assertEquals("system_list", futures.get(6).get(5, TimeUnit.SECONDS).getString());
+
+		bounded.disconnect();
+	}
+
+	@Test
+	public void testSlotWaitDoesNotBlockWriters() throws Exception {
+		final UAConnection bounded = new UAConnection();
+		bounded.setMaxPending(1);
+		assertTrue(bounded.connect("localhost", server.getPort()));
+		server.setLatency(500);
+
+		// The burst waits for a slot for each request after the first
+		Thread burst = new Thread() {
+			@Override
+			public void run() {
+				try {
+					bounded.sendAndReadAll(requestList(3));
+				} catch (NoConnectionError e) {
+					// Only timing matters here
+				}
+			}
+		};
+		burst.start();
+		Thread.sleep(100);
+
+		long start = System.nanoTime();
+		assertTrue(bounded.flush());
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue(millis + " ms", millis < 300);
+
+		burst.join(5000);
+		bounded.disconnect();
+	}
+
+	@Test
+	public void testAsyncNeverWaits() throws Exception {
+		final UAConnection bounded = new UAConnection();
+		bounded.setMaxPending(1);
+		assertTrue(bounded.connect("localhost", server.getPort()));
+		server.setLatency(50);
+
+		// Sent from the reader thread while every slot is taken
+		CompletableFuture<EDFData> chained = bounded.sendAsync(new EDFData("request", "system_list")).thenCompose(
+				new Function<EDFData, CompletionStage<EDFData>>() {
+					public CompletionStage<EDFData> apply(EDFData reply) {
+						return bounded.sendAsync(new EDFData("request", "folder_list"));
+					}
+				});
+		CompletableFuture<EDFData> held = bounded.sendAsync(new EDFData("request", "user_list"));
+		assertEquals(1, bounded.getPendingCount());
+
+		assertEquals("user_list", held.get(5, TimeUnit.SECONDS).getString());
+		assertEquals("folder_list", chained.get(5, TimeUnit.SECONDS).getString());
+
+		bounded.disconnect();
+	}
+
+	private static List<EDFData> requestList(int count) {
+		List<EDFData> requests = new ArrayList<EDFData>();
+		for (int i = 0; i < count; i++) {
+			requests.add(new EDFData("request", REQUESTS[i % REQUESTS.length]));
+		}
+		return requests;
+	}
+
+	@Test
+	public void testReplyReader() throws Exception {
+		CompletableFuture<String> name = connection.sendAsync(new EDFData("request", "system_list"), new EDFReplyReader<String>() {
+			public String read(EDFReader reader) {
+				return reader.getString();
+			}
+		});
+
+		assertEquals("system_list", name.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testRefresh() throws Exception {
+		UA ua = new UA();
+		ua.register(connection);
+
+		FolderList folders = new FolderList(ua);
+		assertEquals(66, folders.refreshAsync().get(5, TimeUnit.SECONDS).size());
+
+		UserList users = new UserList(ua);
+		assertEquals(1154, users.refreshAsync().get(5, TimeUnit.SECONDS).size());
+	}
+
+	@Test
+	public void testPost() throws Exception {
+		server.setReply("message_add", "<reply=\"message_add\"/>");
+
+		EDFData edf = new EDFData("message", 1);
+		edf.add("subject", "Hello");
+		edf.add("folderid", 2);
+		edf.add("text", "Body");
+		Message message = new Message(edf);
+		message.setUAConnection(connection);
+
+		assertEquals(Message.Reason.OK, message.postAsync().get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testLostConnection() throws Exception {
+		server.setLatency(200);
+
+		CompletableFuture<EDFData> lost = connection.sendAsync(new EDFData("request", "system_list"));
+		server.stop();
+		try {
+			lost.get(5, TimeUnit.SECONDS);
+			fail("Reply after server stopped");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof NoConnectionError);
+		}
+
+		try {
+			connection.sendAsync(new EDFData("request", "system_list")).get(5, TimeUnit.SECONDS);
+			fail("Reply after server stopped");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof NoConnectionError);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package org.ua2.clientlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+import org.ua2.clientlib.exception.WrongEDFException;
+import org.ua2.edf.EDFBindException;
+import org.ua2.edf.EDFCodecs;
+import org.ua2.edf.EDFData;
+import org.ua2.edf.EDFReader;
+
+public class CodecTest {
+
+	private static EDFReader reader(String edf) throws IOException {
+		EDFReader reader = EDFReader.create(new ByteArrayInputStream(edf.getBytes("UTF-8")));
+		reader.next();
+		return reader;
+	}
+
+	private static EDFReader file(String name) throws IOException {
+		EDFReader reader = EDFReader.create(new FileInputStream("test/" + name));
+		reader.next();
+		return reader;
+	}
+
+	@Test
+	public void testRegistry() {
+		assertSame(Folder.CODEC, EDFCodecs.get(Folder.class));
+		assertSame(User.CODEC, EDFCodecs.get(User.class));
+		assertSame(Message.CODEC, EDFCodecs.get(Message.class));
+	}
+
+	@Test
+	public void testFolderList() throws IOException {
+		List<Folder> folders = Folder.CODEC.decodeList(file("folder_list1_reply.edf"));
+
+		assertEquals(66, folders.size());
+		for(Folder folder : folders) {
+			assertEquals(false, folder.name.isEmpty());
+			assertEquals(true, folder.id > 0);
+		}
+	}
+
+	@Test
+	public void testUserList() throws IOException {
+		List<User> users = User.CODEC.decodeList(file("user_list1_reply.edf"));
+
+		assertEquals("Gryn", users.get(0).name);
+		assertEquals(1, users.get(0).id);
+		assertEquals(3, users.get(0).accesslevel);
+	}
+
+	@Test
+	public void testMessageList() throws IOException {
+		List<Message> messages = Message.CODEC.decodeList(file("message_list3_reply.edf"));
+
+		assertEquals(1, messages.size());
+		Message message = messages.get(0);
+		assertEquals(Message.MessageType.POST, message.type);
+		assertEquals(2017669, message.id);
+		assertEquals(1295025442, message.date);
+		assertEquals(1177, message.fromid);
+		assertEquals("Roger", message.from);
+		assertEquals(2013, message.toid);
+		assertEquals("rjp", message.to);
+		assertEquals("Fudge fudge fudge fanny about fudge tweak bleugh", message.subject);
+		assertEquals(true, message.body.startsWith("\"Anyone who would speak negatively"));
+		assertEquals(2017627, message.inreplyto);
+	}
+
+	@Test
+	public void testReplyChain() throws IOException {
+		List<Message> messages = Message.CODEC.decodeList(file("message_list2_reply.edf"));
+
+		// Replying to 2002990, which replied to 2002989
+		assertEquals(1, messages.size());
+		assertEquals(2002995, messages.get(0).id);
+		assertEquals(2002990, messages.get(0).inreplyto);
+	}
+
+	@Test
+	public void testListNameCase() throws IOException {
+		// decodeList() matches the element name as decode() does
+		List<User> users = User.CODEC.decodeList(reader("<reply=\"user_list\"><USER=1><name=\"Gryn\"/><accesslevel=3/></USER><other/></reply>"));
+
+		assertEquals(1, users.size());
+		assertEquals("Gryn", users.get(0).name);
+	}
+
+	@Test
+	public void testPage() throws Exception {
+		EDFData page = new EDFData("announce", "user_page");
+		page.add("fromid", 4);
+		page.add("fromname", "Techno");
+		page.add("text", "Hello");
+
+		Message message = new Message(page);
+		assertEquals(Message.MessageType.PAGE, message.type);
+		assertEquals("Techno", message.from);
+		assertEquals("Hello", message.body);
+	}
+
+	@Test
+	public void testValidation() throws IOException {
+		String[][] cases = {
+			{ "<user=\"1\"><name=\"Gryn\"/><accesslevel=3/></user>", "Expected '<user=[number]></>" },
+			{ "<user=1><name=\"Gryn\"/><accesslevel=\"3\"/></user>", "Expected <accesslevel=[number]/>" },
+			{ "<user=1><name=\"\"/><accesslevel=3/></user>", "Expected <name=[string]/>" },
+			{ "<user=1><name=\"Gryn\"/></user>", "<user> is missing a required element" },
+		};
+
+		for(String[] test : cases) {
+			try {
+				User.CODEC.decode(reader(test[0]));
+				fail("Decoded " + test[0]);
+			} catch(EDFBindException e) {
+				assertEquals(test[1], e.getMessage());
+			}
+		}
+
+		try {
+			new Folder(reader("<folder=1><unread=2/></folder>"));
+			fail("Decoded folder without a name");
+		} catch(WrongEDFException e) {
+			assertEquals("<folder> is missing a required element", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package org.ua2.clientlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.ua2.clientlib.exception.WrongEDFException;
+import org.ua2.edf.EDFData;
+import org.ua2.edf.EDFNode;
+import org.ua2.edf.TestFiles;
+
+public class ListUpdateTest {
+
+	private static EDFData file(String name) throws IOException {
+		return TestFiles.parseFile("test/" + name);
+	}
+
+	private static class Events<T> implements ListListener<T> {
+		List<T> added = new ArrayList<T>();
+		List<T> removed = new ArrayList<T>();
+		List<T> changed = new ArrayList<T>();
+
+		public void added(T item) {
+			added.add(item);
+		}
+
+		public void removed(T item) {
+			removed.add(item);
+		}
+
+		public void changed(T item) {
+			changed.add(item);
+		}
+	}
+
+	@Test
+	public void testFolderList() throws Exception {
+		FolderList list = new FolderList(null);
+		Events<Folder> events = new Events<Folder>();
+		list.addListener(events);
+
+		EDFData reply = file("folder_list1_reply.edf");
+		list.update(reply);
+		assertEquals(66, events.added.size());
+		Folder general = list.getFolder("General");
+		Folder ua = list.getFolder("UA");
+
+		// Same reply again changes nothing
+		events.added.clear();
+		list.update(file("folder_list1_reply.edf"));
+		assertEquals(0, events.added.size() + events.removed.size() + events.changed.size());
+
+		// Rename one folder and mark another as unread
+		EDFNode tree = reply.freeze();
+		int g = tree.indexOf("folder", 0);
+		int u = tree.indexOf("folder", g + 1);
+		tree = tree.with(g, tree.getChild(g).with("name", "Natter")).with(u, tree.getChild(u).with("unread", 3));
+		list.update(tree.thaw());
+
+		assertEquals(2, events.changed.size());
+		assertSame(general, list.getFolder("Natter"));
+		assertNull(list.getFolder("General"));
+		assertSame(ua, list.getFolder("UA"));
+		assertEquals(3, ua.unread);
+		assertEquals(66, list.getFolderList().size());
+	}
+
+	@Test
+	public void testUserList() throws Exception {
+		UserList list = new UserList(null);
+		Events<User> events = new Events<User>();
+
+		EDFData reply = file("user_list1_reply.edf");
+		list.addListener(events);
+		list.update(reply);
+		// Counted from the reply, since a name can be shared by two users
+		int count = events.added.size();
+		events.added.clear();
+		User gryn = list.getUser("Gryn");
+
+		EDFNode tree = reply.freeze().without("user").add(reply.freeze().getChild("user"));
+		list.update(tree.thaw());
+
+		assertEquals(0, events.added.size());
+		assertEquals(count - 1, events.removed.size());
+		assertEquals(0, events.changed.size());
+		assertSame(gryn, list.getUser("Gryn"));
+		assertEquals(1, list.getUserList().size());
+	}
+
+	@Test
+	public void testInvalidReply() throws Exception {
+		FolderList list = new FolderList(null);
+		Events<Folder> events = new Events<Folder>();
+		list.addListener(events);
+
+		EDFData reply = file("folder_list1_reply.edf");
+		list.update(reply);
+		Folder general = list.getFolder("General");
+		events.added.clear();
+
+		// Mark one folder as unread and break another. Nothing is touched
+		EDFNode tree = reply.freeze();
+		int g = tree.indexOf("folder", 0);
+		int u = tree.indexOf("folder", g + 1);
+		EDFNode changed = tree.with(g, tree.getChild(g).with("unread", 5));
+		try {
+			list.update(changed.with(u, tree.getChild(u).without("name")).thaw());
+			fail("Updated from a folder without a name");
+		} catch(WrongEDFException e) {
+			// Expected
+		}
+		assertEquals(0, events.added.size() + events.removed.size() + events.changed.size());
+		assertEquals(0, general.unread);
+		assertEquals(66, list.getFolderList().size());
+
+		// The next valid reply still has the change
+		list.update(changed.thaw());
+		assertEquals(1, events.changed.size());
+		assertSame(general, events.changed.get(0));
+		assertEquals(5, general.unread);
+	}
+}
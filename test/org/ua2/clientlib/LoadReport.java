@@ -0,0 +1,73 @@
+package org.ua2.clientlib;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ua2.edf.EDFData;
+
+/**
+ * Compares the threads and memory used by many sessions with a reader
+ * thread each and with a UAEngine
+ * <p>
+ * Run from the project directory, optionally with the number of sessions
+ * and I/O threads. Each session connects to a MockUAServer in the same
+ * process and makes a request, and the live thread count and the heap used
+ * after a GC are reported against the figures before connecting.
+ */
+public class LoadReport {
+	private static long heap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static int threads() {
+		return ManagementFactory.getThreadMXBean().getThreadCount();
+	}
+
+	private static void run(String mode, int sessions, UAEngine engine) throws Exception {
+		MockUAServer server = new MockUAServer();
+		int threadsBefore = threads();
+		long heapBefore = heap();
+
+		long start = System.nanoTime();
+		List<UAConnection> connections = new ArrayList<UAConnection>();
+		for (int i = 0; i < sessions; i++) {
+			UAConnection connection = new UAConnection();
+			connection.setEngine(engine);
+			if (!connection.connect("localhost", server.getPort())) {
+				throw new IllegalStateException("Connect failed: " + connection.statusmessage);
+			}
+			connection.sendAndRead(new EDFData("request", "system_list"));
+			connections.add(connection);
+		}
+		double elapsed = (System.nanoTime() - start) / 1000000.0;
+
+		int threadsAfter = threads();
+		long heapAfter = heap();
+		System.out.printf("%-8s %6d sessions %8.0f ms %6d threads %8.1f KB/session%n", mode, sessions, elapsed,
+				threadsAfter - threadsBefore, (heapAfter - heapBefore) / 1024.0 / sessions);
+
+		for (UAConnection connection : connections) {
+			connection.disconnect();
+		}
+		server.stop();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int sessions = (args.length > 0 ? Integer.parseInt(args[0]) : 500);
+		int count = (args.length > 1 ? Integer.parseInt(args[1]) : 2);
+
+		run("threads", sessions, null);
+
+		UAEngine engine = new UAEngine(count);
+		run("engine", sessions, engine);
+		engine.shutdown();
+
+		System.exit(0);
+	}
+}
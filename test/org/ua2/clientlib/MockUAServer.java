@@ -0,0 +1,247 @@
+package org.ua2.clientlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.ua2.edf.EDFData;
+import org.ua2.edf.EDFIncrementalParser;
+
+/**
+ * A UA server for tests, serving any number of clients from one thread
+ * <p>
+ * Each request is answered with test/&lt;request&gt;_reply.edf, or
+ * test/&lt;request&gt;1_reply.edf if there are several, unless a reply has
+ * been set for it. &lt;edf="on"/&gt; is echoed, and "announce" sends
+ * announce1.edf before its reply. Anything else gets rq_invalid.
+ * <p>
+ * Replies can be held back to simulate a slow link (see setLatency()).
+ */
+public class MockUAServer implements Runnable {
+	private final ServerSocketChannel server;
+	private final Selector selector;
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	private final ConcurrentHashMap<String, byte[]> replies = new ConcurrentHashMap<String, byte[]>();
+	private final ConcurrentLinkedQueue<byte[]> broadcasts = new ConcurrentLinkedQueue<byte[]>();
+
+	// Replies held back by the latency, in the order they are due
+	private volatile int latency = 0;
+	private final ArrayDeque<Delayed> delayed = new ArrayDeque<Delayed>();
+
+	private static class Delayed {
+		final SelectionKey key;
+		final byte[] bytes;
+		final long due;
+
+		Delayed(SelectionKey key, byte[] bytes, long due) {
+			this.key = key;
+			this.bytes = bytes;
+			this.due = due;
+		}
+	}
+
+	private static class Client implements EDFIncrementalParser.Handler {
+		final SocketChannel channel;
+		final EDFIncrementalParser parser = new EDFIncrementalParser(this);
+		final List<EDFData> requests = new ArrayList<EDFData>();
+		ByteBuffer output = ByteBuffer.allocate(0);
+
+		Client(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		public void element(EDFData element) {
+			requests.add(element);
+		}
+	}
+
+	public MockUAServer() throws IOException {
+		server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress("localhost", 0), 1000);
+		server.configureBlocking(false);
+		selector = Selector.open();
+		server.register(selector, SelectionKey.OP_ACCEPT);
+
+		thread = new Thread(this);
+		thread.setName("MockUAServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Answer a request with fixed bytes, or with nothing if reply is empty
+	 */
+	public void setReply(String request, String reply) throws IOException {
+		replies.put(request, reply.getBytes("UTF-8"));
+	}
+
+	/**
+	 * Hold each reply back for a time after its request arrives
+	 */
+	public void setLatency(int millis) {
+		latency = millis;
+	}
+
+	/**
+	 * Send EDF, eg. an announcement, to every client
+	 */
+	public void broadcast(String edf) throws IOException {
+		broadcasts.add(edf.getBytes("UTF-8"));
+		selector.wakeup();
+	}
+
+	/**
+	 * Stop serving, closing every client, and wait until that is done
+	 */
+	public void stop() throws InterruptedException {
+		running = false;
+		selector.wakeup();
+		thread.join();
+	}
+
+	public void run() {
+		try {
+			while (running) {
+				Delayed next = delayed.peek();
+				if (next == null) {
+					selector.select();
+				} else {
+					selector.select(Math.max(1, next.due - System.currentTimeMillis()));
+				}
+
+				while ((next = delayed.peek()) != null && next.due <= System.currentTimeMillis()) {
+					delayed.poll();
+					if (next.key.isValid()) {
+						queue((Client) next.key.attachment(), next.bytes);
+						next.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					}
+				}
+
+				byte[] broadcast;
+				while ((broadcast = broadcasts.poll()) != null) {
+					for (SelectionKey key : selector.keys()) {
+						if (key.attachment() != null && key.isValid()) {
+							queue((Client) key.attachment(), broadcast);
+							key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						}
+					}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if (key.isAcceptable()) {
+						SocketChannel channel;
+						while ((channel = server.accept()) != null) {
+							channel.configureBlocking(false);
+							channel.register(selector, SelectionKey.OP_READ, new Client(channel));
+						}
+						continue;
+					}
+
+					Client client = (Client) key.attachment();
+					try {
+						if (key.isReadable()) {
+							read(key, client);
+						}
+						if (key.isValid() && key.isWritable()) {
+							write(key, client);
+						}
+					} catch (IOException e) {
+						key.cancel();
+						client.channel.close();
+					}
+				}
+			}
+
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void read(SelectionKey key, Client client) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		if (client.channel.read(buffer) == -1) {
+			throw new IOException("Client closed");
+		}
+		buffer.flip();
+		client.parser.feed(buffer);
+
+		for (EDFData request : client.requests) {
+			if (latency > 0 && !request.getName().equals("edf")) {
+				delayed.add(new Delayed(key, answer(request), System.currentTimeMillis() + latency));
+			} else {
+				queue(client, answer(request));
+			}
+		}
+		client.requests.clear();
+		write(key, client);
+	}
+
+	private byte[] answer(EDFData request) throws IOException {
+		String value = (request.getValue() == null ? "" : request.getValue().toString());
+		if (request.getName().equals("edf")) {
+			return ("<edf=\"" + value + "\"/>").getBytes("UTF-8");
+		}
+
+		byte[] reply = replies.get(value);
+		if (reply != null) {
+			return reply;
+		}
+		if (value.equals("announce")) {
+			return concat(file("test/announce1.edf"), "<reply=\"announce\"/>".getBytes("UTF-8"));
+		}
+		for (String name : new String[] { "test/" + value + "_reply.edf", "test/" + value + "1_reply.edf" }) {
+			if (new File(name).exists()) {
+				return file(name);
+			}
+		}
+		return "<reply=\"rq_invalid\"/>".getBytes("UTF-8");
+	}
+
+	private static byte[] file(String name) throws IOException {
+		return Files.readAllBytes(new File(name).toPath());
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] both = new byte[a.length + b.length];
+		System.arraycopy(a, 0, both, 0, a.length);
+		System.arraycopy(b, 0, both, a.length, b.length);
+		return both;
+	}
+
+	private void queue(Client client, byte[] bytes) {
+		ByteBuffer bigger = ByteBuffer.allocate(client.output.remaining() + bytes.length);
+		bigger.put(client.output).put(bytes).flip();
+		client.output = bigger;
+	}
+
+	private void write(SelectionKey key, Client client) throws IOException {
+		client.channel.write(client.output);
+		key.interestOps(client.output.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+}
@@ -0,0 +1,64 @@
+package org.ua2.clientlib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.ua2.edf.EDFData;
+
+/**
+ * Compares writing asynchronous requests out one at a time with coalescing
+ * them into bursts, counting socket writes
+ * <p>
+ * Run from the project directory, optionally with the number of requests
+ * and the burst size.
+ */
+public class OutputReport {
+	public static void main(String[] args) throws Exception {
+		int count = (args.length > 0 ? Integer.parseInt(args[0]) : 20000);
+		int burst = (args.length > 1 ? Integer.parseInt(args[1]) : 50);
+
+		MockUAServer server = new MockUAServer();
+		server.setReply("ping", "<reply=\"ping\"/>");
+		UAConnection connection = new UAConnection();
+		connection.connect("localhost", server.getPort());
+
+		List<EDFData> requests = new ArrayList<EDFData>();
+		for (int i = 0; i < burst; i++) {
+			requests.add(new EDFData("request", "ping"));
+		}
+
+		// Warm up
+		run(connection, requests, count, false);
+
+		System.out.printf("%d requests, bursts of %d%n", count, burst);
+		for (boolean coalesced : new boolean[] { false, true }) {
+			long writes = connection.getWriteCount();
+			long start = System.nanoTime();
+			run(connection, requests, count, coalesced);
+			double elapsed = (System.nanoTime() - start) / 1000000.0;
+			writes = connection.getWriteCount() - writes;
+
+			System.out.printf("%-10s %8.0f ms %8d writes %6.2f writes/request%n", (coalesced ? "coalesced" : "each"), elapsed, writes, (double) writes / count);
+		}
+
+		connection.disconnect();
+		server.stop();
+		System.exit(0);
+	}
+
+	private static void run(UAConnection connection, List<EDFData> requests, int count, boolean coalesced) throws Exception {
+		for (int sent = 0; sent < count; sent += requests.size()) {
+			List<CompletableFuture<EDFData>> replies;
+			if (coalesced) {
+				replies = connection.sendAsync(requests);
+			} else {
+				replies = new ArrayList<CompletableFuture<EDFData>>();
+				for (EDFData request : requests) {
+					replies.add(connection.sendAsync(request));
+				}
+			}
+			replies.get(replies.size() - 1).get();
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package org.ua2.clientlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.ua2.clientlib.exception.NoConnectionError;
+import org.ua2.edf.EDFData;
+
+public class OutputTest {
+	private static final String[] REQUESTS = { "system_list", "folder_list", "user_list", "channel_list", "service_list" };
+
+	/**
+	 * Takes at most a fixed number of bytes each write, like a full socket
+	 */
+	private static class Recorder implements UAOutput.Sink {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		int limit = Integer.MAX_VALUE;
+
+		public void write(ByteBuffer buffer) throws IOException {
+			int length = Math.min(limit, buffer.remaining());
+			byte[] chunk = new byte[length];
+			buffer.get(chunk);
+			bytes.write(chunk);
+		}
+
+		String text() throws IOException {
+			return bytes.toString("UTF-8");
+		}
+	}
+
+	private static List<EDFData> requests(int count) {
+		List<EDFData> requests = new ArrayList<EDFData>();
+		for (int i = 0; i < count; i++) {
+			requests.add(new EDFData("request", REQUESTS[i % REQUESTS.length]));
+		}
+		return requests;
+	}
+
+	@Test
+	public void testCoalesce() throws Exception {
+		Recorder recorder = new Recorder();
+		UAOutput output = new UAOutput(recorder, true);
+
+		StringBuilder expected = new StringBuilder();
+		for (EDFData request : requests(10)) {
+			output.write(request, false);
+			expected.append(request.format(false));
+		}
+		assertEquals(0, output.getWriteCount());
+		assertEquals(expected.length(), output.getBuffered());
+
+		output.flush();
+		assertEquals(1, output.getWriteCount());
+		assertEquals(10, output.getSentCount());
+		assertEquals(expected.toString(), recorder.text());
+	}
+
+	@Test
+	public void testThreshold() throws Exception {
+		Recorder recorder = new Recorder();
+		UAOutput output = new UAOutput(recorder, false);
+		output.setThreshold(100);
+
+		int written = 0;
+		while (output.getWriteCount() == 0) {
+			EDFData request = new EDFData("request", "system_list");
+			output.write(request, false);
+			written += request.format(false).length();
+		}
+		assertTrue(written >= 100);
+		assertEquals(0, output.getBuffered());
+		assertEquals(written, recorder.bytes.size());
+	}
+
+	@Test
+	public void testLarge() throws Exception {
+		Recorder recorder = new Recorder();
+		UAOutput output = new UAOutput(recorder, true);
+
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			text.append("\"Line\" ").append(i).append(" \u00e9\n");
+		}
+		EDFData message = new EDFData("request", "message_add");
+		message.add("text", text.toString());
+
+		output.write(message, true);
+		assertEquals(message.format(false), recorder.text());
+	}
+
+	@Test
+	public void testStalled() throws Exception {
+		Recorder recorder = new Recorder();
+		recorder.limit = 10;
+		UAOutput output = new UAOutput(recorder, true);
+
+		EDFData request = new EDFData("request", "folder_list");
+		output.write(request, true);
+		assertTrue(output.isStalled());
+		assertEquals(request.format(false).length() - 10, output.getBuffered());
+
+		recorder.limit = Integer.MAX_VALUE;
+		output.flush();
+		assertFalse(output.isStalled());
+		assertEquals(request.format(false), recorder.text());
+	}
+
+	@Test
+	public void testFailedElement() throws Exception {
+		Recorder recorder = new Recorder();
+		UAOutput output = new UAOutput(recorder, false);
+
+		// A string child with no string fails part way through
+		EDFData bad = new EDFData("request", "message_add");
+		bad.add("subject", "Hello");
+		bad.add(new EDFData("text", (String) null));
+
+		EDFData first = new EDFData("request", "folder_list");
+		EDFData second = new EDFData("request", "user_list");
+		output.write(first, false);
+		try {
+			output.write(bad, false);
+			fail("Wrote an element without a string");
+		} catch (RuntimeException e) {
+			// Expected
+		}
+		output.write(second, true);
+
+		assertEquals(first.format(false) + second.format(false), recorder.text());
+		assertFalse(output.isBroken());
+	}
+
+	@Test
+	public void testBrokenElement() throws Exception {
+		Recorder recorder = new Recorder();
+		UAOutput output = new UAOutput(recorder, false);
+
+		// Written out part way before it fails
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			text.append("0123456789");
+		}
+		EDFData bad = new EDFData("request", "message_add");
+		bad.add("text", text.toString());
+		bad.add(new EDFData("subject", (String) null));
+
+		try {
+			output.write(bad, false);
+			fail("Wrote an element without a string");
+		} catch (RuntimeException e) {
+			// Expected
+		}
+		assertTrue(output.isBroken());
+		assertEquals(0, output.getBuffered());
+
+		try {
+			output.write(new EDFData("request", "folder_list"), true);
+			fail("Wrote after a broken element");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testBrokenConnection() throws Exception {
+		MockUAServer server = new MockUAServer();
+		server.setLatency(500);
+		UAConnection connection = new UAConnection();
+		assertTrue(connection.connect("localhost", server.getPort()));
+		CompletableFuture<EDFData> waiting = connection.sendAsync(new EDFData("request", "system_list"));
+
+		// Dropped whole, so the connection carries on
+		EDFData dropped = new EDFData("request", "message_add");
+		dropped.add(new EDFData("subject", (String) null));
+		assertFalse(connection.sendEDF(dropped));
+		assertEquals(UAConnection.ConnectionStatus.CONNECTED, connection.status);
+		assertFalse(waiting.isDone());
+
+		// Written out part way, so nothing waiting will be answered
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			text.append("0123456789");
+		}
+		EDFData bad = new EDFData("request", "message_add");
+		bad.add("text", text.toString());
+		bad.add(new EDFData("subject", (String) null));
+		assertFalse(connection.sendEDF(bad));
+		assertFalse(connection.status == UAConnection.ConnectionStatus.CONNECTED);
+		try {
+			waiting.get(1, TimeUnit.SECONDS);
+			fail("Reply on a broken connection");
+		} catch (ExecutionException e) {
+			assertEquals(NoConnectionError.Reason.CONNECTIONLOST, ((NoConnectionError) e.getCause()).reason);
+		}
+		assertEquals(0, connection.getPendingCount());
+
+		server.stop();
+	}
+
+	@Test
+	public void testHeldBack() throws Exception {
+		MockUAServer server = new MockUAServer();
+		UAConnection connection = new UAConnection();
+		connection.setAutoFlush(false);
+		assertTrue(connection.connect("localhost", server.getPort()));
+
+		CompletableFuture<EDFData> reply = connection.sendAsync(new EDFData("request", "system_list"));
+		Thread.sleep(200);
+		assertFalse(reply.isDone());
+
+		assertTrue(connection.flush());
+		assertEquals("system_list", reply.get(5, TimeUnit.SECONDS).getString());
+
+		// Waiting for the reply always writes the request out
+		assertEquals("user_list", connection.sendAndRead(new EDFData("request", "user_list")).getString());
+
+		connection.disconnect();
+		server.stop();
+	}
+
+	@Test
+	public void testBurst() throws Exception {
+		burst(null);
+	}
+
+	@Test
+	public void testBurstEngine() throws Exception {
+		UAEngine engine = new UAEngine(1);
+		burst(engine);
+		engine.shutdown();
+	}
+
+	private void burst(UAEngine engine) throws Exception {
+		MockUAServer server = new MockUAServer();
+		UAConnection connection = new UAConnection();
+		connection.setEngine(engine);
+		connection.setKeepAlive(true);
+		connection.setSendBufferSize(64 * 1024);
+		assertTrue(connection.connect("localhost", server.getPort()));
+
+		long writes = connection.getWriteCount();
+		long sent = connection.getSentCount();
+
+		List<CompletableFuture<EDFData>> replies = connection.sendAsync(requests(20));
+		assertEquals(1, connection.getWriteCount() - writes);
+		assertEquals(20, connection.getSentCount() - sent);
+		for (int i = 0; i < 20; i++) {
+			assertEquals(REQUESTS[i % REQUESTS.length], replies.get(i).get(5, TimeUnit.SECONDS).getString());
+		}
+
+		connection.disconnect();
+		server.stop();
+	}
+}
@@ -0,0 +1,51 @@
+package org.ua2.clientlib;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ua2.edf.EDFData;
+
+/**
+ * Compares fetching message lists one at a time with pipelining them over a
+ * slow link
+ * <p>
+ * Run from the project directory, optionally with the number of requests
+ * and the simulated latency in milliseconds.
+ */
+public class PipelineReport {
+	public static void main(String[] args) throws Exception {
+		int count = (args.length > 0 ? Integer.parseInt(args[0]) : 50);
+		int latency = (args.length > 1 ? Integer.parseInt(args[1]) : 40);
+
+		MockUAServer server = new MockUAServer();
+		server.setLatency(latency);
+		server.setReply("message_list", new String(Files.readAllBytes(new File("test/message_list2_reply.edf").toPath()), "UTF-8"));
+		UAConnection connection = new UAConnection();
+		connection.connect("localhost", server.getPort());
+
+		List<EDFData> requests = new ArrayList<EDFData>();
+		for (int i = 0; i < count; i++) {
+			requests.add(new EDFData("request", "message_list"));
+		}
+
+		long start = System.nanoTime();
+		for (EDFData request : requests) {
+			connection.sendAndRead(request);
+		}
+		double serial = (System.nanoTime() - start) / 1000000.0;
+
+		start = System.nanoTime();
+		connection.sendAndReadAll(requests);
+		double pipelined = (System.nanoTime() - start) / 1000000.0;
+
+		System.out.printf("%d requests, %d ms latency%n", count, latency);
+		System.out.printf("%-10s %8.0f ms%n", "serial", serial);
+		System.out.printf("%-10s %8.0f ms %6.1fx%n", "pipelined", pipelined, serial / pipelined);
+
+		connection.disconnect();
+		server.stop();
+		System.exit(0);
+	}
+}
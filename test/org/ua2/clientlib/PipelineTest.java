@@ -0,0 +1,113 @@
+package org.ua2.clientlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ua2.clientlib.exception.NoConnectionError;
+import org.ua2.edf.EDFData;
+
+public class PipelineTest {
+	private static final String[] REQUESTS = { "system_list", "folder_list", "user_list", "channel_list", "service_list" };
+
+	private MockUAServer server;
+	private UAConnection connection;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new MockUAServer();
+		connection = new UAConnection();
+		assertTrue(connection.connect("localhost", server.getPort()));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		connection.disconnect();
+		server.stop();
+	}
+
+	private static List<EDFData> requests(int count) {
+		List<EDFData> requests = new ArrayList<EDFData>();
+		for (int i = 0; i < count; i++) {
+			requests.add(new EDFData("request", REQUESTS[i % REQUESTS.length]));
+		}
+		return requests;
+	}
+
+	@Test
+	public void testInOrder() throws Exception {
+		List<EDFData> replies = connection.sendAndReadAll(requests(20));
+
+		assertEquals(20, replies.size());
+		for (int i = 0; i < 20; i++) {
+			assertEquals(REQUESTS[i % REQUESTS.length], replies.get(i).getString());
+		}
+		assertEquals(0, connection.getPendingCount());
+	}
+
+	@Test
+	public void testLatency() throws Exception {
+		server.setLatency(100);
+
+		long start = System.currentTimeMillis();
+		List<EDFData> replies = connection.sendAndReadAll(requests(10));
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertEquals("service_list", replies.get(9).getString());
+		// One at a time would take ten round trips
+		assertTrue("Took " + elapsed + "ms", elapsed < 600);
+	}
+
+	@Test
+	public void testThreads() throws Exception {
+		connection.setPipelined(true);
+		server.setLatency(50);
+
+		final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < REQUESTS.length; i++) {
+			final String request = REQUESTS[i];
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 5; j++) {
+							String reply = connection.sendAndRead(new EDFData("request", request)).getString();
+							if (!reply.equals(request)) {
+								failures.add(request + " got " + reply);
+							}
+						}
+					} catch (Exception e) {
+						failures.add(request + " " + e);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(Collections.<String>emptyList(), failures);
+	}
+
+	@Test
+	public void testLostConnection() throws Exception {
+		server.stop();
+
+		try {
+			connection.sendAndRead(new EDFData("request", "system_list"));
+			throw new AssertionError("Reply from a stopped server");
+		} catch (NoConnectionError e) {
+			// Expected
+		}
+		assertEquals(0, connection.getPendingCount());
+	}
+}
@@ -0,0 +1,165 @@
+package org.ua2.clientlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+import org.ua2.edf.EDFData;
+
+public class RouterTest {
+	/**
+	 * Runs tasks straight away
+	 */
+	private static final Executor DIRECT = new Executor() {
+		public void execute(Runnable task) {
+			task.run();
+		}
+	};
+
+	/**
+	 * Records a name for each announcement handled
+	 */
+	private static class Recorder implements EDFAnnouncement {
+		final String name;
+		final List<String> seen;
+
+		Recorder(String name, List<String> seen) {
+			this.name = name;
+			this.seen = seen;
+		}
+
+		public void announce(EDFData data) {
+			seen.add(name + ":" + data.getString());
+		}
+	}
+
+	private static EDFData announcement(String type, int folderid) {
+		EDFData announcement = new EDFData("announce", type);
+		announcement.add("folderid", folderid);
+		announcement.add("foldername", "Folder" + folderid);
+		return announcement;
+	}
+
+	private static AnnounceQueue queue() {
+		AnnounceQueue queue = new AnnounceQueue();
+		queue.setExecutor(DIRECT);
+		return queue;
+	}
+
+	@Test
+	public void testMatches() {
+		assertTrue(AnnounceRouter.matches("user_login", "user_login"));
+		assertFalse(AnnounceRouter.matches("user_login", "user_logout"));
+		assertFalse(AnnounceRouter.matches("user_login", "user_log"));
+		assertTrue(AnnounceRouter.matches("user_*", "user_login"));
+		assertTrue(AnnounceRouter.matches("user_*", "user_"));
+		assertFalse(AnnounceRouter.matches("user_*", "system_write"));
+		assertTrue(AnnounceRouter.matches("*", "anything"));
+		assertTrue(AnnounceRouter.matches("*", ""));
+		assertTrue(AnnounceRouter.matches("*_add", "folder_add"));
+		assertFalse(AnnounceRouter.matches("*_add", "folder_add_x"));
+		assertTrue(AnnounceRouter.matches("*_*_*", "message_mark_read"));
+		assertTrue(AnnounceRouter.matches("m*e*d", "message_mark_read"));
+		assertFalse(AnnounceRouter.matches("m*x*d", "message_mark_read"));
+		assertTrue(AnnounceRouter.matches("**", "a"));
+	}
+
+	@Test
+	public void testManySubscribers() {
+		List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+		AnnounceQueue queue = queue();
+		queue.subscribe("folder_add", new Recorder("a", seen));
+		queue.subscribe("folder_add", new Recorder("b", seen));
+		queue.subscribe("folder_*", new Recorder("c", seen));
+		queue.subscribe("*", new Recorder("d", seen));
+		assertEquals(4, queue.getSubscriptionCount());
+
+		queue.announce(announcement("folder_add", 1));
+		queue.announce(announcement("system_write", 1));
+
+		assertEquals(Arrays.asList("a:folder_add", "b:folder_add", "c:folder_add", "d:folder_add", "d:system_write"), seen);
+	}
+
+	@Test
+	public void testFilter() {
+		List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+		AnnounceQueue queue = queue();
+		queue.subscribe("message_*", AnnounceQueue.childEquals("folderid", 3), new Recorder("3", seen));
+		queue.subscribe("message_*", AnnounceQueue.childEquals("foldername", "Folder4"), new Recorder("4", seen));
+
+		queue.announce(announcement("message_add", 3));
+		queue.announce(announcement("message_add", 4));
+		queue.announce(announcement("message_add", 5));
+		queue.announce(new EDFData("announce", "message_add"));
+
+		assertEquals(Arrays.asList("3:message_add", "4:message_add"), seen);
+	}
+
+	@Test
+	public void testUnsubscribe() {
+		List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+		AnnounceQueue queue = queue();
+		Subscription a = queue.subscribe("user_login", new Recorder("a", seen));
+		queue.subscribe("user_*", new Recorder("b", seen));
+
+		queue.announce(announcement("user_login", 1));
+		a.unsubscribe();
+		assertFalse(a.isActive());
+		assertEquals(1, queue.getSubscriptionCount());
+		queue.announce(announcement("user_login", 1));
+
+		// Again does nothing
+		a.unsubscribe();
+		assertEquals(1, queue.getSubscriptionCount());
+
+		assertEquals(Arrays.asList("a:user_login", "b:user_login", "b:user_login"), seen);
+	}
+
+	@Test
+	public void testRoutes() {
+		List<String> seen = new ArrayList<String>();
+		AnnounceRouter router = new AnnounceRouter();
+		assertEquals(0, router.route("user_login").length);
+
+		// Found routes are kept until the subscriptions change
+		Subscription a = router.add("user_*", null, new Recorder("a", seen));
+		Subscription[] routes = router.route("user_login");
+		assertEquals(1, routes.length);
+		assertSame(routes, router.route("user_login"));
+
+		Subscription b = router.add("user_login", null, new Recorder("b", seen));
+		routes = router.route("user_login");
+		assertEquals(2, routes.length);
+		assertSame(a, routes[0]);
+		assertSame(b, routes[1]);
+
+		a.unsubscribe();
+		routes = router.route("user_login");
+		assertEquals(1, routes.length);
+		assertSame(b, routes[0]);
+	}
+
+	@Test
+	public void testHandlerFailure() {
+		List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+		AnnounceQueue queue = queue();
+		queue.subscribe("user_login", new EDFAnnouncement() {
+			public void announce(EDFData data) {
+				throw new IllegalStateException("Handler failure");
+			}
+		});
+		queue.subscribe("user_login", new Recorder("b", seen));
+
+		queue.announce(announcement("user_login", 1));
+		assertEquals(Arrays.asList("b:user_login"), seen);
+		assertEquals(1, queue.getDelivered());
+	}
+}
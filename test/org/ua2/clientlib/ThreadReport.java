@@ -0,0 +1,84 @@
+package org.ua2.clientlib;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.ua2.edf.EDFData;
+
+/**
+ * Compares platform and virtual threads for N sessions under announcement
+ * load
+ * <p>
+ * Run from the project directory, optionally with the number of sessions
+ * and announcements. Each session has its reader and its announcement
+ * handlers on threads from the same factory, and every handler blocks for
+ * a millisecond as a handler making a request would. The time for every
+ * session to handle every announcement and the peak platform thread count
+ * are reported. Virtual threads need JDK 21 or later.
+ */
+public class ThreadReport {
+	private static final String ANNOUNCEMENT = "<announce=\"user_login\"><username=\"Techno\"/></>";
+
+	private static void run(String mode, ThreadFactory readers, ThreadFactory handlers, int sessions, int announcements) throws Exception {
+		MockUAServer server = new MockUAServer();
+		ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+		int before = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		final CountDownLatch latch = new CountDownLatch(sessions * announcements);
+		List<UAConnection> connections = new ArrayList<UAConnection>();
+		for (int i = 0; i < sessions; i++) {
+			UAConnection connection = new UAConnection();
+			connection.setThreadFactory(readers);
+			connection.getAnnounceQueue().setExecutor(UAThreads.perTask(handlers));
+			connection.getAnnounceQueue().subscribe("user_login", new EDFAnnouncement() {
+				public void announce(EDFData announcement) {
+					try {
+						Thread.sleep(1);
+					} catch (InterruptedException e) {
+						// Done
+					}
+					latch.countDown();
+				}
+			});
+			if (!connection.connect("localhost", server.getPort())) {
+				throw new IllegalStateException("Connect failed: " + connection.statusmessage);
+			}
+			connections.add(connection);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < announcements; i++) {
+			server.broadcast(ANNOUNCEMENT);
+		}
+		if (!latch.await(5, TimeUnit.MINUTES)) {
+			throw new IllegalStateException("Announcements not handled");
+		}
+		double elapsed = (System.nanoTime() - start) / 1000000.0;
+
+		System.out.printf("%-9s %6d sessions %6d announcements %8.0f ms %6d peak extra threads%n", mode, sessions,
+				announcements, elapsed, ManagementFactory.getThreadMXBean().getPeakThreadCount() - before);
+
+		for (UAConnection connection : connections) {
+			connection.disconnect();
+		}
+		server.stop();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int sessions = (args.length > 0 ? Integer.parseInt(args[0]) : 500);
+		int announcements = (args.length > 1 ? Integer.parseInt(args[1]) : 20);
+
+		run("platform", UAThreads.platform("Reader-"), UAThreads.platform("Announce"), sessions, announcements);
+		if (UAThreads.isVirtualAvailable()) {
+			run("virtual", UAThreads.virtual("Reader-"), UAThreads.virtual("Announce-"), sessions, announcements);
+		} else {
+			System.out.println("virtual   not available on JDK " + System.getProperty("java.version"));
+		}
+
+		System.exit(0);
+	}
+}
@@ -0,0 +1,82 @@
+package org.ua2.clientlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.ua2.edf.EDFData;
+
+public class ThreadsTest {
+
+	@Test
+	public void testPluggable() throws Exception {
+		MockUAServer server = new MockUAServer();
+		try {
+			final AtomicInteger readers = new AtomicInteger();
+			final AtomicInteger handlers = new AtomicInteger();
+
+			UAConnection connection = new UAConnection();
+			connection.setThreadFactory(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					readers.incrementAndGet();
+					return new Thread(runnable, "TestReader");
+				}
+			});
+			connection.getAnnounceQueue().setExecutor(new Executor() {
+				public void execute(Runnable task) {
+					handlers.incrementAndGet();
+					task.run();
+				}
+			});
+			assertTrue(connection.connect("localhost", server.getPort()));
+			assertEquals(1, readers.get());
+
+			final CountDownLatch latch = new CountDownLatch(1);
+			connection.getAnnounceQueue().subscribe("user_login", new EDFAnnouncement() {
+				public void announce(EDFData announcement) {
+					latch.countDown();
+				}
+			});
+			connection.sendAndRead(new EDFData("request", "announce"));
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			assertEquals(1, handlers.get());
+
+			connection.disconnect();
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testVirtual() throws Exception {
+		if (!UAThreads.isVirtualAvailable()) {
+			try {
+				UAThreads.virtual("Reader-");
+				throw new AssertionError("Virtual threads reported on a JDK without them");
+			} catch (UnsupportedOperationException e) {
+				// Expected
+			}
+			assertTrue(UAThreads.best("Reader-").newThread(new Runnable() {
+				public void run() {
+				}
+			}).getName().startsWith("Reader-"));
+			return;
+		}
+
+		final CountDownLatch latch = new CountDownLatch(1);
+		Thread thread = UAThreads.virtual("Reader-").newThread(new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		});
+		assertEquals("Reader-0", thread.getName());
+		thread.start();
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+	}
+}
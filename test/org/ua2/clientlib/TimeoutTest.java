@@ -0,0 +1,238 @@
+package org.ua2.clientlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.ua2.clientlib.exception.NoConnectionError;
+import org.ua2.edf.EDFData;
+
+public class TimeoutTest {
+	@Test
+	public void testFires() throws Exception {
+		UATimerWheel wheel = new UATimerWheel(5, TimeUnit.MILLISECONDS, 16, "TestTimer");
+
+		final long start = System.nanoTime();
+		final long[] fired = new long[1];
+		final CountDownLatch latch = new CountDownLatch(1);
+		UATimerWheel.Timeout timeout = wheel.schedule(new Runnable() {
+			public void run() {
+				fired[0] = System.nanoTime();
+				latch.countDown();
+			}
+		}, 50, TimeUnit.MILLISECONDS);
+
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.cancel());
+		assertTrue("Fired early", fired[0] - start >= TimeUnit.MILLISECONDS.toNanos(50));
+	}
+
+	@Test
+	public void testRounds() throws Exception {
+		// 8 ticks of 2ms, so 100ms goes round the wheel several times
+		UATimerWheel wheel = new UATimerWheel(2, TimeUnit.MILLISECONDS, 8, "TestTimer");
+
+		final long start = System.nanoTime();
+		final List<long[]> fired = new ArrayList<long[]>();
+		final CountDownLatch latch = new CountDownLatch(3);
+		for (final int delay : new int[] { 100, 10, 40 }) {
+			wheel.schedule(new Runnable() {
+				public void run() {
+					fired.add(new long[] { delay, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) });
+					latch.countDown();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		long[] order = { 10, 40, 100 };
+		for (int i = 0; i < order.length; i++) {
+			assertEquals(order[i], fired.get(i)[0]);
+			assertTrue("Fired early", fired.get(i)[1] >= order[i]);
+		}
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		UATimerWheel wheel = new UATimerWheel(1, TimeUnit.MILLISECONDS, 64, "TestTimer");
+
+		final AtomicInteger count = new AtomicInteger();
+		Runnable task = new Runnable() {
+			public void run() {
+				count.incrementAndGet();
+			}
+		};
+
+		List<UATimerWheel.Timeout> timeouts = new ArrayList<UATimerWheel.Timeout>();
+		for (int i = 0; i < 10000; i++) {
+			timeouts.add(wheel.schedule(task, 500 + i % 50, TimeUnit.MILLISECONDS));
+		}
+		for (int i = 0; i < timeouts.size(); i += 2) {
+			assertTrue(timeouts.get(i).cancel());
+		}
+
+		for (int i = 0; i < 250 && count.get() < 5000; i++) {
+			Thread.sleep(20);
+		}
+		Thread.sleep(100);
+		assertEquals(5000, count.get());
+	}
+
+	@Test
+	public void testRequestTimeout() throws Exception {
+		MockUAServer server = new MockUAServer();
+		server.setLatency(200);
+		UAConnection connection = new UAConnection();
+		connection.setTimeout("folder_list", 50);
+		assertTrue(connection.connect("localhost", server.getPort()));
+
+		assertEquals(50, connection.getTimeout("folder_list"));
+		assertEquals(UAConnection.DEFAULT_TIMEOUT, connection.getTimeout("system_list"));
+		assertEquals(3 * UAConnection.DEFAULT_TIMEOUT, connection.getTimeout("user_list"));
+
+		// Times out while another reply is on its way
+		CompletableFuture<EDFData> system = connection.sendAsync(new EDFData("request", "system_list"));
+		Thread.sleep(180);
+		try {
+			connection.sendAndRead(new EDFData("request", "folder_list"));
+			fail("No timeout");
+		} catch (NoConnectionError e) {
+			assertEquals(NoConnectionError.Reason.TIMEDOUT, e.reason);
+		}
+		assertEquals("system_list", system.get(5, TimeUnit.SECONDS).getString());
+
+		// The connection is still alive
+		assertEquals(UAConnection.ConnectionStatus.CONNECTED, connection.status);
+		assertEquals("user_list", connection.sendAndRead(new EDFData("request", "user_list")).getString());
+		assertEquals(1, connection.getLateReplyCount());
+
+		connection.disconnect();
+		server.stop();
+	}
+
+	@Test
+	public void testSlowRequest() throws Exception {
+		MockUAServer server = new MockUAServer();
+		server.setLatency(200);
+		UAConnection connection = new UAConnection();
+		connection.setTimeout("folder_list", 50);
+		assertTrue(connection.connect("localhost", server.getPort()));
+
+		// Nothing else is on its way, but only the request fails
+		try {
+			connection.sendAndRead(new EDFData("request", "folder_list"));
+			fail("No timeout");
+		} catch (NoConnectionError e) {
+			assertEquals(NoConnectionError.Reason.TIMEDOUT, e.reason);
+		}
+		assertEquals(UAConnection.ConnectionStatus.CONNECTED, connection.status);
+		assertEquals("system_list", connection.sendAndRead(new EDFData("request", "system_list")).getString());
+		assertEquals(1, connection.getLateReplyCount());
+
+		connection.disconnect();
+		server.stop();
+	}
+
+	@Test
+	public void testInterrupted() throws Exception {
+		MockUAServer server = new MockUAServer();
+		server.setLatency(200);
+		UAConnection connection = new UAConnection();
+		assertTrue(connection.connect("localhost", server.getPort()));
+
+		Thread.currentThread().interrupt();
+		try {
+			connection.sendAndRead(new EDFData("request", "folder_list"));
+			fail("Not interrupted");
+		} catch (NoConnectionError e) {
+			assertEquals(NoConnectionError.Reason.INTERRUPTED, e.reason);
+		}
+		assertTrue(Thread.interrupted());
+
+		// Only the interrupted request is given up
+		assertEquals(UAConnection.ConnectionStatus.CONNECTED, connection.status);
+		assertEquals("system_list", connection.sendAndRead(new EDFData("request", "system_list")).getString());
+		assertEquals(1, connection.getLateReplyCount());
+
+		connection.disconnect();
+		server.stop();
+	}
+
+	@Test
+	public void testHeldBackRequest() throws Exception {
+		MockUAServer server = new MockUAServer();
+		UAConnection connection = new UAConnection();
+		connection.setIdleTimeout(100);
+		connection.setAutoFlush(false);
+		assertTrue(connection.connect("localhost", server.getPort()));
+
+		// The idle timeout only starts once the request goes out
+		CompletableFuture<EDFData> reply = connection.sendAsync(new EDFData("request", "system_list"));
+		Thread.sleep(300);
+		assertEquals(UAConnection.ConnectionStatus.CONNECTED, connection.status);
+		assertTrue(connection.flush());
+		assertEquals("system_list", reply.get(5, TimeUnit.SECONDS).getString());
+
+		connection.disconnect();
+		server.stop();
+	}
+
+	@Test
+	public void testDeadServer() throws Exception {
+		dead(null);
+	}
+
+	@Test
+	public void testDeadServerEngine() throws Exception {
+		UAEngine engine = new UAEngine(1);
+		dead(engine);
+		engine.shutdown();
+	}
+
+	private void dead(UAEngine engine) throws Exception {
+		MockUAServer server = new MockUAServer();
+		UAConnection connection = new UAConnection();
+		connection.setEngine(engine);
+		connection.setTimeout(100);
+		connection.setIdleTimeout(300);
+		assertTrue(connection.connect("localhost", server.getPort()));
+		// Long enough to look like the server has hung
+		server.setLatency(2000);
+
+		CompletableFuture<EDFData> behind = connection.sendAsync(new EDFData("request", "folder_list"));
+		CompletableFuture<EDFData> queued = connection.sendAsync(new EDFData("request", "system_list"), 5, TimeUnit.SECONDS);
+		try {
+			behind.get(5, TimeUnit.SECONDS);
+			fail("No timeout");
+		} catch (ExecutionException e) {
+			assertEquals(NoConnectionError.Reason.TIMEDOUT, ((NoConnectionError) e.getCause()).reason);
+		}
+
+		assertEquals(UAConnection.ConnectionStatus.CONNECTED, connection.status);
+
+		// Nothing arrived for the idle timeout, so the connection is closed
+		// and everything waiting on it fails
+		try {
+			queued.get(5, TimeUnit.SECONDS);
+			fail("Reply from hung server");
+		} catch (ExecutionException e) {
+			assertEquals(NoConnectionError.Reason.CONNECTIONLOST, ((NoConnectionError) e.getCause()).reason);
+		}
+		// The reader thread may record its own failure on the closed socket
+		assertFalse(connection.status == UAConnection.ConnectionStatus.CONNECTED);
+		assertEquals(0, connection.getPendingCount());
+
+		server.stop();
+	}
+}
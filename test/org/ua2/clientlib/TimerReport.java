@@ -0,0 +1,58 @@
+package org.ua2.clientlib;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares scheduling and cancelling request deadlines on the timer wheel
+ * with a ScheduledThreadPoolExecutor, with many deadlines outstanding
+ * <p>
+ * Run optionally with the number of outstanding deadlines and the number
+ * of requests.
+ */
+public class TimerReport {
+	public static void main(String[] args) throws Exception {
+		int outstanding = (args.length > 0 ? Integer.parseInt(args[0]) : 100000);
+		int count = (args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+
+		Runnable task = new Runnable() {
+			public void run() {
+			}
+		};
+
+		UATimerWheel wheel = new UATimerWheel(10, TimeUnit.MILLISECONDS, 512, "ReportTimer");
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+		executor.setRemoveOnCancelPolicy(true);
+
+		// Deadlines of sessions which are still waiting
+		for (int i = 0; i < outstanding; i++) {
+			wheel.schedule(task, 60 + i % 60, TimeUnit.SECONDS);
+			executor.schedule(task, 60 + i % 60, TimeUnit.SECONDS);
+		}
+
+		System.out.printf("%d requests, %d deadlines outstanding%n", count, outstanding);
+		for (int round = 0; round < 2; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				wheel.schedule(task, 60, TimeUnit.SECONDS).cancel();
+			}
+			double wheeltime = (System.nanoTime() - start) / (double) count;
+
+			start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				ScheduledFuture<?> future = executor.schedule(task, 60, TimeUnit.SECONDS);
+				future.cancel(false);
+			}
+			double executortime = (System.nanoTime() - start) / (double) count;
+
+			if (round == 1) {
+				System.out.printf("%-10s %8.0f ns/request%n", "wheel", wheeltime);
+				System.out.printf("%-10s %8.0f ns/request%n", "executor", executortime);
+			}
+		}
+
+		executor.shutdownNow();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,175 @@
+package org.ua2.clientlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ua2.edf.EDFData;
+
+public class UAEngineTest {
+	private MockUAServer server;
+	private UAEngine engine;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new MockUAServer();
+		engine = new UAEngine(2);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		engine.shutdown();
+		server.stop();
+	}
+
+	private UAConnection connect() throws Exception {
+		UAConnection connection = new UAConnection();
+		connection.setEngine(engine);
+		assertTrue(connection.connect("localhost", server.getPort()));
+		return connection;
+	}
+
+	private static int readerThreads() {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("Reader-")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Test
+	public void testRequests() throws Exception {
+		int readers = readerThreads();
+
+		List<UAConnection> connections = new ArrayList<UAConnection>();
+		for (int i = 0; i < 20; i++) {
+			connections.add(connect());
+		}
+		assertEquals(readers, readerThreads());
+
+		for (UAConnection connection : connections) {
+			UA ua = new UA();
+			ua.register(connection);
+
+			FolderList folders = new FolderList(ua);
+			folders.refresh();
+			assertEquals(66, folders.getFolderList().size());
+
+			UserList users = new UserList(ua);
+			users.refresh();
+			assertEquals(1154, users.getUserList().size());
+
+			assertEquals("system_list", connection.sendAndRead(new EDFData("request", "system_list")).getString());
+		}
+	}
+
+	@Test
+	public void testAnnouncements() throws Exception {
+		UAConnection connection = connect();
+
+		final CountDownLatch latch = new CountDownLatch(1);
+		final String[] name = new String[1];
+		connection.getAnnounceQueue().subscribe("user_login", new EDFAnnouncement() {
+			public void announce(EDFData announcement) {
+				name[0] = announcement.getChild("username").getString();
+				latch.countDown();
+			}
+		});
+
+		assertEquals("announce", connection.sendAndRead(new EDFData("request", "announce")).getString());
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals("Techno", name[0]);
+	}
+
+	@Test
+	public void testLargeRequest() throws Exception {
+		UAConnection connection = connect();
+
+		// Bigger than a socket buffer, so the engine has to finish writing it
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 200000; i++) {
+			text.append("0123456789");
+		}
+		EDFData request = new EDFData("request", "message_add");
+		request.add("text", text.toString());
+
+		assertEquals("rq_invalid", connection.sendAndRead(request).getString());
+	}
+
+	@Test
+	public void testLostConnection() throws Exception {
+		UAConnection connection = connect();
+		server.stop();
+
+		for (int i = 0; i < 100 && connection.status == UAConnection.ConnectionStatus.CONNECTED; i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(UAConnection.ConnectionStatus.CONNECTFAILED, connection.status);
+	}
+
+	@Test
+	public void testFailureClosesOneConnection() throws Exception {
+		UAEngine single = new UAEngine(1);
+		try {
+			UAConnection broken = new UAConnection();
+			broken.setEngine(single);
+			broken.getAnnounceQueue().setExecutor(new Executor() {
+				public void execute(Runnable task) {
+					throw new IllegalStateException("Executor failure");
+				}
+			});
+			assertTrue(broken.connect("localhost", server.getPort()));
+
+			UAConnection other = new UAConnection();
+			other.setEngine(single);
+			assertTrue(other.connect("localhost", server.getPort()));
+
+			server.broadcast("<announce=\"user_login\"><userid=1/></>");
+			for (int i = 0; i < 100 && broken.status == UAConnection.ConnectionStatus.CONNECTED; i++) {
+				Thread.sleep(50);
+			}
+			assertTrue(broken.status != UAConnection.ConnectionStatus.CONNECTED);
+
+			// The I/O thread carries on serving the other connection
+			assertEquals(UAConnection.ConnectionStatus.CONNECTED, other.status);
+			assertEquals("system_list", other.sendAndRead(new EDFData("request", "system_list")).getString());
+		} finally {
+			single.shutdown();
+		}
+	}
+
+	@Test
+	public void testNoBlocking() throws Exception {
+		UAConnection connection = new UAConnection();
+		connection.getAnnounceQueue().setOverflow(AnnounceQueue.Overflow.BLOCK);
+		try {
+			connection.setEngine(engine);
+			fail("Engine accepted a blocking announcement queue");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		assertNull(connection.getEngine());
+
+		connection.getAnnounceQueue().setOverflow(AnnounceQueue.Overflow.DROP_NEWEST);
+		connection.setEngine(engine);
+		try {
+			connection.getAnnounceQueue().setOverflow(AnnounceQueue.Overflow.BLOCK);
+			fail("Blocking announcement queue accepted");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		assertEquals(AnnounceQueue.Overflow.DROP_NEWEST, connection.getAnnounceQueue().getOverflow());
+	}
+}
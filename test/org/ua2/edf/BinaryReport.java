@@ -0,0 +1,73 @@
+package org.ua2.edf;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+
+import org.ua2.edf.parser.EDFByteParser;
+import org.ua2.edf.parser.EDFParser;
+
+/**
+ * Compares decoding the binary encoding of the test corpus with parsing its
+ * text form
+ * <p>
+ * Run from the project directory. Each file is decoded ROUNDS times after
+ * WARMUP rounds, and the mean time per decode is reported for the JavaCC
+ * parser, the byte parser and EDFBinary, along with the size of each form.
+ */
+public class BinaryReport {
+	private static final int WARMUP = 2000;
+	private static final int ROUNDS = 5000;
+
+	private interface Decode {
+		EDFData decode(byte[] bytes) throws Exception;
+	}
+
+	private static final Decode JAVACC = new Decode() {
+		public EDFData decode(byte[] bytes) throws Exception {
+			return new EDFParser(new InputStreamReader(new ByteArrayInputStream(bytes), "UTF-8")).elementtree();
+		}
+	};
+
+	private static final Decode BYTE = new Decode() {
+		public EDFData decode(byte[] bytes) throws Exception {
+			return new EDFByteParser(new ByteArrayInputStream(bytes)).elementtree();
+		}
+	};
+
+	private static final Decode BINARY = new Decode() {
+		public EDFData decode(byte[] bytes) throws Exception {
+			return EDFBinary.decode(bytes);
+		}
+	};
+
+	private static int sink;
+
+	private static double time(Decode decode, byte[] bytes) throws Exception {
+		for(int i = 0; i < WARMUP; i++) {
+			sink += decode.decode(bytes).getChildCount();
+		}
+		long start = System.nanoTime();
+		for(int i = 0; i < ROUNDS; i++) {
+			sink += decode.decode(bytes).getChildCount();
+		}
+		return (System.nanoTime() - start) / 1000.0 / ROUNDS;
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.printf("%-28s %8s %8s %10s %10s %10s%n", "file", "text", "binary", "javacc us", "byte us", "binary us");
+
+		for(File file : new File("test").listFiles()) {
+			if(!file.getName().endsWith(".edf")) {
+				continue;
+			}
+
+			byte[] text = Files.readAllBytes(file.toPath());
+			byte[] binary = EDFBinary.encode(BYTE.decode(text));
+
+			System.out.printf("%-28s %8d %8d %10.1f %10.1f %10.1f%n", file.getName(), text.length, binary.length,
+					time(JAVACC, text), time(BYTE, text), time(BINARY, binary));
+		}
+	}
+}
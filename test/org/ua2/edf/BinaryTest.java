@@ -0,0 +1,124 @@
+package org.ua2.edf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.ua2.edf.parser.EDFParser;
+
+public class BinaryTest {
+
+	private static EDFData parse(String edf) throws Exception {
+		return new EDFParser(new InputStreamReader(new ByteArrayInputStream(edf.getBytes("UTF-8")), "UTF-8")).elementtree();
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		EDFData data = parse("<reply=\"user_list\"><user=-1><name=\"Gr\\\"yn\\\\\"/><big=2147483647/><small=-2147483648/></user>"
+				+ "<=2/><=\"nameless\"/><><empty/></><five=\"5\"/></reply>");
+
+		EDFData decoded = EDFBinary.decode(EDFBinary.encode(data));
+
+		assertEquals(data.format(false), decoded.format(false));
+		assertEquals(EDFData.ValueType.STRING, decoded.getChild("five").type);
+		assertSame("user", decoded.getChild("user").getName());
+	}
+
+	@Test
+	public void testSequence() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		EDFBinary.encode(new EDFData("first", 1), bytes);
+		EDFBinary.encode(new EDFData("second", "\u20ac2"), bytes);
+
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		assertEquals("<first=1/>", EDFBinary.decode(buffer).format(false));
+		assertEquals("<second=\"\u20ac2\"/>", EDFBinary.decode(buffer).format(false));
+		assertEquals(0, buffer.remaining());
+
+		BufferedInputStream stream = new BufferedInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		assertEquals("<first=1/>", EDFBinary.decode(stream).format(false));
+		assertEquals("<second=\"\u20ac2\"/>", EDFBinary.decode(stream).format(false));
+	}
+
+	@Test(expected = EDFFormatException.class)
+	public void testNotBinary() throws Exception {
+		EDFBinary.decode("<edf/>".getBytes("UTF-8"));
+	}
+
+	@Test(expected = EDFFormatException.class)
+	public void testTruncated() throws Exception {
+		byte[] bytes = EDFBinary.encode(parse("<reply><user=1/></reply>"));
+		EDFBinary.decode(Arrays.copyOf(bytes, bytes.length - 1));
+	}
+
+	@Test
+	public void testDamaged() throws Exception {
+		// Name counts and string lengths beyond the data
+		assertDamaged(header(0xff, 0xff, 0xff, 0xff, 0x0f));
+		assertDamaged(header(0xff, 0xff, 0xff, 0xff, 0x07));
+		assertDamaged(header(0x01, 0xff, 0xff, 0xff, 0xff, 0x07));
+		assertDamaged(header(0x01, 0x00, 0x01, 0xff, 0xff, 0xff, 0xff, 0x07));
+
+		// Nested too deep
+		ByteArrayOutputStream deep = new ByteArrayOutputStream();
+		deep.write(header(0x01, 0x01, 'a'));
+		for(int i = 0; i < EDFBinary.MAX_DEPTH + 10; i++) {
+			deep.write(0x00);
+			deep.write(0x01);
+		}
+		assertDamaged(deep.toByteArray());
+	}
+
+	private static byte[] header(int... bytes) {
+		byte[] header = Arrays.copyOf(EDFBinary.MAGIC, EDFBinary.MAGIC.length + 1 + bytes.length);
+		header[EDFBinary.MAGIC.length] = EDFBinary.VERSION;
+		for(int i = 0; i < bytes.length; i++) {
+			header[EDFBinary.MAGIC.length + 1 + i] = (byte) bytes[i];
+		}
+		return header;
+	}
+
+	private static void assertDamaged(byte[] bytes) throws Exception {
+		try {
+			EDFBinary.decode(bytes);
+			fail("Decoded damaged bytes");
+		} catch(EDFFormatException e) {
+			// Expected
+		}
+
+		try {
+			EDFBinary.decode(new ByteArrayInputStream(bytes));
+			fail("Decoded damaged stream");
+		} catch(EDFFormatException e) {
+			// Expected
+		} catch(EOFException e) {
+			// Also fine from a stream, once the length checks out
+		}
+	}
+
+	@Test
+	public void testCorpus() throws Exception {
+		for(File file : new File("test").listFiles()) {
+			if(!file.getName().endsWith(".edf")) {
+				continue;
+			}
+
+			EDFData data = new EDFParser(new InputStreamReader(new FileInputStream(file), "UTF-8")).elementtree();
+			byte[] bytes = EDFBinary.encode(data);
+
+			assertEquals(file.getName(), data.format(true), EDFBinary.decode(bytes).format(true));
+			assertEquals(file.getName(), data.format(true), EDFBinary.decode(new ByteArrayInputStream(bytes)).format(true));
+		}
+	}
+}
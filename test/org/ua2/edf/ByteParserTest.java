@@ -0,0 +1,115 @@
+package org.ua2.edf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import org.junit.Test;
+import org.ua2.edf.parser.EDFByteParser;
+import org.ua2.edf.parser.EDFParser;
+import org.ua2.edf.parser.ParseException;
+
+public class ByteParserTest {
+
+	private static EDFData parse(String edf) throws Exception {
+		return new EDFByteParser(new ByteArrayInputStream(edf.getBytes("UTF-8"))).elementtree();
+	}
+
+	/**
+	 * Hands out one byte per read, to exercise tokens split across buffer refills
+	 */
+	private static class TrickleInputStream extends FilterInputStream {
+		TrickleInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return super.read(b, off, Math.min(len, 1));
+		}
+	}
+
+	@Test
+	public void testParseMinimal() throws Exception {
+		EDFData data = parse("<></>");
+
+		assertEquals("", data.getName());
+		assertNull(data.getValue());
+	}
+
+	@Test
+	public void testParseBlankNameValues() throws Exception {
+		assertEquals((Integer)1, parse("<=1/>").getInteger());
+		assertEquals("first", parse("<=\"first\"></>").getString());
+	}
+
+	@Test
+	public void testParseValues() throws Exception {
+		assertEquals((Integer)(-42), parse("<one=-42/>").getInteger());
+		assertEquals((Integer)Integer.MIN_VALUE, parse("<one=-2147483648/>").getInteger());
+		assertEquals("", parse("<one=\"\"/>").getString());
+		assertEquals("first\u0101", parse("<one=\"first\u0101\"></>").getString());
+		assertEquals("say \"hi\" \\o/", parse("<one=\"say \\\"hi\\\" \\\\o/\"/>").getString());
+		assertNull(parse("<one=-1.5e+10/>").getValue());
+	}
+
+	@Test
+	public void testParseChildren() throws Exception {
+		EDFData data = parse("<one=1>\r\n  <two=\"second\"/>\r\n  <three=3><four=\"fourth\"></></two>\r\n</one>");
+
+		assertEquals("one", data.getName());
+		assertEquals(2, data.getChildCount());
+		assertEquals("second", data.getChild("two").getString());
+		assertEquals("fourth", data.getChild("three").getChild("four").getString());
+	}
+
+	@Test
+	public void testParseSequence() throws Exception {
+		EDFByteParser parser = new EDFByteParser(new ByteArrayInputStream("<edf=\"on\"/>\n<reply=\"a\"></reply><announce=\"b\"/>".getBytes("UTF-8")));
+
+		assertEquals("edf", parser.elementtree().getName());
+		assertEquals("a", parser.elementtree().getString());
+		assertEquals("b", parser.elementtree().getString());
+	}
+
+	@Test
+	public void testParseErrors() throws Exception {
+		String[] bad = { "", "<one", "<one=\"open/>", "<one=\"\\n\"/>", "<one=abc/>", "<one=99999999999/>", "<1one/>" };
+
+		for(String edf : bad) {
+			try {
+				parse(edf);
+				fail("Parsed invalid EDF " + edf);
+			} catch(ParseException e) {
+				// Expected
+			}
+		}
+	}
+
+	/**
+	 * Both parsers must produce identical trees for every file in the test corpus
+	 */
+	@Test
+	public void testCorpusMatchesReference() throws Exception {
+		for(File file : new File("test").listFiles()) {
+			if(!file.getName().endsWith(".edf")) {
+				continue;
+			}
+
+			EDFData reference = new EDFParser(new InputStreamReader(new FileInputStream(file), "UTF-8")).elementtree();
+			EDFData data = new EDFByteParser(new FileInputStream(file)).elementtree();
+			EDFData trickled = new EDFByteParser(new TrickleInputStream(new FileInputStream(file))).elementtree();
+
+			assertEquals(file.getName(), reference.format(true), data.format(true));
+			assertEquals(file.getName(), reference.format(true), trickled.format(true));
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package org.ua2.edf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DiffTest {
+
+	@Test
+	public void testIdentical() throws Exception {
+		for(File file : new File("test").listFiles()) {
+			if(!file.getName().endsWith(".edf")) {
+				continue;
+			}
+
+			EDFData before = TestFiles.parseFile(file.getPath());
+			EDFData after = TestFiles.parseFile(file.getPath());
+
+			assertTrue(file.getName(), EDFDiff.diff(before, after).isEmpty());
+		}
+	}
+
+	@Test
+	public void testValueChange() throws Exception {
+		EDFData before = TestFiles.parseFile("test/user_list1_reply.edf");
+		EDFNode tree = before.freeze();
+		int i = tree.indexOf("user", 0);
+		EDFNode user = tree.getChild(i);
+		EDFData after = tree.with(i, user.with("accesslevel", 5)).thaw();
+
+		List<EDFDiff.Change> changes = EDFDiff.diff(before, after);
+		assertEquals(1, changes.size());
+
+		EDFDiff.Change change = changes.get(0);
+		assertEquals(EDFDiff.Kind.CHANGED, change.getKind());
+		assertEquals("user", change.getName());
+		assertEquals(1, change.getAfter().getInt());
+		assertSame(before.getChild(i), change.getBefore());
+
+		// Only the value which moved is reported inside it
+		assertEquals(1, change.getChanges().size());
+		EDFDiff.Change inner = change.getChanges().get(0);
+		assertEquals(EDFDiff.Kind.CHANGED, inner.getKind());
+		assertEquals(3, inner.getBefore().getInt());
+		assertEquals(5, inner.getAfter().getInt());
+	}
+
+	@Test
+	public void testAddedAndRemoved() throws Exception {
+		EDFData before = TestFiles.parseFile("test/folder_list1_reply.edf");
+		EDFNode tree = before.freeze();
+		EDFNode first = tree.getChild(tree.indexOf("folder", 0));
+
+		EDFNode changed = EDFNode.of("reply", "folder_list").add(EDFNode.of("folder", 9999).add("name", "New"));
+		for(EDFNode child : tree.getChildren()) {
+			if(child != first) {
+				changed = changed.add(child);
+			}
+		}
+
+		List<EDFDiff.Change> changes = EDFDiff.diff(before, changed.thaw());
+		assertEquals(2, changes.size());
+		assertEquals(EDFDiff.Kind.ADDED, changes.get(0).getKind());
+		assertEquals(9999, changes.get(0).getAfter().getInt());
+		assertNull(changes.get(0).getBefore());
+		assertEquals(EDFDiff.Kind.REMOVED, changes.get(1).getKind());
+		assertEquals(first.getInt(), changes.get(1).getBefore().getInt());
+		assertNull(changes.get(1).getAfter());
+	}
+
+	@Test
+	public void testReordered() {
+		EDFData before = EDFNode.of("reply").add(EDFNode.of("user", 1).add("name", "A")).add(EDFNode.of("user", 2).add("name", "B")).thaw();
+		EDFData after = EDFNode.of("reply").add(EDFNode.of("user", 2).add("name", "B")).add(EDFNode.of("user", 1).add("name", "A")).thaw();
+
+		// Keyed on their values, so moving doesn't count
+		assertTrue(EDFDiff.diff(before, after).isEmpty());
+	}
+
+	@Test
+	public void testTypeChange() {
+		EDFData before = EDFNode.of("reply").add("status", 1).thaw();
+		EDFData after = EDFNode.of("reply").add("status", "1").thaw();
+
+		List<EDFDiff.Change> changes = EDFDiff.diff(before, after);
+		assertEquals(1, changes.size());
+		assertEquals(EDFDiff.Kind.CHANGED, changes.get(0).getKind());
+		assertEquals("[CHANGED status=1]", changes.toString());
+	}
+}
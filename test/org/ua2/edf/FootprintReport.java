@@ -0,0 +1,60 @@
+package org.ua2.edf;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reports the retained heap of parsed EDFData trees for the test corpus
+ * <p>
+ * Run from the project directory. Each file is parsed COPIES times and the
+ * trees are kept live while the heap is measured, so the per-tree figure is
+ * an average net of measurement noise. Run with a fixed heap (eg -Xms1g
+ * -Xmx1g) for steadier numbers.
+ */
+public class FootprintReport {
+	private static final int COPIES = 200;
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for(int i = 0; i < 4; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static int countNodes(EDFData data) {
+		int count = 1;
+		for(int i = 0; i < data.getChildCount(); i++) {
+			count += countNodes(data.getChild(i));
+		}
+		return count;
+	}
+
+	public static void main(String[] args) throws IOException {
+		long totalBytes = 0;
+		long totalNodes = 0;
+
+		System.out.printf("%-28s %8s %8s %12s %10s%n", "file", "size", "nodes", "tree bytes", "per node");
+
+		for(File file : new File("test").listFiles()) {
+			if(!file.getName().endsWith(".edf")) {
+				continue;
+			}
+
+			EDFData[] trees = new EDFData[COPIES];
+			long before = usedHeap();
+			for(int i = 0; i < COPIES; i++) {
+				trees[i] = TestFiles.parseFile(file.getPath());
+			}
+			long bytes = (usedHeap() - before) / COPIES;
+
+			int nodes = countNodes(trees[0]);
+			totalBytes += bytes;
+			totalNodes += nodes;
+
+			System.out.printf("%-28s %8d %8d %12d %10.1f%n", file.getName(), file.length(), nodes, bytes, (double) bytes / nodes);
+		}
+
+		System.out.printf("%-28s %8s %8d %12d %10.1f%n", "total", "", totalNodes, totalBytes, (double) totalBytes / totalNodes);
+	}
+}
@@ -0,0 +1,159 @@
+package org.ua2.edf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.ua2.edf.parser.EDFParser;
+
+public class IncrementalParserTest {
+
+	private static class Collector implements EDFIncrementalParser.Handler {
+		List<EDFData> elements = new ArrayList<EDFData>();
+
+		public void element(EDFData element) {
+			elements.add(element);
+		}
+	}
+
+	/**
+	 * Feed bytes in chunks of random sizes up to max
+	 */
+	private static void feed(EDFIncrementalParser parser, byte[] bytes, int max, Random random) throws Exception {
+		int pos = 0;
+		while(pos < bytes.length) {
+			int length = Math.min(1 + random.nextInt(max), bytes.length - pos);
+			parser.feed(ByteBuffer.wrap(bytes, pos, length));
+			pos += length;
+		}
+	}
+
+	@Test
+	public void testCorpus() throws Exception {
+		Random random = new Random(15);
+		for(File file : new File("test").listFiles()) {
+			if(!file.getName().endsWith(".edf")) {
+				continue;
+			}
+
+			String expected = new EDFParser(new InputStreamReader(new FileInputStream(file), "UTF-8")).elementtree().format(true);
+			byte[] bytes = Files.readAllBytes(file.toPath());
+
+			for(int max : new int[] { 1, 7, 1000, bytes.length }) {
+				Collector collector = new Collector();
+				EDFIncrementalParser parser = new EDFIncrementalParser(collector);
+				feed(parser, bytes, max, random);
+
+				assertEquals(file.getName(), 1, collector.elements.size());
+				assertEquals(file.getName(), expected, collector.elements.get(0).format(true));
+				assertEquals(0, parser.getBuffered());
+			}
+		}
+	}
+
+	@Test
+	public void testStream() throws Exception {
+		// Several elements, with a split UTF-8 sequence and escapes
+		byte[] bytes = ("<reply=\"user_login\"><name=\"\u00e9\u20ac\"/></reply>\r\n" +
+				"<announce=\"user_page\"><text=\"a\\\"<b>\\\\\"/></>" +
+				"<edf/>").getBytes("UTF-8");
+
+		Collector collector = new Collector();
+		EDFIncrementalParser parser = new EDFIncrementalParser(collector);
+		for(int i = 0; i < bytes.length; i++) {
+			parser.feed(bytes, i, 1);
+		}
+
+		assertEquals(3, collector.elements.size());
+		assertEquals("\u00e9\u20ac", collector.elements.get(0).getChild("name").getString());
+		assertEquals("a\"<b>\\", collector.elements.get(1).getChild("text").getString());
+		assertEquals("edf", collector.elements.get(2).getName());
+	}
+
+	@Test
+	public void testPartial() throws Exception {
+		Collector collector = new Collector();
+		EDFIncrementalParser parser = new EDFIncrementalParser(collector);
+		parser.setLazyStrings(true);
+
+		byte[] bytes = "  <reply><a=\"x\\\\y\"/>".getBytes("UTF-8");
+		parser.feed(ByteBuffer.wrap(bytes));
+		assertEquals(0, collector.elements.size());
+		assertEquals(bytes.length - 2, parser.getBuffered());
+
+		parser.feed(ByteBuffer.wrap("</reply><".getBytes("UTF-8")));
+		assertEquals(1, collector.elements.size());
+		assertEquals("x\\y", collector.elements.get(0).getChild("a").getString());
+		assertEquals(0, parser.getBuffered());
+
+		parser.reset();
+		parser.feed(ByteBuffer.wrap("<edf/>".getBytes("UTF-8")));
+		assertEquals(2, collector.elements.size());
+	}
+
+	@Test
+	public void testRecovery() throws Exception {
+		Collector collector = new Collector();
+		EDFIncrementalParser parser = new EDFIncrementalParser(collector);
+
+		try {
+			parser.feed(ByteBuffer.wrap("<reply><a=x/></reply><edf=1/>".getBytes("UTF-8")));
+			fail("Bad element parsed");
+		} catch(EDFFormatException e) {
+			// Expected
+		}
+		parser.feed(ByteBuffer.wrap(new byte[0]));
+		assertEquals(1, collector.elements.size());
+
+		try {
+			parser.feed(ByteBuffer.wrap("</reply>".getBytes("UTF-8")));
+			fail("Stray close tag accepted");
+		} catch(EDFFormatException e) {
+			// Expected
+		}
+		parser.feed(ByteBuffer.wrap("<edf=2/>".getBytes("UTF-8")));
+		assertEquals(2, collector.elements.size());
+		assertEquals(2, collector.elements.get(1).getInt());
+	}
+
+	@Test
+	public void testMaxElementSize() throws Exception {
+		Collector collector = new Collector();
+		EDFIncrementalParser parser = new EDFIncrementalParser(collector);
+		parser.setMaxElementSize(1000);
+
+		// An element as long as the limit is fine
+		StringBuilder edf = new StringBuilder("<reply>");
+		while(edf.length() < 990) {
+			edf.append("<a=1/>");
+		}
+		edf.append("</reply>");
+		parser.feed(ByteBuffer.wrap(edf.toString().getBytes("UTF-8")));
+		assertEquals(1, collector.elements.size());
+
+		// One which never closes isn't held past it
+		byte[] chunk = "<a=1/><a=2/>".getBytes("UTF-8");
+		parser.feed(ByteBuffer.wrap("<reply>".getBytes("UTF-8")));
+		try {
+			for(int i = 0; i < 1000; i++) {
+				parser.feed(ByteBuffer.wrap(chunk));
+			}
+			fail("Element held past the limit");
+		} catch(EDFFormatException e) {
+			// Expected
+		}
+		assertEquals(0, parser.getBuffered());
+
+		parser.feed(ByteBuffer.wrap("<edf=2/>".getBytes("UTF-8")));
+		assertEquals(2, collector.elements.size());
+	}
+}
@@ -0,0 +1,104 @@
+package org.ua2.edf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.ua2.edf.parser.EDFByteParser;
+import org.ua2.edf.parser.EDFParser;
+import org.ua2.edf.parser.EDFTreeParser;
+import org.ua2.edf.parser.ParseException;
+
+public class LazyStringTest {
+
+	private static final String EDF = "<reply=\"message_list\"><message=1><text=\"say \\\"hi\\\" to C:\\\\\"/><subject=\"plain\"/></message></reply>";
+
+	private static void check(EDFTreeParser parser) throws ParseException {
+		parser.setLazyStrings(true);
+		EDFData reply = parser.elementtree();
+		EDFData message = reply.getChild("message");
+
+		// Still escaped until it is read, and never exposed through sValue
+		assertEquals("say \\\"hi\\\" to C:\\\\", message.getChild("text").getEscapedString());
+		assertNull(message.getChild("text").sValue);
+		assertEquals("say \"hi\" to C:\\", message.getChild("text").getString());
+		assertEquals("say \"hi\" to C:\\", message.getChild("text").getString());
+		assertEquals("plain", message.getChild("subject").getString());
+
+		// Escaped values are written back out as they were sent
+		assertEquals(EDF.replace("</message></reply>", "</></>"), reply.format(false));
+	}
+
+	@Test
+	public void testLazyJavaCC() throws Exception {
+		check(new EDFParser(new InputStreamReader(new ByteArrayInputStream(EDF.getBytes("UTF-8")), "UTF-8")));
+	}
+
+	@Test
+	public void testLazyByte() throws Exception {
+		check(new EDFByteParser(new ByteArrayInputStream(EDF.getBytes("UTF-8"))));
+	}
+
+	@Test
+	public void testLazyReader() throws IOException {
+		EDFReader reader = EDFReader.create(new ByteArrayInputStream(EDF.getBytes("UTF-8")));
+		reader.setLazyStrings(true);
+		reader.next();
+		reader.next();
+		reader.next();
+		assertEquals("say \"hi\" to C:\\", reader.getString());
+	}
+
+	@Test
+	public void testConcurrentReads() throws Exception {
+		StringBuilder edf = new StringBuilder("<reply>");
+		for(int i = 0; i < 2000; i++) {
+			edf.append("<path=\"C:\\\\dir\\\\").append(i).append("\"/>");
+		}
+		edf.append("</reply>");
+		EDFByteParser parser = new EDFByteParser(new ByteArrayInputStream(edf.toString().getBytes("UTF-8")));
+		parser.setLazyStrings(true);
+		final EDFData reply = parser.elementtree();
+
+		// Each value is unescaped once, whichever thread gets to it first
+		final List<String> wrong = Collections.synchronizedList(new ArrayList<String>());
+		Thread[] threads = new Thread[4];
+		for(int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for(int i = 0; i < reply.getChildCount(); i++) {
+						String value = reply.getChild(i).getString();
+						if(!value.equals("C:\\dir\\" + i)) {
+							wrong.add(value);
+						}
+					}
+				}
+			};
+		}
+		for(Thread thread : threads) {
+			thread.start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(Collections.<String>emptyList(), wrong);
+	}
+
+	@Test
+	public void testNothingToEscape() {
+		String plain = "nothing to see here";
+		assertSame(plain, EDFData.escape(plain));
+		assertSame(plain, EDFData.unescape(plain));
+		assertEquals("a\\\\b\\\"c", EDFData.escape("a\\b\"c"));
+		assertEquals("a\\b\"c", EDFData.unescape("a\\\\b\\\"c"));
+	}
+}
@@ -0,0 +1,116 @@
+package org.ua2.edf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.ua2.edf.parser.EDFParser;
+
+public class MappedDocumentTest {
+
+	private static EDFMappedDocument document(String edf) throws Exception {
+		return new EDFMappedDocument(ByteBuffer.wrap(edf.getBytes("UTF-8")));
+	}
+
+	/**
+	 * Walk a mapped element and a parsed tree together
+	 */
+	private static void compare(String where, EDFData expected, EDFMappedElement element) throws Exception {
+		assertEquals(where, expected.getName(), element.getName());
+		assertEquals(where, expected.getValue(), element.getValue());
+		assertEquals(where, expected.getChildCount(), element.getChildCount());
+		for(int i = 0; i < expected.getChildCount(); i++) {
+			compare(where + "/" + expected.getName(), expected.getChild(i), element.getChild(i));
+		}
+	}
+
+	@Test
+	public void testNavigate() throws Exception {
+		EDFMappedDocument document = document(
+				"<reply=\"folder_list\">\r\n" +
+				"  <folder=1><name=\"a</b>\\\"<c/>\\\\\"/><accesslevel=5/></folder>\r\n" +
+				"  <folder=2><name=\"Techno\"/></folder>\r\n" +
+				"  <=3/><></><=\"x\"></>\r\n" +
+				"</reply>");
+
+		EDFMappedElement root = document.getRoot();
+		assertEquals("reply", root.getName());
+		assertEquals("folder_list", root.getString());
+		assertEquals(5, root.getChildCount());
+
+		EDFMappedElement first = root.getChild("folder");
+		assertEquals(1, first.getInteger());
+		assertEquals("a</b>\"<c/>\\", first.getChild("name").getString());
+		assertEquals("<accesslevel=5/>", first.getChild(1).toEDFData().format(false));
+		assertNull(first.getChild("missing"));
+
+		assertEquals(2, root.getChildren("folder").size());
+		assertEquals("Techno", root.getChildren("folder").get(1).getChild("name").getString());
+		assertEquals(3, root.getChild(2).getInteger());
+		assertEquals("", root.getChild(3).getName());
+		assertEquals("x", root.getChild(4).getString());
+	}
+
+	@Test
+	public void testStartTags() throws Exception {
+		byte[] bytes = ("<reply>\n" +
+				"  < user = -2147483648 />\n" +
+				"  <real=-1.5e+3/><real=.25></real>\n" +
+				"  <text=\"caf\u00e9 \\\\\"/>\n" +
+				"</reply>").getBytes("UTF-8");
+
+		// A direct buffer has no array to read names from
+		ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+		direct.put(bytes).flip();
+		EDFMappedElement root = new EDFMappedDocument(direct).getRoot();
+
+		assertEquals(4, root.getChildCount());
+		assertEquals("user", root.getChild(0).getName());
+		assertEquals(Integer.MIN_VALUE, root.getChild(0).getInteger());
+		assertEquals(EDFData.ValueType.NONE, root.getChild(1).getType());
+		assertEquals(EDFData.ValueType.NONE, root.getChild(2).getType());
+		assertEquals("caf\u00e9 \\", root.getChild(3).getString());
+	}
+
+	@Test
+	public void testBadStartTags() throws Exception {
+		String[] bad = {
+			"</reply>", "<1/>", "<reply", "<reply=/>", "<reply=\"x/>", "<reply=\"\\x\"/>",
+			"<reply=2147483648/>", "<reply=-/>", "<reply=1./>", "<reply=1.5e3/>", "<reply x/>"
+		};
+		for(String edf : bad) {
+			try {
+				document(edf).getRoot();
+				fail(edf);
+			} catch(EDFFormatException e) {
+				// Expected
+			}
+		}
+	}
+
+	@Test(expected = EDFFormatException.class)
+	public void testUnterminated() throws Exception {
+		document("<reply><folder=1/>").getRoot().toEDFData();
+	}
+
+	@Test
+	public void testCorpus() throws Exception {
+		for(File file : new File("test").listFiles()) {
+			if(!file.getName().endsWith(".edf")) {
+				continue;
+			}
+
+			EDFData reference = new EDFParser(new InputStreamReader(new FileInputStream(file), "UTF-8")).elementtree();
+			EDFMappedDocument document = EDFMappedDocument.open(file);
+
+			compare(file.getName(), reference, document.getRoot());
+			assertEquals(file.getName(), reference.format(true), document.getRoot().toEDFData().format(true));
+		}
+	}
+}
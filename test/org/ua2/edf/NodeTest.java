@@ -0,0 +1,108 @@
+package org.ua2.edf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class NodeTest {
+
+	@Test
+	public void testFreezeAndThaw() throws Exception {
+		for(File file : new File("test").listFiles()) {
+			if(!file.getName().endsWith(".edf")) {
+				continue;
+			}
+
+			EDFData data = TestFiles.parseFile(file.getPath());
+			EDFNode node = data.freeze();
+
+			assertEquals(file.getName(), data.format(true), node.format(true));
+			assertEquals(file.getName(), data.format(false), node.thaw().format(false));
+			assertEquals(file.getName(), node, node.thaw().freeze());
+		}
+	}
+
+	@Test
+	public void testModifiedCopies() {
+		EDFNode template = EDFNode.of("request", "message_add").add("folderid", 12).add("subject", "Template").add(EDFNode.of("options").add("anonymous", 0));
+
+		EDFNode post = template.with("subject", "Hello \"world\"").add("text", "Body");
+		assertEquals("<request=\"message_add\"><folderid=12/><subject=\"Template\"/><options><anonymous=0/></></>", template.toString());
+		assertEquals("<request=\"message_add\"><folderid=12/><subject=\"Hello \\\"world\\\"\"/><options><anonymous=0/></><text=\"Body\"/></>", post.toString());
+
+		// Unchanged children are shared
+		assertSame(template.getChild("options"), post.getChild("options"));
+		assertSame(template.getChild(0), post.getChild(0));
+
+		assertEquals("<request=\"message_add\"><folderid=12/><subject=\"Template\"/></>", template.without("options").toString());
+		assertSame(template, template.without("missing"));
+		assertEquals("<request=7><folderid=12/><subject=\"Template\"/><options><anonymous=0/></></>", template.withValue(7).toString());
+	}
+
+	@Test
+	public void testCursors() {
+		EDFNode narrow = EDFNode.of("reply");
+		EDFData wide = new EDFData("reply");
+		for(int i = 0; i < 40; i++) {
+			narrow = narrow.add(i % 3 == 0 ? "user" : "folder", i);
+			wide.add(i % 3 == 0 ? "user" : "folder", i);
+		}
+
+		for(EDFNode node : new EDFNode[] { narrow, wide.freeze() }) {
+			List<Integer> users = new ArrayList<Integer>();
+			for(int i = node.indexOf("user", 0); i != -1; i = node.indexOf("user", i + 1)) {
+				users.add(node.getChild(i).getInt());
+			}
+			assertEquals(14, users.size());
+			assertEquals(39, (int) users.get(13));
+
+			int n = 0;
+			for(EDFNode user : node.children("user")) {
+				assertEquals(users.get(n++), user.getInteger());
+			}
+			assertEquals(14, node.getChildren("user").size());
+			assertEquals(1, node.getChild("folder").getInt());
+			assertNull(node.getChild("missing"));
+			assertTrue(node.getChildren("missing").isEmpty());
+		}
+	}
+
+	@Test
+	public void testSharedBetweenThreads() throws Exception {
+		final EDFNode reply = TestFiles.parseFile("test/user_list1_reply.edf").freeze();
+		final String expected = reply.format(false);
+		final List<Throwable> failures = new ArrayList<Throwable>();
+
+		Thread[] threads = new Thread[4];
+		for(int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int i = 0; i < 20; i++) {
+							assertEquals(expected, reply.format(false));
+							assertEquals("Techno", reply.getChildren("user").get(3).getChild("name").getString());
+						}
+					} catch(Throwable e) {
+						synchronized(failures) {
+							failures.add(e);
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+
+		assertTrue(failures.toString(), failures.isEmpty());
+	}
+}
@@ -0,0 +1,93 @@
+package org.ua2.edf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import org.ua2.edf.parser.EDFParser;
+
+public class ParallelParserTest {
+
+	/**
+	 * Repeat the children of a file until the reply is at least size bytes
+	 */
+	static byte[] grow(String filename, int size) throws Exception {
+		byte[] text = Files.readAllBytes(new File(filename).toPath());
+		String reply = new String(text, "UTF-8");
+		int first = reply.indexOf('<', 1);
+		int last = reply.lastIndexOf("</");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(reply.substring(0, first).getBytes("UTF-8"));
+		byte[] children = reply.substring(first, last).getBytes("UTF-8");
+		while(bytes.size() < size) {
+			bytes.write(children);
+		}
+		bytes.write(reply.substring(last).getBytes("UTF-8"));
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void testCorpus() throws Exception {
+		EDFParallelParser parser = new EDFParallelParser(new ForkJoinPool(4));
+		parser.setThreshold(0);
+
+		for(File file : new File("test").listFiles()) {
+			if(!file.getName().endsWith(".edf")) {
+				continue;
+			}
+
+			EDFData reference = new EDFParser(new InputStreamReader(new FileInputStream(file), "UTF-8")).elementtree();
+			assertEquals(file.getName(), reference.format(true), parser.parse(file).format(true));
+		}
+	}
+
+	@Test
+	public void testLarge() throws Exception {
+		byte[] bytes = grow("test/user_list1_reply.edf", 4 * 1024 * 1024);
+		EDFData reference = EDFReader.create(new ByteArrayInputStream(bytes)).readElement();
+
+		EDFParallelParser parser = new EDFParallelParser(new ForkJoinPool(4));
+		EDFData tree = parser.parse(bytes);
+		assertTrue(tree.getChildCount() > 10000);
+		assertEquals(reference.format(false), tree.format(false));
+
+		parser.setLazyStrings(true);
+		assertEquals(reference.format(false), parser.parse(bytes).format(false));
+	}
+
+	@Test
+	public void testEscapes() throws Exception {
+		EDFParallelParser parser = new EDFParallelParser();
+		parser.setThreshold(0);
+
+		// Tag characters inside strings don't end the children
+		EDFData tree = parser.parse("<reply><a=\"</>\\\"<b>\"/><b=\"\\\\\"></b><c><d/></></reply>".getBytes("UTF-8"));
+		assertEquals(3, tree.getChildCount());
+		assertEquals("</>\"<b>", tree.getChild(0).getString());
+		assertEquals("\\", tree.getChild(1).getString());
+		assertEquals("c", tree.getChild(2).getName());
+	}
+
+	@Test(expected = EDFFormatException.class)
+	public void testBadChild() throws Exception {
+		EDFParallelParser parser = new EDFParallelParser();
+		parser.setThreshold(0);
+		parser.parse("<reply><a=1/><b=x/><c=2/></reply>".getBytes("UTF-8"));
+	}
+
+	@Test(expected = EDFFormatException.class)
+	public void testUnterminated() throws Exception {
+		EDFParallelParser parser = new EDFParallelParser();
+		parser.setThreshold(0);
+		parser.parse("<reply><a=1/><c=2/>".getBytes("UTF-8"));
+	}
+}
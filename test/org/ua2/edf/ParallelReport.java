@@ -0,0 +1,56 @@
+package org.ua2.edf;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Times parsing a large user_list reply sequentially and with
+ * EDFParallelParser at increasing pool sizes
+ * <p>
+ * Run from the project directory. The reply is built by repeating the
+ * children of user_list1_reply.edf to SIZE bytes.
+ */
+public class ParallelReport {
+	private static final int SIZE = 16 * 1024 * 1024;
+	private static final int WARMUP = 5;
+	private static final int ROUNDS = 10;
+
+	private interface Parse {
+		EDFData parse(byte[] bytes) throws Exception;
+	}
+
+	private static int sink;
+
+	private static double time(Parse parse, byte[] bytes) throws Exception {
+		for(int i = 0; i < WARMUP; i++) {
+			sink += parse.parse(bytes).getChildCount();
+		}
+		long start = System.nanoTime();
+		for(int i = 0; i < ROUNDS; i++) {
+			sink += parse.parse(bytes).getChildCount();
+		}
+		return (System.nanoTime() - start) / 1000000.0 / ROUNDS;
+	}
+
+	public static void main(String[] args) throws Exception {
+		byte[] bytes = ParallelParserTest.grow("test/user_list1_reply.edf", SIZE);
+		System.out.printf("%d bytes, %d processors%n", bytes.length, Runtime.getRuntime().availableProcessors());
+
+		double sequential = time(new Parse() {
+			public EDFData parse(byte[] bytes) throws Exception {
+				return EDFReader.create(new ByteArrayInputStream(bytes)).readElement();
+			}
+		}, bytes);
+		System.out.printf("%-12s %8.1f ms%n", "sequential", sequential);
+
+		for(int threads = 1; threads <= Runtime.getRuntime().availableProcessors() * 2; threads *= 2) {
+			final EDFParallelParser parser = new EDFParallelParser(new ForkJoinPool(threads));
+			double parallel = time(new Parse() {
+				public EDFData parse(byte[] bytes) throws Exception {
+					return parser.parse(bytes);
+				}
+			}, bytes);
+			System.out.printf("%-12s %8.1f ms %6.2fx%n", threads + " threads", parallel, sequential / parallel);
+		}
+	}
+}
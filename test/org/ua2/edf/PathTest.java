@@ -0,0 +1,114 @@
+package org.ua2.edf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PathTest {
+
+	private static final String EDF =
+		"<reply=\"message_list\">" +
+		"<message=1><fromid=1177/><subject=\"One\"/><replyto=7><fromid=2013/></replyto></message>" +
+		"<message=2><fromid=2013/><subject=\"Two\"/><replyto=1><fromid=1177/><replyto=9><fromid=5/></replyto></replyto></message>" +
+		"<message=3><fromid=1177/><subject=\"Three \\\"3\\\"\"/></message>" +
+		"<folderid=12/><foldername=\"Photography\"/>" +
+		"</reply>";
+
+	private static EDFReader reader(String edf) throws IOException {
+		EDFReader reader = EDFReader.create(new ByteArrayInputStream(edf.getBytes("UTF-8")));
+		reader.next();
+		return reader;
+	}
+
+	private static EDFData tree(String edf) throws IOException {
+		return reader(edf).readTree();
+	}
+
+	private static List<Object> values(List<EDFData> elements) {
+		List<Object> values = new ArrayList<Object>();
+		for(EDFData element : elements) {
+			values.add(element.getValue());
+		}
+		return values;
+	}
+
+	/**
+	 * Evaluate against a tree and a reader, which must agree
+	 */
+	private static String select(String path) throws IOException {
+		EDFPath compiled = EDFPath.compile(path);
+
+		String fromTree = values(compiled.select(tree(EDF))).toString();
+		String fromReader = values(compiled.select(reader(EDF))).toString();
+		assertEquals(path, fromTree, fromReader);
+
+		return fromTree;
+	}
+
+	@Test
+	public void testSteps() throws IOException {
+		assertEquals("[One, Two, Three \"3\"]", select("message/subject"));
+		assertEquals("[1177, 2013, 1177]", select("message/fromid"));
+		assertEquals("[One, Three \"3\"]", select("message[fromid=1177]/subject"));
+		assertEquals("[Two]", select("message[replyto]/subject[=Two]"));
+		assertEquals("[Three \"3\"]", select("*/subject[=\"Three \\\"3\\\"\"]"));
+		assertEquals("[Photography]", select("foldername"));
+		assertEquals("[Photography]", select("/reply[=message_list][folderid=12]/foldername"));
+		assertEquals("[12]", select("/reply/*[=12]"));
+	}
+
+	@Test
+	public void testDescendants() throws IOException {
+		assertEquals("[2013, 1177, 5]", select("//replyto/fromid"));
+		assertEquals("[7, 1, 9]", select("//replyto"));
+		assertEquals("[9]", select("message//replyto/replyto"));
+		assertEquals("[5]", select("//replyto//replyto/fromid"));
+		assertEquals("[]", select("/folder_list//folder"));
+	}
+
+	@Test
+	public void testSelectFirstStopsEarly() throws IOException {
+		EDFPath path = EDFPath.compile("message[fromid=2013]/subject");
+
+		EDFReader reader = reader(EDF);
+		assertEquals("Two", path.selectFirst(reader).getString());
+		assertEquals(EDFReader.Event.END_ELEMENT, reader.getEvent());
+		assertEquals(2, reader.getDepth());
+		assertEquals("message", reader.getName());
+
+		assertEquals("Two", path.selectFirst(tree(EDF)).getString());
+		assertNull(EDFPath.compile("message[fromid=1]").selectFirst(tree(EDF)));
+	}
+
+	@Test
+	public void testInvalid() {
+		String[] invalid = { "", "a/", "a[", "a[b", "a[b=\"c]", "a]", "a//", "[b]" };
+		for(String path : invalid) {
+			try {
+				EDFPath.compile(path);
+				throw new AssertionError("Compiled " + path);
+			} catch(IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void testCorpus() throws IOException {
+		File file = new File("test/user_list1_reply.edf");
+		EDFPath path = EDFPath.compile("user[name=Techno]/accesslevel");
+
+		EDFReader reader = EDFReader.create(new FileInputStream(file));
+		reader.next();
+		assertEquals(4, path.selectFirst(reader).getInt());
+		assertEquals(4, path.selectFirst(TestFiles.parseFile(file.getPath())).getInt());
+	}
+}
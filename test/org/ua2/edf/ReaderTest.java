@@ -0,0 +1,100 @@
+package org.ua2.edf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import org.junit.Test;
+import org.ua2.edf.parser.EDFParser;
+
+public class ReaderTest {
+
+	private static EDFReader reader(String edf) throws IOException {
+		return EDFReader.create(new ByteArrayInputStream(edf.getBytes("UTF-8")));
+	}
+
+	/**
+	 * Describe every event from a reader, one per line
+	 */
+	private static String events(EDFReader reader) throws IOException {
+		StringBuilder events = new StringBuilder();
+
+		EDFReader.Event event;
+		while((event = reader.next()) != EDFReader.Event.END_DOCUMENT) {
+			events.append(event).append(' ').append(reader.getDepth()).append(' ').append(reader.getName());
+			if(event == EDFReader.Event.START_ELEMENT) {
+				events.append('=').append(reader.getValue());
+			}
+			events.append('\n');
+		}
+
+		return events.toString();
+	}
+
+	@Test
+	public void testEvents() throws IOException {
+		EDFReader reader = reader("<reply=\"user_list\"><user=1><name=\"Gryn\"/></user><=2/><></></reply>");
+
+		assertEquals(
+				"START_ELEMENT 1 reply=user_list\n" +
+				"START_ELEMENT 2 user=1\n" +
+				"START_ELEMENT 3 name=Gryn\n" +
+				"END_ELEMENT 3 name\n" +
+				"END_ELEMENT 2 user\n" +
+				"START_ELEMENT 2 =2\n" +
+				"END_ELEMENT 2 \n" +
+				"START_ELEMENT 2 =null\n" +
+				"END_ELEMENT 2 \n" +
+				"END_ELEMENT 1 reply\n",
+				events(reader));
+		assertEquals(EDFReader.Event.END_DOCUMENT, reader.next());
+	}
+
+	@Test
+	public void testSkipElement() throws IOException {
+		EDFReader reader = reader("<reply><user=1><name=\"Gryn\"/></user><user=2/></reply>");
+
+		reader.next();
+		reader.next();
+		reader.skipElement();
+		assertEquals(EDFReader.Event.END_ELEMENT, reader.getEvent());
+		assertEquals("user", reader.getName());
+
+		assertEquals(EDFReader.Event.START_ELEMENT, reader.next());
+		assertEquals(2, reader.getInteger());
+	}
+
+	@Test
+	public void testReadElement() throws IOException {
+		EDFReader reader = reader("<edf=\"on\"/><reply=\"a\"><b=1/></reply>");
+
+		assertEquals("on", reader.readElement().getString());
+		assertEquals(1, reader.readElement().getChild("b").getInteger().intValue());
+		assertNull(reader.readElement());
+	}
+
+	/**
+	 * Stream and tree readers must report the same events for the test corpus
+	 */
+	@Test
+	public void testCorpusTreeEvents() throws Exception {
+		for(File file : new File("test").listFiles()) {
+			if(!file.getName().endsWith(".edf")) {
+				continue;
+			}
+
+			EDFData data = new EDFParser(new InputStreamReader(new FileInputStream(file), "UTF-8")).elementtree();
+			FileInputStream stream = new FileInputStream(file);
+			try {
+				assertEquals(file.getName(), events(EDFReader.create(data)), events(EDFReader.create(stream)));
+			} finally {
+				stream.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package org.ua2.edf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+
+import org.junit.Test;
+
+public class SymbolsTest {
+
+	@Test
+	public void testParsedNamesAreCanonical() throws Exception {
+		EDFReader reader = EDFReader.create(new ByteArrayInputStream("<user=1><accesslevel=3/></user>".getBytes("UTF-8")));
+		EDFData data = reader.readElement();
+
+		// Parsed names share the instance of the literal
+		assertSame("user", data.getName());
+		assertSame("accesslevel", data.getChild(0).getName());
+		assertSame(data.getChild(0), data.getChild(new String("accesslevel")));
+	}
+
+	@Test
+	public void testIds() {
+		String name = EDFSymbols.intern(new String("symbolstest"));
+
+		int id = EDFSymbols.id("symbolstest");
+		assertTrue(id != EDFSymbols.NONE);
+		assertSame(name, EDFSymbols.name(id));
+		assertEquals(id, new EDFData("symbolstest").getNameId());
+
+		assertEquals(EDFSymbols.NONE, EDFSymbols.id("symbolstest-not-interned"));
+		assertNull(EDFSymbols.canonical("symbolstest-not-interned"));
+	}
+
+	@Test
+	public void testUninternedNames() {
+		StringBuilder longName = new StringBuilder();
+		while(longName.length() <= EDFSymbols.MAX_LENGTH) {
+			longName.append("long");
+		}
+
+		EDFData data = new EDFData("");
+		data.add(longName.toString(), 1);
+
+		assertEquals(EDFSymbols.NONE, data.getChild(0).getNameId());
+		assertEquals((Integer)1, data.getChild(longName.toString()).getInteger());
+	}
+
+	@Test
+	public void testAssignedNames() {
+		EDFData data = new EDFData("");
+		data.add("accesslevel", 1);
+
+		// Not the canonical instance, but still found
+		EDFData child = new EDFData("", 2);
+		child.name = new String("accesslevel");
+		data.add(child);
+
+		assertEquals(2, data.getChildCount("accesslevel"));
+		assertSame(child, data.getChild("accesslevel", 1));
+		assertEquals(2, data.getChildren(new String("accesslevel")).size());
+	}
+}
@@ -5,6 +5,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.TestCase;
 
@@ -28,4 +29,83 @@ public class TestMethods extends TestCase {
 		
 		testFolder(data, reader);
 	}
+
+	public void testWideChildLookup() {
+		EDFData data = new EDFData("reply", "user_list");
+		for(int i = 0; i < 100; i++) {
+			data.add(i % 10 == 0 ? "folder" : "user", i);
+
+			// Look up as we go, so the index has to follow later adds
+			assertEquals(i / 10 + 1, data.getChildCount("folder"));
+			assertEquals(i - i / 10, data.getChildCount("user"));
+		}
+
+		assertEquals(0, data.getChild("folder").getInt());
+		assertEquals(90, data.getChild("folder", 9).getInt());
+		assertNull(data.getChild("folder", 10));
+		assertNull(data.getChild("message"));
+		assertEquals(0, data.getChildCount("message"));
+		assertTrue(data.getChildren("message").isEmpty());
+
+		List<EDFData> users = data.getChildren("user");
+		assertEquals(90, users.size());
+		assertEquals(1, users.get(0).getInt());
+		assertEquals(99, users.get(89).getInt());
+	}
+
+	public void testNarrowChildLookup() {
+		EDFData data = new EDFData("user", 1);
+		data.add("name", "Gryn");
+		data.add("editor", 2);
+		data.add("editor", 3);
+
+		assertEquals(2, data.getChildCount("editor"));
+		assertEquals(3, data.getChild("editor", 1).getInt());
+		assertNull(data.getChild("editor", 2));
+		assertEquals(1, data.getChildren("name").size());
+		assertTrue(data.getChildren("accesslevel").isEmpty());
+	}
+
+	public void testConcurrentReaders() throws Exception {
+		final int nodes = 2000;
+		final EDFData[] replies = new EDFData[nodes];
+		for(int n = 0; n < nodes; n++) {
+			replies[n] = new EDFData("reply", "user_list");
+			for(int i = 0; i < 40; i++) {
+				replies[n].add("user", i);
+			}
+		}
+
+		// Readers by position and by name, racing the index being built
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[4];
+		for(int t = 0; t < threads.length; t++) {
+			final boolean byName = (t % 2 == 0);
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(EDFData reply : replies) {
+							for(int i = 0; i < 40; i++) {
+								EDFData child = (byName ? reply.getChild("user", i) : reply.getChild(i));
+								if(child.getInt() != i) {
+									throw new IllegalStateException("Child " + i + " was " + child.getInt());
+								}
+							}
+						}
+					} catch(Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			};
+		}
+		for(Thread thread : threads) {
+			thread.start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+
+		assertNull(failure.get());
+	}
 }
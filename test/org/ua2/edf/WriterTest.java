@@ -0,0 +1,102 @@
+package org.ua2.edf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.ua2.edf.parser.EDFParser;
+
+public class WriterTest {
+
+	private static String write(EDFData data, boolean pretty) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		EDFWriter writer = new EDFWriter(bytes, pretty);
+		writer.write(data);
+		writer.flush();
+
+		return bytes.toString("UTF-8");
+	}
+
+	private static EDFData message(String text) {
+		EDFData request = new EDFData("request", "message_add");
+		request.add("folderid", 12);
+		request.add("subject", "Caf\u00e9 \"society\"");
+		request.add("text", text);
+		request.add("", Integer.MIN_VALUE);
+		request.add(new EDFData(""));
+
+		return request;
+	}
+
+	@Test
+	public void testMatchesFormat() throws IOException {
+		EDFData request = message("\u20ac5 \\ \ud83d\ude00 and plenty more");
+
+		assertEquals(request.format(false), write(request, false));
+		assertEquals(request.format(true), write(request, true));
+	}
+
+	@Test
+	public void testUTF8() throws IOException {
+		String text = "na\u00efve \u20ac \ud83d\ude00";
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		EDFWriter writer = new EDFWriter(bytes);
+		writer.write(new EDFData("text", text));
+		writer.flush();
+
+		assertArrayEquals(("<text=\"" + text + "\"/>").getBytes("UTF-8"), bytes.toByteArray());
+	}
+
+	@Test
+	public void testByteBuffer() throws IOException {
+		EDFData request = message("hello");
+
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		EDFWriter writer = new EDFWriter(buffer);
+		writer.write(request);
+		writer.flush();
+
+		buffer.flip();
+		assertEquals(request.format(false), new String(buffer.array(), 0, buffer.limit(), "UTF-8"));
+	}
+
+	@Test(expected = BufferOverflowException.class)
+	public void testByteBufferOverflow() throws IOException {
+		EDFWriter writer = new EDFWriter(ByteBuffer.allocate(8));
+		writer.write(message("hello"));
+		writer.flush();
+	}
+
+	@Test
+	public void testLargeMessage() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for(int i = 0; i < 5000; i++) {
+			text.append("line ").append(i).append(" \"quoted\" \u00e9\r\n");
+		}
+		EDFData request = message(text.toString());
+
+		assertEquals(request.format(false), write(request, false));
+	}
+
+	@Test
+	public void testCorpus() throws Exception {
+		for(File file : new File("test").listFiles()) {
+			if(!file.getName().endsWith(".edf")) {
+				continue;
+			}
+
+			EDFData data = new EDFParser(new InputStreamReader(new FileInputStream(file), "UTF-8")).elementtree();
+
+			assertEquals(file.getName(), data.format(false), write(data, false));
+			assertEquals(file.getName(), data.format(true), write(data, true));
+		}
+	}
+}